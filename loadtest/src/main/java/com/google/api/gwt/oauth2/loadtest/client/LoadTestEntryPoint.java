@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.gwt.oauth2.loadtest.client;
+
+import com.google.api.gwt.oauth2.client.Auth;
+import com.google.api.gwt.oauth2.client.AuthRequest;
+import com.google.api.gwt.oauth2.client.AuthTracer;
+import com.google.api.gwt.oauth2.client.OAuthResponseParser.TokenInfo;
+import com.google.gwt.core.client.Callback;
+import com.google.gwt.core.client.EntryPoint;
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArray;
+import com.google.gwt.core.client.JsonUtils;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.user.client.Window;
+
+/**
+ * Harness application of the load test. Each browser session opens this page
+ * with its parameters in the query string, logs in {@code logins} times in a
+ * row, and posts the timings of every login to the stub provider's
+ * {@code /report} endpoint.
+ *
+ * <p>
+ * Login {@code i} asks for scope {@code s(i % scopes)}, so that later logins
+ * either reuse the tokens of earlier ones or renew them, depending on their
+ * lifetime. The client ID carries the session name, so that the stub provider
+ * can tell the authorizations of each session apart.
+ * </p>
+ *
+ * <p>
+ * Each login is reported as one tab-separated line: the scope, the time the
+ * login was started, the times of the {@code doLogin} and {@code finish}
+ * events recorded by the {@link AuthTracer} (-1 when the token was reused),
+ * the time the callback was called, and the outcome: {@code ok},
+ * {@code cached}, or the simple name of the exception the login failed with.
+ * </p>
+ */
+public class LoadTestEntryPoint implements EntryPoint {
+
+  private final Auth auth = Auth.get();
+  private final AuthTracer tracer = new AuthTracer(64);
+  private final StringBuilder report = new StringBuilder();
+
+  private String clientId;
+  private int logins;
+  private int scopes;
+
+  @Override
+  public void onModuleLoad() {
+    clientId = "loadtest-" + Window.Location.getParameter("session");
+    logins = Integer.parseInt(Window.Location.getParameter("logins"));
+    scopes = Integer.parseInt(Window.Location.getParameter("scopes"));
+
+    auth.setTracer(tracer);
+    // Every injected provider error should be measured, not backed off from.
+    auth.setErrorBackoff(0, 0);
+    login(0);
+  }
+
+  private void login(final int i) {
+    if (i == logins) {
+      send();
+      return;
+    }
+    final String scope = "s" + (i % scopes);
+    AuthRequest req = new AuthRequest(GWT.getHostPageBaseURL() + "authorize", clientId)
+        .withScopes(scope);
+    tracer.clear();
+    final double start = now();
+    auth.login(req, new Callback<TokenInfo, Throwable>() {
+      @Override
+      public void onSuccess(TokenInfo result) {
+        record(scope, start, null);
+        login(i + 1);
+      }
+
+      @Override
+      public void onFailure(Throwable reason) {
+        record(scope, start, reason);
+        login(i + 1);
+      }
+    });
+  }
+
+  private void record(String scope, double start, Throwable failure) {
+    double end = now();
+    double doLogin = -1;
+    double finish = -1;
+    JsArray<TraceEvent> events = JsonUtils.safeEval(tracer.toJson());
+    for (int i = 0; i < events.length(); i++) {
+      TraceEvent event = events.get(i);
+      if (doLogin < 0 && "doLogin".equals(event.getEvent())) {
+        doLogin = event.getTime();
+      } else if (finish < 0 && "finish".equals(event.getEvent())) {
+        finish = event.getTime();
+      }
+    }
+
+    String outcome;
+    if (failure != null) {
+      String name = failure.getClass().getName();
+      outcome = name.substring(name.lastIndexOf('.') + 1);
+    } else {
+      outcome = doLogin < 0 ? "cached" : "ok";
+    }
+    report.append(scope).append('\t').append(millis(start))
+        .append('\t').append(millis(doLogin)).append('\t').append(millis(finish))
+        .append('\t').append(millis(end)).append('\t').append(outcome).append('\n');
+  }
+
+  private void send() {
+    RequestBuilder builder = new RequestBuilder(RequestBuilder.POST,
+        GWT.getHostPageBaseURL() + "report?client_id=" + clientId);
+    builder.setHeader("Content-Type", "text/plain; charset=utf-8");
+    try {
+      builder.sendRequest(report.toString(), new RequestCallback() {
+        @Override
+        public void onResponseReceived(Request request, Response response) {
+        }
+
+        @Override
+        public void onError(Request request, Throwable exception) {
+          GWT.log("Could not send the report", exception);
+        }
+      });
+    } catch (RequestException e) {
+      GWT.log("Could not send the report", e);
+    }
+  }
+
+  private static String millis(double time) {
+    return String.valueOf((long) time);
+  }
+
+  private static native double now() /*-{
+    return Date.now();
+  }-*/;
+
+  /** An event of {@link AuthTracer#toJson()}. */
+  private static final class TraceEvent extends JavaScriptObject {
+    protected TraceEvent() {
+    }
+
+    native String getEvent() /*-{
+      return this.event;
+    }-*/;
+
+    native double getTime() /*-{
+      return this.time;
+    }-*/;
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.gwt.oauth2.loadtest;
+
+import com.gargoylesoftware.htmlunit.BrowserVersion;
+import com.gargoylesoftware.htmlunit.WebClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * End-to-end load test of the login round trip: many headless browser
+ * sessions at once run the harness application against the
+ * {@link StubProvider}, and the latency of each phase of their logins is
+ * reported as percentiles.
+ *
+ * <p>
+ * The phases of a login which opened a popup are:
+ * </p>
+ * <ul>
+ * <li>{@code prepare}: from {@code login()} to the popup being opened</li>
+ * <li>{@code toProvider}: until the provider received the authorization</li>
+ * <li>{@code provider}: until the provider answered it</li>
+ * <li>{@code redirect}: until oauthWindow.html delivered the response to
+ * {@code finish()}</li>
+ * <li>{@code deliver}: until the login's callback was called</li>
+ * <li>{@code total}: from {@code login()} to the callback</li>
+ * </ul>
+ * <p>
+ * Logins answered with a token already held are reported as {@code cached}.
+ * The report is printed, and written as JSON to the file named by the
+ * {@code loadtest.report} system property. The load is set with the
+ * properties documented in the pom.
+ * </p>
+ */
+public class LoadHarnessIT {
+
+  private static final List<String> PHASES =
+      Arrays.asList("prepare", "toProvider", "provider", "redirect", "deliver", "total", "cached");
+
+  private final int sessions = Integer.getInteger("loadtest.sessions", 8);
+  private final int logins = Integer.getInteger("loadtest.logins", 6);
+  private final int scopes = Integer.getInteger("loadtest.scopes", 3);
+  private final double errorRate =
+      Double.parseDouble(System.getProperty("loadtest.errorRate", "0.1"));
+
+  private StubProvider provider;
+
+  @Before
+  public void setUp() throws IOException {
+    File war = new File(System.getProperty("loadtest.war", "target/war"));
+    assertTrue("Harness module not compiled to " + war,
+        new File(war, "loadtest/loadtest.nocache.js").isFile());
+    provider = new StubProvider(war, Long.getLong("loadtest.latency", 50), errorRate,
+        Integer.getInteger("loadtest.lifetime", 3600));
+    provider.start();
+  }
+
+  @After
+  public void tearDown() {
+    provider.stop();
+  }
+
+  @Test
+  public void testLoginRoundTrip() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(sessions);
+    List<Future<String>> reports = new ArrayList<Future<String>>();
+    for (int i = 0; i < sessions; i++) {
+      final String session = String.valueOf(i);
+      reports.add(executor.submit(new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          return runSession(session);
+        }
+      }));
+    }
+
+    Map<String, List<Long>> samples = new LinkedHashMap<String, List<Long>>();
+    for (String phase : PHASES) {
+      samples.put(phase, new ArrayList<Long>());
+    }
+    Map<String, Integer> outcomes = new TreeMap<String, Integer>();
+    int reported = 0;
+    for (int i = 0; i < sessions; i++) {
+      String report = reports.get(i).get();
+      assertNotNull("No report from session " + i, report);
+      for (String line : report.split("\n")) {
+        if (!line.isEmpty()) {
+          addLogin("loadtest-" + i, line.split("\t"), samples, outcomes);
+          reported++;
+        }
+      }
+    }
+    executor.shutdown();
+
+    String json = toJson(samples, outcomes);
+    System.out.println(toTable(samples, outcomes));
+    String path = System.getProperty("loadtest.report");
+    if (path != null) {
+      Writer out = new OutputStreamWriter(new FileOutputStream(path), "UTF-8");
+      try {
+        out.write(json);
+      } finally {
+        out.close();
+      }
+    }
+
+    assertEquals(sessions * logins, reported);
+    // The only failures are the errors injected by the provider.
+    for (String outcome : outcomes.keySet()) {
+      assertTrue("Unexpected outcome " + outcome, outcome.equals("ok")
+          || outcome.equals("cached") || outcome.equals("ProviderErrorException"));
+    }
+    Integer providerErrors = outcomes.get("ProviderErrorException");
+    assertEquals(provider.getErrorCount(), providerErrors == null ? 0 : providerErrors.intValue());
+  }
+
+  /** Runs the harness in a new browser, returning its report. */
+  private String runSession(String session) throws Exception {
+    WebClient client = new WebClient(BrowserVersion.CHROME);
+    try {
+      client.getOptions().setPopupBlockerEnabled(false);
+      client.getOptions().setCssEnabled(false);
+      client.getOptions().setThrowExceptionOnScriptError(false);
+      client.getPage(provider.pageUrl(
+          "session=" + session + "&logins=" + logins + "&scopes=" + scopes));
+      return provider.awaitReport("loadtest-" + session, 60000 + logins * 10000L);
+    } finally {
+      client.close();
+    }
+  }
+
+  private void addLogin(String clientId, String[] fields, Map<String, List<Long>> samples,
+      Map<String, Integer> outcomes) {
+    String scope = fields[0];
+    long start = Long.parseLong(fields[1]);
+    long doLogin = Long.parseLong(fields[2]);
+    long finish = Long.parseLong(fields[3]);
+    long end = Long.parseLong(fields[4]);
+    String outcome = fields[5];
+
+    Integer count = outcomes.get(outcome);
+    outcomes.put(outcome, count == null ? 1 : count + 1);
+    if (doLogin < 0) {
+      samples.get("cached").add(end - start);
+      return;
+    }
+    samples.get("prepare").add(doLogin - start);
+    samples.get("total").add(end - start);
+    StubProvider.Authorization authorization = provider.nextAuthorization(clientId, scope);
+    if (authorization != null && finish >= 0) {
+      samples.get("toProvider").add(authorization.received - doLogin);
+      samples.get("provider").add(authorization.responded - authorization.received);
+      samples.get("redirect").add(finish - authorization.responded);
+      samples.get("deliver").add(end - finish);
+    }
+  }
+
+  private static long percentile(List<Long> sorted, double p) {
+    int index = (int) Math.ceil(p * sorted.size()) - 1;
+    return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+  }
+
+  private static String toJson(Map<String, List<Long>> samples, Map<String, Integer> outcomes) {
+    StringBuilder sb = new StringBuilder("{\"phases\":{");
+    boolean first = true;
+    for (Map.Entry<String, List<Long>> entry : samples.entrySet()) {
+      List<Long> sorted = new ArrayList<Long>(entry.getValue());
+      if (sorted.isEmpty()) {
+        continue;
+      }
+      Collections.sort(sorted);
+      sb.append(first ? "" : ",").append('"').append(entry.getKey()).append("\":{")
+          .append("\"count\":").append(sorted.size())
+          .append(",\"p50\":").append(percentile(sorted, 0.5))
+          .append(",\"p90\":").append(percentile(sorted, 0.9))
+          .append(",\"p99\":").append(percentile(sorted, 0.99))
+          .append(",\"max\":").append(sorted.get(sorted.size() - 1)).append('}');
+      first = false;
+    }
+    sb.append("},\"outcomes\":{");
+    first = true;
+    for (Map.Entry<String, Integer> entry : outcomes.entrySet()) {
+      sb.append(first ? "" : ",").append('"').append(entry.getKey()).append("\":")
+          .append(entry.getValue());
+      first = false;
+    }
+    return sb.append("}}").toString();
+  }
+
+  private static String toTable(Map<String, List<Long>> samples, Map<String, Integer> outcomes) {
+    StringBuilder sb = new StringBuilder(String.format("%-12s %7s %7s %7s %7s %7s%n",
+        "phase (ms)", "count", "p50", "p90", "p99", "max"));
+    for (Map.Entry<String, List<Long>> entry : samples.entrySet()) {
+      List<Long> sorted = new ArrayList<Long>(entry.getValue());
+      if (sorted.isEmpty()) {
+        continue;
+      }
+      Collections.sort(sorted);
+      sb.append(String.format("%-12s %7d %7d %7d %7d %7d%n", entry.getKey(), sorted.size(),
+          percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+          sorted.get(sorted.size() - 1)));
+    }
+    return sb.append("outcomes: ").append(outcomes).toString();
+  }
+}
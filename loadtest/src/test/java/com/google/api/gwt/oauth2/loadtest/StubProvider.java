@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.gwt.oauth2.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Embedded stub of an OAuth 2.0 provider, serving the compiled harness
+ * application as well:
+ *
+ * <ul>
+ * <li>{@code /loadtest.html}: the host page of the harness, passing its query
+ * string on to {@code LoadTestEntryPoint}</li>
+ * <li>{@code /loadtest/}: the compiled module, including oauthWindow.html</li>
+ * <li>{@code /authorize}: the authorization endpoint, which redirects back to
+ * the {@code redirect_uri} with a token, or with an error for a share of the
+ * requests, after a simulated latency</li>
+ * <li>{@code /report}: where each session posts its timings</li>
+ * </ul>
+ *
+ * <p>
+ * The provider remembers when it received and answered each authorization, so
+ * that the harness can split the time of a login into the parts spent in the
+ * browser and at the provider.
+ * </p>
+ */
+class StubProvider {
+
+  /** When an authorization was received and answered, in milliseconds. */
+  static class Authorization {
+    final long received;
+    final long responded;
+
+    Authorization(long received, long responded) {
+      this.received = received;
+      this.responded = responded;
+    }
+  }
+
+  private final File war;
+  private final long latencyMillis;
+  private final double errorRate;
+  private final int lifetimeSeconds;
+  private final Random random = new Random();
+
+  /** Authorizations in the order received, by client ID and scope. */
+  private final Map<String, LinkedList<Authorization>> authorizations =
+      new HashMap<String, LinkedList<Authorization>>();
+  private final Map<String, String> reports = new HashMap<String, String>();
+  private int errors;
+
+  private HttpServer server;
+  private ExecutorService executor;
+
+  /**
+   * @param war The directory the harness module was compiled to
+   * @param latencyMillis How long to take to answer an authorization
+   * @param errorRate The share of authorizations to answer with an error
+   * @param lifetimeSeconds The lifetime of the tokens issued
+   */
+  StubProvider(File war, long latencyMillis, double errorRate, int lifetimeSeconds) {
+    this.war = war;
+    this.latencyMillis = latencyMillis;
+    this.errorRate = errorRate;
+    this.lifetimeSeconds = lifetimeSeconds;
+  }
+
+  void start() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/loadtest.html", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        // The headless browser only has a partial BroadcastChannel, so the
+        // library falls back to storage events, as in older browsers.
+        respond(exchange, 200, "text/html", "<!doctype html><html><head>"
+            + "<script>window.BroadcastChannel = undefined;</script>"
+            + "<script src=\"loadtest/loadtest.nocache.js\"></script>"
+            + "</head><body></body></html>");
+      }
+    });
+    server.createContext("/loadtest/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        serveFile(exchange);
+      }
+    });
+    server.createContext("/authorize", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        authorize(exchange);
+      }
+    });
+    server.createContext("/report", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        String clientId = query(exchange).get("client_id");
+        String report = read(exchange.getRequestBody());
+        synchronized (StubProvider.this) {
+          reports.put(clientId, report);
+          StubProvider.this.notifyAll();
+        }
+        respond(exchange, 204);
+      }
+    });
+    // Sleeping authorizations must not hold up the other sessions.
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /** Returns the URL of the harness page with the given query string. */
+  String pageUrl(String query) {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/loadtest.html?" + query;
+  }
+
+  /**
+   * Waits for the report of the given client, returning {@code null} if it
+   * did not arrive in time.
+   */
+  synchronized String awaitReport(String clientId, long timeoutMillis)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (!reports.containsKey(clientId)) {
+      long left = deadline - System.currentTimeMillis();
+      if (left <= 0) {
+        return null;
+      }
+      wait(left);
+    }
+    return reports.get(clientId);
+  }
+
+  /**
+   * Returns the next authorization received for the given client and scope,
+   * in the order they were received, or {@code null} if there is none left.
+   */
+  synchronized Authorization nextAuthorization(String clientId, String scope) {
+    LinkedList<Authorization> list = authorizations.get(clientId + " " + scope);
+    return list == null || list.isEmpty() ? null : list.removeFirst();
+  }
+
+  /** Returns the number of authorizations answered with an error. */
+  synchronized int getErrorCount() {
+    return errors;
+  }
+
+  private void authorize(HttpExchange exchange) throws IOException {
+    long received = System.currentTimeMillis();
+    Map<String, String> params = query(exchange);
+    if (latencyMillis > 0) {
+      try {
+        TimeUnit.MILLISECONDS.sleep(latencyMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    boolean error;
+    synchronized (this) {
+      error = random.nextDouble() < errorRate;
+      if (error) {
+        errors++;
+      }
+    }
+    StringBuilder location = new StringBuilder(params.get("redirect_uri")).append('#');
+    if (error) {
+      location.append("error=temporarily_unavailable");
+    } else {
+      location.append("access_token=token-").append(received)
+          .append("&token_type=Bearer&expires_in=").append(lifetimeSeconds);
+    }
+    location.append("&state=").append(params.get("state"));
+
+    synchronized (this) {
+      String key = params.get("client_id") + " " + params.get("scope");
+      LinkedList<Authorization> list = authorizations.get(key);
+      if (list == null) {
+        list = new LinkedList<Authorization>();
+        authorizations.put(key, list);
+      }
+      list.add(new Authorization(received, System.currentTimeMillis()));
+    }
+    exchange.getResponseHeaders().set("Location", location.toString());
+    respond(exchange, 302);
+  }
+
+  private void serveFile(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    File file = new File(war, path.substring(1));
+    if (path.contains("..") || !file.isFile()) {
+      respond(exchange, 404, "text/plain", "Not found");
+      return;
+    }
+    String type = path.endsWith(".html") ? "text/html"
+        : path.endsWith(".js") ? "application/javascript" : "application/octet-stream";
+    InputStream in = new FileInputStream(file);
+    try {
+      respond(exchange, 200, type, readBytes(in));
+    } finally {
+      in.close();
+    }
+  }
+
+  private static Map<String, String> query(HttpExchange exchange) throws IOException {
+    Map<String, String> params = new HashMap<String, String>();
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query != null) {
+      for (String param : query.split("&")) {
+        int eq = param.indexOf('=');
+        if (eq > 0) {
+          params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+              URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+        }
+      }
+    }
+    return params;
+  }
+
+  private static void respond(HttpExchange exchange, int status) throws IOException {
+    exchange.getResponseHeaders().set("Connection", "close");
+    exchange.sendResponseHeaders(status, -1);
+    exchange.close();
+  }
+
+  private static void respond(HttpExchange exchange, int status, String type, String body)
+      throws IOException {
+    respond(exchange, status, type + "; charset=utf-8", body.getBytes("UTF-8"));
+  }
+
+  private static void respond(HttpExchange exchange, int status, String type, byte[] bytes)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", type);
+    exchange.getResponseHeaders().set("Connection", "close");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private static String read(InputStream in) throws IOException {
+    return new String(readBytes(in), "UTF-8");
+  }
+
+  private static byte[] readBytes(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) > 0) {
+      bytes.write(buffer, 0, read);
+    }
+    return bytes.toByteArray();
+  }
+}
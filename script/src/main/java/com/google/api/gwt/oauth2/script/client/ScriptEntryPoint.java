@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.script.client;
+
+import com.google.api.gwt.oauth2.client.Auth;
+import com.google.api.gwt.oauth2.client.AuthRequest;
+import com.google.api.gwt.oauth2.client.OAuthResponseParser;
+import com.google.gwt.core.client.Callback;
+import com.google.gwt.core.client.EntryPoint;
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArrayString;
+
+/**
+ * Exports {@link Auth} to plain JavaScript as {@code window.oauth2}.
+ *
+ * <p>
+ * Requests are objects of the form
+ * {@code {authUrl: ..., clientId: ..., scopes: [...], scopeDelimiter: ...}},
+ * of which {@code scopes} and {@code scopeDelimiter} are optional. Every
+ * method returns a Promise:
+ * </p>
+ *
+ * <ul>
+ * <li>{@code oauth2.login(req)} resolves with the access token.</li>
+ * <li>{@code oauth2.expiresIn(req)} resolves with the number of milliseconds
+ * until the token expires, or negative infinity if there is none.</li>
+ * <li>{@code oauth2.clearAllTokens()} resolves once the tokens are cleared.</li>
+ * </ul>
+ *
+ * <p>
+ * For pages written against the older script build, {@code login()} also
+ * accepts success and failure callbacks after the request.
+ * </p>
+ */
+public class ScriptEntryPoint implements EntryPoint {
+
+  @Override
+  public void onModuleLoad() {
+    export();
+  }
+
+  private static native void export() /*-{
+    if (!$wnd.oauth2) {
+      $wnd.oauth2 = {};
+    }
+    var Promise = $wnd.Promise;
+
+    $wnd.oauth2.login = function(req, success, failure) {
+      var promise = new Promise(function(resolve, reject) {
+        @com.google.api.gwt.oauth2.script.client.ScriptEntryPoint::login(*)(
+            @com.google.api.gwt.oauth2.script.client.ScriptEntryPoint::toRequest(*)(req),
+            resolve, reject);
+      });
+      if (success || failure) {
+        promise.then(success, failure);
+      }
+      return promise;
+    };
+
+    $wnd.oauth2.expiresIn = function(req) {
+      return new Promise(function(resolve) {
+        resolve(@com.google.api.gwt.oauth2.client.Auth::get()().
+            @com.google.api.gwt.oauth2.client.Auth::expiresIn(*)(
+                @com.google.api.gwt.oauth2.script.client.ScriptEntryPoint::toRequest(*)(req)));
+      });
+    };
+
+    $wnd.oauth2.clearAllTokens = function() {
+      return new Promise(function(resolve) {
+        @com.google.api.gwt.oauth2.client.Auth::get()().
+            @com.google.api.gwt.oauth2.client.Auth::clearAllTokens()();
+        resolve();
+      });
+    };
+  }-*/;
+
+  private static AuthRequest toRequest(ScriptRequest req) {
+    AuthRequest authRequest = new AuthRequest(req.getAuthUrl(), req.getClientId());
+    JsArrayString scopes = req.getScopes();
+    if (scopes != null) {
+      String[] scopesArray = new String[scopes.length()];
+      for (int i = 0; i < scopes.length(); i++) {
+        scopesArray[i] = scopes.get(i);
+      }
+      authRequest.withScopes(scopesArray);
+    }
+    if (req.getScopeDelimiter() != null) {
+      authRequest.withScopeDelimiter(req.getScopeDelimiter());
+    }
+    return authRequest;
+  }
+
+  private static void login(AuthRequest req, final JavaScriptObject resolve,
+      final JavaScriptObject reject) {
+    Auth.get().login(req, new Callback<OAuthResponseParser.TokenInfo, Throwable>() {
+      @Override
+      public void onSuccess(OAuthResponseParser.TokenInfo info) {
+        call(resolve, info.accessToken);
+      }
+
+      @Override
+      public void onFailure(Throwable reason) {
+        call(reject, reason.getMessage());
+      }
+    });
+  }
+
+  private static native void call(JavaScriptObject fn, String arg) /*-{
+    fn(arg);
+  }-*/;
+
+  /** A request as passed from JavaScript. */
+  private static final class ScriptRequest extends JavaScriptObject {
+    @SuppressWarnings("unused")
+    protected ScriptRequest() {
+    }
+
+    native String getAuthUrl() /*-{
+      return this.authUrl;
+    }-*/;
+
+    native String getClientId() /*-{
+      return this.clientId;
+    }-*/;
+
+    native JsArrayString getScopes() /*-{
+      return this.scopes || null;
+    }-*/;
+
+    native String getScopeDelimiter() /*-{
+      return this.scopeDelimiter || null;
+    }-*/;
+  }
+}
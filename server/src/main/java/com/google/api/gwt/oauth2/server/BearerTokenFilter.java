@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.server;
+
+import java.io.IOException;
+import java.net.URL;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Rejects requests which do not carry a valid OAuth 2.0 bearer token, such as
+ * those sent with {@code AuthorizedRequests} on the client.
+ *
+ * <p>
+ * Tokens are validated through an {@link IntrospectionCache}, so that the
+ * provider is not asked, or the signature of the token checked, on every
+ * request. The {@link Introspection} of the token is made available to the
+ * rest of the chain as the request attribute {@link #INTROSPECTION_ATTRIBUTE}.
+ * Requests without a valid token are answered with 401 Unauthorized and a
+ * {@code WWW-Authenticate} challenge, and requests whose token could not be
+ * checked with 503 Service Unavailable.
+ * </p>
+ *
+ * <p>
+ * The filter is either constructed with its cache, or configured in web.xml
+ * with the init parameters:
+ * </p>
+ * <ul>
+ * <li>{@code introspection-url}: the provider's introspection endpoint</li>
+ * <li>{@code client-id}, {@code client-secret}: credentials for the endpoint</li>
+ * <li>{@code jwks-url}: the provider's key set, to verify JWT access tokens
+ * locally with a {@link JwtVerifier} instead of introspecting them</li>
+ * <li>{@code issuer}: the required {@code iss} of JWT access tokens</li>
+ * <li>{@code audience}: the client tokens must have been issued to, checked
+ * against the {@code aud} of JWTs, and the {@code aud}, {@code azp} or
+ * {@code client_id} of introspected tokens, where it defaults to
+ * {@code client-id}</li>
+ * <li>{@code token-info}: {@code true} if the introspection endpoint answers
+ * in the style of Google's tokeninfo, rather than RFC 7662</li>
+ * <li>{@code cache-size}: the number of tokens to remember (default 10000)</li>
+ * <li>{@code cache-ttl-seconds}: how long to remember a token (default 300,
+ * and a day for JWTs, which are only remembered until they expire anyway)</li>
+ * </ul>
+ * <p>
+ * Exactly one of {@code introspection-url} and {@code jwks-url} is required.
+ * </p>
+ */
+public class BearerTokenFilter implements Filter {
+
+  /** Request attribute holding the {@link Introspection} of a valid token. */
+  public static final String INTROSPECTION_ATTRIBUTE =
+      BearerTokenFilter.class.getName() + ".introspection";
+
+  private static final String BEARER = "Bearer ";
+
+  private TokenIntrospector introspector;
+
+  /** Creates a filter to be configured from its init parameters. */
+  public BearerTokenFilter() {
+  }
+
+  /**
+   * Creates a filter validating tokens with the given introspector, usually an
+   * {@link IntrospectionCache}.
+   */
+  public BearerTokenFilter(TokenIntrospector introspector) {
+    this.introspector = introspector;
+  }
+
+  @Override
+  public void init(FilterConfig config) throws ServletException {
+    if (introspector != null) {
+      return;
+    }
+    String introspectionUrl = config.getInitParameter("introspection-url");
+    String jwksUrl = config.getInitParameter("jwks-url");
+    if ((introspectionUrl == null) == (jwksUrl == null)) {
+      throw new ServletException(
+          "Exactly one of the introspection-url and jwks-url init parameters is required");
+    }
+    TokenIntrospector uncached;
+    int ttlSeconds;
+    if (jwksUrl != null) {
+      uncached = new JwtVerifier(new JwksCache(new HttpJwksSource(url(jwksUrl))),
+          config.getInitParameter("issuer"), config.getInitParameter("audience"));
+      ttlSeconds = intParameter(config, "cache-ttl-seconds", 24 * 60 * 60);
+    } else {
+      uncached = new HttpIntrospector(url(introspectionUrl), config.getInitParameter("client-id"),
+          config.getInitParameter("client-secret"), config.getInitParameter("audience"))
+          .setTokenInfo(Boolean.parseBoolean(config.getInitParameter("token-info")));
+      ttlSeconds = intParameter(config, "cache-ttl-seconds", 300);
+    }
+    introspector = new IntrospectionCache(uncached,
+        intParameter(config, "cache-size", 10000), ttlSeconds * 1000L);
+  }
+
+  private static URL url(String url) throws ServletException {
+    try {
+      return new URL(url);
+    } catch (IOException e) {
+      throw new ServletException("Invalid URL: " + url, e);
+    }
+  }
+
+  private static int intParameter(FilterConfig config, String name, int defaultValue)
+      throws ServletException {
+    String value = config.getInitParameter(name);
+    try {
+      return value == null ? defaultValue : Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new ServletException("Invalid " + name + ": " + value, e);
+    }
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    HttpServletResponse httpResponse = (HttpServletResponse) response;
+    if ("OPTIONS".equals(httpRequest.getMethod())) {
+      // CORS preflight requests never carry credentials.
+      chain.doFilter(request, response);
+      return;
+    }
+
+    String header = httpRequest.getHeader("Authorization");
+    if (header == null || !header.regionMatches(true, 0, BEARER, 0, BEARER.length())) {
+      challenge(httpResponse, null);
+      return;
+    }
+    String token = header.substring(BEARER.length()).trim();
+
+    Introspection introspection;
+    try {
+      introspection = introspector.introspect(token);
+    } catch (IOException e) {
+      httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+          "Could not validate the access token");
+      return;
+    }
+    if (!introspection.isActive()) {
+      challenge(httpResponse, "invalid_token");
+      return;
+    }
+    request.setAttribute(INTROSPECTION_ATTRIBUTE, introspection);
+    chain.doFilter(request, response);
+  }
+
+  private static void challenge(HttpServletResponse response, String error) throws IOException {
+    response.setHeader("WWW-Authenticate",
+        error == null ? "Bearer" : "Bearer error=\"" + error + "\"");
+    response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+  }
+
+  @Override
+  public void destroy() {
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.time.Clock;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Asks the provider's token introspection endpoint about tokens over HTTP.
+ *
+ * <p>
+ * The token is POSTed as an RFC 7662 introspection request, authenticated
+ * with HTTP Basic if client credentials are given. A token is only active if
+ * the response says {@code "active": true}, as RFC 7662 requires. With
+ * {@link #setTokenInfo(boolean)}, responses in the style of Google's
+ * tokeninfo endpoint are understood instead: a token is active unless the
+ * response says otherwise or has an error. The expiry is taken from
+ * {@code exp} or {@code expires_in}.
+ * </p>
+ *
+ * <p>
+ * Active tokens are only accepted if they were issued to the audience, as
+ * named by their {@code aud}, {@code azp} or {@code client_id}. The audience
+ * defaults to the client ID. <b>Without either, tokens issued to any client
+ * are accepted.</b>
+ * </p>
+ */
+public class HttpIntrospector implements TokenIntrospector {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final URL endpoint;
+  private final String authorization;
+  private final String audience;
+  private final Clock clock;
+  private int timeoutMillis = 5000;
+  private boolean tokenInfo;
+
+  /**
+   * @param endpoint The introspection endpoint
+   * @param clientId The client ID to authenticate with, or null
+   * @param clientSecret The client secret to authenticate with, or null
+   */
+  public HttpIntrospector(URL endpoint, String clientId, String clientSecret) {
+    this(endpoint, clientId, clientSecret, null);
+  }
+
+  /**
+   * @param endpoint The introspection endpoint
+   * @param clientId The client ID to authenticate with, or null
+   * @param clientSecret The client secret to authenticate with, or null
+   * @param audience The client tokens must have been issued to, or null for
+   *        the client ID
+   */
+  public HttpIntrospector(URL endpoint, String clientId, String clientSecret, String audience) {
+    this(endpoint, clientId, clientSecret, audience, Clock.systemUTC());
+  }
+
+  HttpIntrospector(URL endpoint, String clientId, String clientSecret, String audience,
+      Clock clock) {
+    this.endpoint = endpoint;
+    this.authorization = clientId == null ? null : "Basic " + Base64.getEncoder().encodeToString(
+        (clientId + ":" + (clientSecret == null ? "" : clientSecret)).getBytes(UTF_8));
+    this.audience = audience != null ? audience : clientId;
+    this.clock = clock;
+  }
+
+  /** Sets the connect and read timeouts, in milliseconds. The default is 5 seconds. */
+  public HttpIntrospector setTimeout(int millis) {
+    this.timeoutMillis = millis;
+    return this;
+  }
+
+  /**
+   * Sets whether responses are in the style of Google's tokeninfo endpoint,
+   * which only describes valid tokens and has no {@code active} member. The
+   * default is RFC 7662, where a response without it is inactive.
+   */
+  public HttpIntrospector setTokenInfo(boolean tokenInfo) {
+    this.tokenInfo = tokenInfo;
+    return this;
+  }
+
+  @Override
+  public Introspection introspect(String token) throws IOException {
+    byte[] body = ("token=" + URLEncoder.encode(token, "UTF-8")
+        + "&token_type_hint=access_token").getBytes(UTF_8);
+    HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+    try {
+      connection.setConnectTimeout(timeoutMillis);
+      connection.setReadTimeout(timeoutMillis);
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+      connection.setRequestProperty("Accept", "application/json");
+      if (authorization != null) {
+        connection.setRequestProperty("Authorization", authorization);
+      }
+      OutputStream out = connection.getOutputStream();
+      try {
+        out.write(body);
+      } finally {
+        out.close();
+      }
+
+      int status = connection.getResponseCode();
+      if (status == HttpURLConnection.HTTP_BAD_REQUEST) {
+        // tokeninfo endpoints reject invalid tokens rather than describing them.
+        drain(connection.getErrorStream());
+        return Introspection.INACTIVE;
+      }
+      if (status != HttpURLConnection.HTTP_OK) {
+        drain(connection.getErrorStream());
+        throw new IOException("Introspection endpoint responded with " + status);
+      }
+      try {
+        return parse(new String(drain(connection.getInputStream()), UTF_8));
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Malformed introspection response", e);
+      }
+    } catch (IOException e) {
+      // Responses are drained and closed so the connection is kept alive for
+      // the next token, unless the exchange failed part way.
+      connection.disconnect();
+      throw e;
+    }
+  }
+
+  Introspection parse(String json) {
+    Map<String, Object> claims = Json.parseObject(json);
+    Object active = claims.get("active");
+    boolean activated = tokenInfo ? !Boolean.FALSE.equals(active) : Boolean.TRUE.equals(active);
+    if (!activated || claims.containsKey("error")
+        || (audience != null && !issuedToAudience(claims))) {
+      return Introspection.INACTIVE;
+    }
+    long expiresAt = 0;
+    double exp = Json.number(claims, "exp");
+    double expiresIn = Json.number(claims, "expires_in");
+    if (!Double.isNaN(exp)) {
+      expiresAt = (long) (exp * 1000);
+    } else if (!Double.isNaN(expiresIn)) {
+      expiresAt = clock.millis() + (long) (expiresIn * 1000);
+    }
+    String subject = Json.string(claims, "sub");
+    String clientId = Json.string(claims, "client_id");
+    return new Introspection(true,
+        subject != null ? subject : Json.string(claims, "user_id"),
+        clientId != null ? clientId : Json.string(claims, "aud"),
+        Json.string(claims, "scope"), expiresAt, claims);
+  }
+
+  /**
+   * Returns whether the token was issued to the audience. RFC 7662 responses
+   * name the client in {@code client_id}, tokeninfo responses in {@code aud}
+   * or {@code azp}, and {@code aud} may be a list.
+   */
+  private boolean issuedToAudience(Map<String, Object> claims) {
+    Object aud = claims.get("aud");
+    if (aud instanceof List ? ((List<?>) aud).contains(audience) : audience.equals(aud)) {
+      return true;
+    }
+    return audience.equals(claims.get("azp")) || audience.equals(claims.get("client_id"));
+  }
+
+  static byte[] drain(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    if (in == null) {
+      return bytes.toByteArray();
+    }
+    try {
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        bytes.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.server;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+/**
+ * Fetches the provider's key set over HTTP, for example from Google's
+ * {@code https://www.googleapis.com/oauth2/v3/certs}.
+ */
+public class HttpJwksSource implements JwksSource {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final URL url;
+  private int timeoutMillis = 5000;
+
+  /**
+   * @param url The provider's {@code jwks_uri}
+   */
+  public HttpJwksSource(URL url) {
+    this.url = url;
+  }
+
+  /** Sets the connect and read timeouts, in milliseconds. The default is 5 seconds. */
+  public HttpJwksSource setTimeout(int millis) {
+    this.timeoutMillis = millis;
+    return this;
+  }
+
+  @Override
+  public String fetch() throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    try {
+      connection.setConnectTimeout(timeoutMillis);
+      connection.setReadTimeout(timeoutMillis);
+      connection.setRequestProperty("Accept", "application/json");
+      int status = connection.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) {
+        HttpIntrospector.drain(connection.getErrorStream());
+        throw new IOException("Key set endpoint responded with " + status);
+      }
+      return new String(HttpIntrospector.drain(connection.getInputStream()), UTF_8);
+    } finally {
+      connection.disconnect();
+    }
+  }
+}
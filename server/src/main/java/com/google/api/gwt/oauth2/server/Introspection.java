@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.server;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * What the provider knows about an access token, as returned by its
+ * introspection (RFC 7662) or tokeninfo endpoint.
+ */
+public final class Introspection {
+
+  /** The result for a token which is invalid, expired or revoked. */
+  public static final Introspection INACTIVE =
+      new Introspection(false, null, null, null, 0, Collections.<String, Object>emptyMap());
+
+  private final boolean active;
+  private final String subject;
+  private final String clientId;
+  private final String scope;
+  private final long expiresAt;
+  private final Map<String, Object> claims;
+
+  /**
+   * @param expiresAt When the token expires, in milliseconds since the epoch,
+   *        or 0 if unknown
+   */
+  public Introspection(boolean active, String subject, String clientId, String scope,
+      long expiresAt, Map<String, Object> claims) {
+    this.active = active;
+    this.subject = subject;
+    this.clientId = clientId;
+    this.scope = scope;
+    this.expiresAt = expiresAt;
+    this.claims = claims;
+  }
+
+  /** Returns whether the token is valid. */
+  public boolean isActive() {
+    return active;
+  }
+
+  /** Returns the user the token was issued for, or null. */
+  public String getSubject() {
+    return subject;
+  }
+
+  /** Returns the client the token was issued to, or null. */
+  public String getClientId() {
+    return clientId;
+  }
+
+  /** Returns the space-separated scopes the token grants, or null. */
+  public String getScope() {
+    return scope;
+  }
+
+  /** Returns whether the token grants the given scope. */
+  public boolean hasScope(String wanted) {
+    if (scope == null) {
+      return false;
+    }
+    for (String s : scope.split(" ")) {
+      if (s.equals(wanted)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns when the token expires, in milliseconds since the epoch, or 0 if
+   * unknown.
+   */
+  public long getExpiresAt() {
+    return expiresAt;
+  }
+
+  /** Returns every member of the provider's response. */
+  public Map<String, Object> getClaims() {
+    return claims;
+  }
+
+  @Override
+  public String toString() {
+    return "Introspection{active=" + active + ", subject='" + subject + "', clientId='"
+        + clientId + "', scope='" + scope + "', expiresAt=" + expiresAt + '}';
+  }
+}
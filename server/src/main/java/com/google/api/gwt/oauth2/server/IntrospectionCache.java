@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Clock;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers what a {@link TokenIntrospector} said about tokens, so that the
+ * provider is only asked once per token and time to live.
+ *
+ * <p>
+ * A result is kept for the time to live given to the cache, but never past
+ * the expiry of the token itself. Results for inactive tokens are kept for a
+ * shorter time. Once the cache holds its maximum number of entries, the least
+ * recently used one is evicted for each new one. Concurrent validations of
+ * the same token which miss the cache wait for a single introspection.
+ * </p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+public class IntrospectionCache implements TokenIntrospector {
+
+  private static class Entry {
+    final Introspection result;
+    final long until;
+
+    Entry(Introspection result, long until) {
+      this.result = result;
+      this.until = until;
+    }
+  }
+
+  private final TokenIntrospector introspector;
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final long negativeTtlMillis;
+  private final Clock clock;
+
+  /** Entries in access order, guarded by their own lock. */
+  private final LinkedHashMap<String, Entry> entries;
+  private final ConcurrentHashMap<String, CompletableFuture<Introspection>> inFlight =
+      new ConcurrentHashMap<String, CompletableFuture<Introspection>>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param introspector Asks the provider about tokens missing from the cache
+   * @param maxEntries The number of tokens to remember at most
+   * @param ttlMillis How long to remember a valid token, at most
+   */
+  public IntrospectionCache(TokenIntrospector introspector, int maxEntries, long ttlMillis) {
+    this(introspector, maxEntries, ttlMillis, Math.min(ttlMillis, 10000), Clock.systemUTC());
+  }
+
+  /**
+   * @param negativeTtlMillis How long to remember an inactive token
+   */
+  IntrospectionCache(TokenIntrospector introspector, int maxEntries, long ttlMillis,
+      long negativeTtlMillis, Clock clock) {
+    this.introspector = introspector;
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+    this.negativeTtlMillis = negativeTtlMillis;
+    this.clock = clock;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > IntrospectionCache.this.maxEntries;
+      }
+    };
+  }
+
+  @Override
+  public Introspection introspect(String token) throws IOException {
+    Entry entry = get(token);
+    if (entry != null) {
+      hits.incrementAndGet();
+      return entry.result;
+    }
+
+    CompletableFuture<Introspection> future = new CompletableFuture<Introspection>();
+    CompletableFuture<Introspection> running = inFlight.putIfAbsent(token, future);
+    if (running != null) {
+      // Another thread is already asking about this token.
+      hits.incrementAndGet();
+      return await(running);
+    }
+    try {
+      // The result may have arrived since the first look.
+      entry = get(token);
+      Introspection result;
+      if (entry != null) {
+        hits.incrementAndGet();
+        result = entry.result;
+      } else {
+        misses.incrementAndGet();
+        result = introspector.introspect(token);
+        put(token, result);
+      }
+      future.complete(result);
+      return result;
+    } catch (Throwable e) {
+      // Any failure, Errors included, must reach the threads waiting for it.
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(token, future);
+    }
+  }
+
+  /** Returns the unexpired entry for the token, marking it as recently used. */
+  private Entry get(String token) {
+    synchronized (entries) {
+      Entry entry = entries.get(token);
+      if (entry != null && clock.millis() >= entry.until) {
+        entries.remove(token);
+        return null;
+      }
+      return entry;
+    }
+  }
+
+  private void put(String token, Introspection result) {
+    long now = clock.millis();
+    long until;
+    if (result.isActive()) {
+      until = now + ttlMillis;
+      if (result.getExpiresAt() > 0) {
+        until = Math.min(until, result.getExpiresAt());
+      }
+    } else {
+      until = now + negativeTtlMillis;
+    }
+    synchronized (entries) {
+      if (until <= now) {
+        entries.remove(token);
+      } else {
+        entries.put(token, new Entry(result, until));
+      }
+    }
+  }
+
+  private static Introspection await(CompletableFuture<Introspection> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for introspection");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /** Forgets the result for the given token, for example once it is revoked. */
+  public void invalidate(String token) {
+    synchronized (entries) {
+      entries.remove(token);
+    }
+  }
+
+  /** Returns the number of tokens currently remembered. */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /** Returns how many validations were answered without a new introspection. */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** Returns how many validations needed a new introspection. */
+  public long getMissCount() {
+    return misses.get();
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser for the provider's responses, so that this module
+ * needs no JSON library.
+ *
+ * <p>
+ * Objects are parsed to Maps, arrays to Lists, numbers to Doubles, and
+ * {@code true}, {@code false} and {@code null} to Booleans and null.
+ * </p>
+ */
+final class Json {
+  private final String json;
+  private int pos;
+
+  private Json(String json) {
+    this.json = json;
+  }
+
+  /** Parses a JSON object. */
+  @SuppressWarnings("unchecked")
+  static Map<String, Object> parseObject(String json) {
+    Object value = parse(json);
+    if (!(value instanceof Map)) {
+      throw new IllegalArgumentException("Not a JSON object: " + json);
+    }
+    return (Map<String, Object>) value;
+  }
+
+  static Object parse(String json) {
+    Json parser = new Json(json);
+    Object value = parser.value();
+    parser.skipWhitespace();
+    if (parser.pos != json.length()) {
+      throw parser.error();
+    }
+    return value;
+  }
+
+  /** Returns a member as a string, also for numbers and booleans, or null. */
+  static String string(Map<String, Object> object, String name) {
+    Object value = object.get(name);
+    if (value instanceof Double && (Double) value == Math.floor((Double) value)) {
+      return String.valueOf(((Double) value).longValue());
+    }
+    return value == null ? null : value.toString();
+  }
+
+  /** Returns a member as a number, also when given as a string, or NaN. */
+  static double number(Map<String, Object> object, String name) {
+    Object value = object.get(name);
+    if (value instanceof Double) {
+      return (Double) value;
+    }
+    if (value instanceof String) {
+      try {
+        return Double.parseDouble((String) value);
+      } catch (NumberFormatException e) {
+        return Double.NaN;
+      }
+    }
+    return Double.NaN;
+  }
+
+  private Object value() {
+    skipWhitespace();
+    if (pos >= json.length()) {
+      throw error();
+    }
+    switch (json.charAt(pos)) {
+      case '{':
+        return object();
+      case '[':
+        return array();
+      case '"':
+        return string();
+      case 't':
+        return literal("true", Boolean.TRUE);
+      case 'f':
+        return literal("false", Boolean.FALSE);
+      case 'n':
+        return literal("null", null);
+      default:
+        return number();
+    }
+  }
+
+  private Map<String, Object> object() {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    pos++;
+    skipWhitespace();
+    if (peek() == '}') {
+      pos++;
+      return map;
+    }
+    while (true) {
+      skipWhitespace();
+      if (peek() != '"') {
+        throw error();
+      }
+      String key = string();
+      skipWhitespace();
+      expect(':');
+      map.put(key, value());
+      skipWhitespace();
+      if (peek() == ',') {
+        pos++;
+      } else {
+        expect('}');
+        return map;
+      }
+    }
+  }
+
+  private List<Object> array() {
+    List<Object> list = new ArrayList<Object>();
+    pos++;
+    skipWhitespace();
+    if (peek() == ']') {
+      pos++;
+      return list;
+    }
+    while (true) {
+      list.add(value());
+      skipWhitespace();
+      if (peek() == ',') {
+        pos++;
+      } else {
+        expect(']');
+        return list;
+      }
+    }
+  }
+
+  private String string() {
+    pos++;
+    StringBuilder sb = new StringBuilder();
+    while (true) {
+      if (pos >= json.length()) {
+        throw error();
+      }
+      char c = json.charAt(pos++);
+      if (c == '"') {
+        return sb.toString();
+      } else if (c != '\\') {
+        sb.append(c);
+        continue;
+      }
+      if (pos >= json.length()) {
+        throw error();
+      }
+      char escaped = json.charAt(pos++);
+      switch (escaped) {
+        case 'b':
+          sb.append('\b');
+          break;
+        case 'f':
+          sb.append('\f');
+          break;
+        case 'n':
+          sb.append('\n');
+          break;
+        case 'r':
+          sb.append('\r');
+          break;
+        case 't':
+          sb.append('\t');
+          break;
+        case 'u':
+          if (pos + 4 > json.length()) {
+            throw error();
+          }
+          sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+          pos += 4;
+          break;
+        default:
+          sb.append(escaped);
+      }
+    }
+  }
+
+  private Double number() {
+    int start = pos;
+    while (pos < json.length() && "+-0123456789.eE".indexOf(json.charAt(pos)) >= 0) {
+      pos++;
+    }
+    try {
+      return Double.valueOf(json.substring(start, pos));
+    } catch (NumberFormatException e) {
+      throw error();
+    }
+  }
+
+  private Object literal(String literal, Object value) {
+    if (!json.startsWith(literal, pos)) {
+      throw error();
+    }
+    pos += literal.length();
+    return value;
+  }
+
+  private void expect(char c) {
+    if (peek() != c) {
+      throw error();
+    }
+    pos++;
+  }
+
+  private char peek() {
+    return pos < json.length() ? json.charAt(pos) : 0;
+  }
+
+  private void skipWhitespace() {
+    while (pos < json.length() && " \t\r\n".indexOf(json.charAt(pos)) >= 0) {
+      pos++;
+    }
+  }
+
+  private IllegalArgumentException error() {
+    return new IllegalArgumentException("Malformed JSON at " + pos + ": " + json);
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.server;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.time.Clock;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the provider's signing keys, so that tokens can be verified without
+ * asking the provider.
+ *
+ * <p>
+ * The key set is fetched on first use, and refreshed in the background once
+ * it is older than the refresh interval, while the old keys keep being
+ * served. A token signed with a key which is not known yet, as happens right
+ * after the provider rotates its keys, causes an immediate refresh, but no
+ * more often than the minimum refresh interval so that made-up key IDs
+ * cannot be used to hammer the provider.
+ * </p>
+ *
+ * <p>RSA and EC keys are supported. This class is thread-safe.</p>
+ */
+public class JwksCache {
+
+  /** Runs each background refresh on its own daemon thread. */
+  private static final Executor BACKGROUND = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      Thread thread = new Thread(command, "jwks-refresh");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  };
+
+  private final JwksSource source;
+  private final long refreshMillis;
+  private final long minRefreshMillis;
+  private final Executor executor;
+  private final Clock clock;
+
+  private final Object lock = new Object();
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+  private volatile Map<String, PublicKey> keys;
+  private volatile long fetchedAt;
+  private volatile long attemptedAt;
+
+  /**
+   * Creates a cache refreshing the key set every hour, and at most every 30
+   * seconds for unknown keys.
+   */
+  public JwksCache(JwksSource source) {
+    this(source, 60 * 60 * 1000, 30 * 1000);
+  }
+
+  /**
+   * @param source Where to fetch the key set from
+   * @param refreshMillis How old the key set may get before it is refreshed
+   * @param minRefreshMillis How long to wait between refreshes for unknown keys
+   */
+  public JwksCache(JwksSource source, long refreshMillis, long minRefreshMillis) {
+    this(source, refreshMillis, minRefreshMillis, BACKGROUND, Clock.systemUTC());
+  }
+
+  JwksCache(JwksSource source, long refreshMillis, long minRefreshMillis, Executor executor,
+      Clock clock) {
+    this.source = source;
+    this.refreshMillis = refreshMillis;
+    this.minRefreshMillis = minRefreshMillis;
+    this.executor = executor;
+    this.clock = clock;
+  }
+
+  /**
+   * Returns the key with the given ID, or null if the provider has no such
+   * key. Without an ID, the provider's only key is returned, if it has one.
+   *
+   * @throws IOException if the key set had to be fetched but could not be
+   */
+  public PublicKey getKey(String kid) throws IOException {
+    Map<String, PublicKey> current = keys;
+    long now = clock.millis();
+    if (current == null) {
+      current = refresh(null);
+    } else if (now - fetchedAt >= refreshMillis && now - attemptedAt >= minRefreshMillis) {
+      refreshInBackground(current);
+    }
+    PublicKey key = find(current, kid);
+    if (key == null && now - attemptedAt >= minRefreshMillis) {
+      // The provider may have rotated its keys since they were fetched.
+      key = find(refresh(current), kid);
+    }
+    return key;
+  }
+
+  private static PublicKey find(Map<String, PublicKey> keys, String kid) {
+    if (kid == null && keys.size() == 1) {
+      return keys.values().iterator().next();
+    }
+    return keys.get(kid);
+  }
+
+  /**
+   * Fetches the key set, unless another thread replaced the given one while
+   * this one waited for the lock.
+   */
+  private Map<String, PublicKey> refresh(Map<String, PublicKey> seen) throws IOException {
+    synchronized (lock) {
+      if (keys != seen) {
+        return keys;
+      }
+      attemptedAt = clock.millis();
+      Map<String, PublicKey> fetched;
+      try {
+        fetched = parse(source.fetch());
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Malformed key set", e);
+      }
+      keys = fetched;
+      fetchedAt = attemptedAt;
+      return fetched;
+    }
+  }
+
+  private void refreshInBackground(final Map<String, PublicKey> seen) {
+    if (!refreshing.compareAndSet(false, true)) {
+      return;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          refresh(seen);
+        } catch (IOException e) {
+          // Keep serving the old keys, and try again after minRefreshMillis.
+        } finally {
+          refreshing.set(false);
+        }
+      }
+    });
+  }
+
+  /** Parses a key set, skipping keys which are not for signatures or not supported. */
+  @SuppressWarnings("unchecked")
+  static Map<String, PublicKey> parse(String json) {
+    Object list = Json.parseObject(json).get("keys");
+    if (!(list instanceof List)) {
+      throw new IllegalArgumentException("No keys in key set: " + json);
+    }
+    Map<String, PublicKey> keys = new HashMap<String, PublicKey>();
+    for (Object item : (List<Object>) list) {
+      if (!(item instanceof Map)) {
+        continue;
+      }
+      Map<String, Object> jwk = (Map<String, Object>) item;
+      String use = Json.string(jwk, "use");
+      if (use != null && !use.equals("sig")) {
+        continue;
+      }
+      try {
+        PublicKey key = toKey(jwk);
+        if (key != null) {
+          keys.put(Json.string(jwk, "kid"), key);
+        }
+      } catch (GeneralSecurityException e) {
+        // Not a key this JVM can use.
+      } catch (IllegalArgumentException e) {
+        // Malformed key.
+      }
+    }
+    return Collections.unmodifiableMap(keys);
+  }
+
+  private static PublicKey toKey(Map<String, Object> jwk) throws GeneralSecurityException {
+    String kty = Json.string(jwk, "kty");
+    if ("RSA".equals(kty)) {
+      return KeyFactory.getInstance("RSA").generatePublic(
+          new RSAPublicKeySpec(integer(jwk, "n"), integer(jwk, "e")));
+    } else if ("EC".equals(kty)) {
+      String crv = Json.string(jwk, "crv");
+      String curve = "P-256".equals(crv) ? "secp256r1"
+          : "P-384".equals(crv) ? "secp384r1"
+          : "P-521".equals(crv) ? "secp521r1" : null;
+      if (curve == null) {
+        return null;
+      }
+      AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+      parameters.init(new ECGenParameterSpec(curve));
+      return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(
+          new ECPoint(integer(jwk, "x"), integer(jwk, "y")),
+          parameters.getParameterSpec(ECParameterSpec.class)));
+    }
+    return null;
+  }
+
+  private static BigInteger integer(Map<String, Object> jwk, String name) {
+    String value = Json.string(jwk, name);
+    if (value == null) {
+      throw new IllegalArgumentException("Missing " + name);
+    }
+    return new BigInteger(1, Base64.getUrlDecoder().decode(value));
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.server;
+
+import java.io.IOException;
+
+/**
+ * Where a {@link JwksCache} gets the provider's signing keys from: a JSON Web
+ * Key Set (RFC 7517) document.
+ *
+ * <p>See {@link HttpJwksSource}.</p>
+ */
+public interface JwksSource {
+
+  /**
+   * Returns the current key set, as JSON.
+   *
+   * @throws IOException if the key set could not be fetched
+   */
+  String fetch() throws IOException;
+}
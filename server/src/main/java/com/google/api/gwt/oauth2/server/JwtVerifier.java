@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Verifies access tokens issued as signed JWTs locally, with the provider's
+ * keys from a {@link JwksCache}, instead of asking the provider about each
+ * token.
+ *
+ * <p>
+ * A token is active if it is signed with RS256, RS384, RS512, ES256, ES384 or
+ * ES512 by one of the provider's keys, has not expired, is not used before
+ * its {@code nbf}, and was issued by the expected issuer for the expected
+ * audience. ES algorithms also need a key on their curve, and a signature of
+ * exactly the curve's size.
+ * </p>
+ *
+ * <p>
+ * The token must be an access token: its {@code typ} is {@code at+jwt}, as
+ * RFC 9068 requires, or else {@code JWT} or missing, as many providers still
+ * issue them, in which case it must not carry the {@code nonce} or
+ * {@code at_hash} of an OpenID Connect id_token. Otherwise an id_token issued
+ * to a client whose ID is also the expected audience would be accepted as an
+ * access token. Verification costs a signature check, so wrap the verifier in an
+ * {@link IntrospectionCache} to verify each token only once until it
+ * expires.
+ * </p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+public class JwtVerifier implements TokenIntrospector {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final JwksCache keys;
+  private final String issuer;
+  private final String audience;
+  private final Clock clock;
+  private long leewayMillis = 30000;
+
+  /**
+   * @param keys The provider's signing keys
+   * @param issuer The required {@code iss} of tokens, or null to accept any
+   * @param audience The required {@code aud} of tokens, or null to accept any
+   */
+  public JwtVerifier(JwksCache keys, String issuer, String audience) {
+    this(keys, issuer, audience, Clock.systemUTC());
+  }
+
+  JwtVerifier(JwksCache keys, String issuer, String audience, Clock clock) {
+    this.keys = keys;
+    this.issuer = issuer;
+    this.audience = audience;
+    this.clock = clock;
+  }
+
+  /**
+   * Sets how far the provider's clock may be off when checking {@code exp}
+   * and {@code nbf}, in milliseconds. The default is 30 seconds.
+   */
+  public JwtVerifier setLeeway(long millis) {
+    this.leewayMillis = millis;
+    return this;
+  }
+
+  /**
+   * Returns the claims of the token if it is valid, or an inactive result.
+   *
+   * @throws IOException if the provider's keys could not be fetched
+   */
+  @Override
+  public Introspection introspect(String token) throws IOException {
+    String[] parts = token.split("\\.", -1);
+    if (parts.length != 3) {
+      return Introspection.INACTIVE;
+    }
+    Map<String, Object> header;
+    Map<String, Object> claims;
+    byte[] signature;
+    try {
+      header = Json.parseObject(new String(decode(parts[0]), UTF_8));
+      claims = Json.parseObject(new String(decode(parts[1]), UTF_8));
+      signature = decode(parts[2]);
+    } catch (IllegalArgumentException e) {
+      return Introspection.INACTIVE;
+    }
+
+    // Check the claims first, as they are much cheaper than the signature.
+    if (!isAccessToken(header, claims)) {
+      return Introspection.INACTIVE;
+    }
+    double exp = Json.number(claims, "exp");
+    double nbf = Json.number(claims, "nbf");
+    long now = clock.millis();
+    if (Double.isNaN(exp) || now >= exp * 1000 + leewayMillis
+        || (!Double.isNaN(nbf) && now < nbf * 1000 - leewayMillis)
+        || (issuer != null && !issuer.equals(Json.string(claims, "iss")))
+        || (audience != null && !hasAudience(claims.get("aud")))) {
+      return Introspection.INACTIVE;
+    }
+
+    String alg = Json.string(header, "alg");
+    PublicKey key = keys.getKey(Json.string(header, "kid"));
+    if (alg == null || key == null || !verify(alg, key,
+        (parts[0] + "." + parts[1]).getBytes(UTF_8), signature)) {
+      return Introspection.INACTIVE;
+    }
+
+    String clientId = Json.string(claims, "client_id");
+    return new Introspection(true, Json.string(claims, "sub"),
+        clientId != null ? clientId : Json.string(claims, "azp"), scope(claims),
+        (long) (exp * 1000), claims);
+  }
+
+  /** Returns whether the token is typed as an access token, or at least not as an id_token. */
+  private static boolean isAccessToken(Map<String, Object> header, Map<String, Object> claims) {
+    String typ = Json.string(header, "typ");
+    if (typ != null) {
+      typ = typ.toLowerCase(Locale.ROOT);
+      if (typ.equals("at+jwt") || typ.equals("application/at+jwt")) {
+        return true;
+      }
+      if (!typ.equals("jwt")) {
+        return false;
+      }
+    }
+    return !claims.containsKey("nonce") && !claims.containsKey("at_hash");
+  }
+
+  private boolean hasAudience(Object aud) {
+    if (aud instanceof List) {
+      return ((List<?>) aud).contains(audience);
+    }
+    return audience.equals(aud);
+  }
+
+  /** Returns the scopes, given as a string or, by some providers, as a list. */
+  private static String scope(Map<String, Object> claims) {
+    String scope = Json.string(claims, "scope");
+    Object scp = claims.get("scp");
+    if (scope == null && scp instanceof List) {
+      StringBuilder sb = new StringBuilder();
+      for (Object s : (List<?>) scp) {
+        sb.append(sb.length() == 0 ? "" : " ").append(s);
+      }
+      return sb.toString();
+    }
+    return scope != null ? scope : Json.string(claims, "scp");
+  }
+
+  private static byte[] decode(String part) {
+    return Base64.getUrlDecoder().decode(part);
+  }
+
+  static boolean verify(String alg, PublicKey key, byte[] content, byte[] signature) {
+    String digest;
+    if (alg.equals("RS256") || alg.equals("ES256")) {
+      digest = "SHA256";
+    } else if (alg.equals("RS384") || alg.equals("ES384")) {
+      digest = "SHA384";
+    } else if (alg.equals("RS512") || alg.equals("ES512")) {
+      digest = "SHA512";
+    } else {
+      // Notably "none", and HMAC which would need a shared secret.
+      return false;
+    }
+    try {
+      Signature verifier;
+      if (alg.startsWith("RS") && key instanceof RSAPublicKey) {
+        verifier = Signature.getInstance(digest + "withRSA");
+      } else if (alg.startsWith("ES") && key instanceof ECPublicKey) {
+        // ES512 is on P-521, the others on the curve of their digest's size.
+        int fieldSize = ((ECPublicKey) key).getParams().getCurve().getField().getFieldSize();
+        if (fieldSize != (alg.equals("ES512") ? 521 : Integer.parseInt(alg.substring(2)))) {
+          return false;
+        }
+        verifier = Signature.getInstance(digest + "withECDSA");
+        signature = toDer(signature, 2 * ((fieldSize + 7) / 8));
+      } else {
+        return false;
+      }
+      verifier.initVerify(key);
+      verifier.update(content);
+      return verifier.verify(signature);
+    } catch (GeneralSecurityException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Converts an ECDSA signature from the JWS encoding, the two integers
+   * concatenated, to the DER sequence expected by {@link Signature}. The JWS
+   * encoding has a fixed length for each curve: 64, 96 and 132 bytes for
+   * ES256, ES384 and ES512.
+   */
+  static byte[] toDer(byte[] jose, int length) throws GeneralSecurityException {
+    if (jose.length != length) {
+      throw new GeneralSecurityException("Malformed ECDSA signature");
+    }
+    int half = jose.length / 2;
+    byte[] r = new BigInteger(1, Arrays.copyOfRange(jose, 0, half)).toByteArray();
+    byte[] s = new BigInteger(1, Arrays.copyOfRange(jose, half, jose.length)).toByteArray();
+    ByteArrayOutputStream der = new ByteArrayOutputStream();
+    der.write(0x30);
+    writeLength(der, 2 + r.length + 2 + s.length);
+    der.write(0x02);
+    writeLength(der, r.length);
+    der.write(r, 0, r.length);
+    der.write(0x02);
+    writeLength(der, s.length);
+    der.write(s, 0, s.length);
+    return der.toByteArray();
+  }
+
+  private static void writeLength(ByteArrayOutputStream der, int length) {
+    if (length >= 128) {
+      der.write(0x81);
+    }
+    der.write(length);
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.server;
+
+import java.io.IOException;
+
+/**
+ * Asks the provider whether an access token is valid, and what it grants.
+ *
+ * <p>See {@link HttpIntrospector}, and {@link IntrospectionCache} to avoid
+ * asking for every request.</p>
+ */
+public interface TokenIntrospector {
+
+  /**
+   * Returns what the provider knows about the token. Tokens which are
+   * invalid, expired or revoked are returned as inactive rather than failing.
+   *
+   * @throws IOException if the provider could not be asked
+   */
+  Introspection introspect(String token) throws IOException;
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load benchmark of {@link BearerTokenFilter}: many threads validating tokens
+ * drawn from a pool, against a local stub provider answering after a
+ * simulated network latency, with and without the {@link IntrospectionCache}.
+ *
+ * <p>Run with: {@code mvn -Pbench test-compile exec:exec}</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@Threads(16)
+public class BearerTokenFilterBenchmark {
+
+  /** Number of distinct tokens in use at the same time. */
+  @Param({"100", "10000"})
+  int tokens;
+
+  /** Latency of the stub provider, in milliseconds. */
+  @Param({"5"})
+  long latency;
+
+  private BearerTokenFilterTest.StubProvider provider;
+  private BearerTokenFilter cached;
+  private BearerTokenFilter uncached;
+  private String[] headers;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    provider = BearerTokenFilterTest.StubProvider.start();
+    provider.latencyMillis = latency;
+    HttpIntrospector http = new HttpIntrospector(provider.url(), "server", "secret");
+    cached = new BearerTokenFilter(new IntrospectionCache(http, 5000, 300000));
+    uncached = new BearerTokenFilter(http);
+    headers = new String[tokens];
+    for (int i = 0; i < tokens; i++) {
+      headers[i] = "Bearer good-" + i;
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    provider.stop();
+  }
+
+  private BearerTokenFilterTest.MockExchange exchange() {
+    return new BearerTokenFilterTest.MockExchange("POST",
+        headers[ThreadLocalRandom.current().nextInt(headers.length)]);
+  }
+
+  @Benchmark
+  public boolean cached() throws Exception {
+    BearerTokenFilterTest.MockExchange exchange = exchange();
+    cached.doFilter(exchange.request(), exchange.response(), exchange);
+    return exchange.passed;
+  }
+
+  @Benchmark
+  public boolean uncached() throws Exception {
+    BearerTokenFilterTest.MockExchange exchange = exchange();
+    uncached.doFilter(exchange.request(), exchange.response(), exchange);
+    return exchange.passed;
+  }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link BearerTokenFilter} and {@link HttpIntrospector}, against a
+ * local stub of the provider's introspection endpoint.
+ */
+public class BearerTokenFilterTest {
+
+  private StubProvider provider;
+  private BearerTokenFilter filter;
+
+  @Before
+  public void setUp() throws Exception {
+    provider = StubProvider.start();
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("introspection-url", provider.url().toString());
+    params.put("client-id", "server");
+    params.put("client-secret", "secret");
+    filter = new BearerTokenFilter();
+    filter.init(filterConfig(params));
+  }
+
+  @After
+  public void tearDown() {
+    provider.stop();
+  }
+
+  @Test
+  public void testValidToken() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      MockExchange exchange = new MockExchange("GET", "Bearer good");
+      filter.doFilter(exchange.request(), exchange.response(), exchange);
+      assertTrue(exchange.passed);
+      Introspection introspection =
+          (Introspection) exchange.attributes.get(BearerTokenFilter.INTROSPECTION_ATTRIBUTE);
+      assertEquals("user-1", introspection.getSubject());
+      assertEquals("server", introspection.getClientId());
+      assertTrue(introspection.hasScope("email"));
+    }
+    // The provider was only asked once, with the filter's credentials.
+    assertEquals(1, provider.requests.get());
+    assertEquals("Basic c2VydmVyOnNlY3JldA==", provider.lastAuthorization);
+  }
+
+  @Test
+  public void testInvalidToken() throws Exception {
+    MockExchange exchange = new MockExchange("GET", "Bearer revoked");
+    filter.doFilter(exchange.request(), exchange.response(), exchange);
+    assertFalse(exchange.passed);
+    assertEquals(401, exchange.status);
+    assertEquals("Bearer error=\"invalid_token\"", exchange.headers.get("WWW-Authenticate"));
+
+    // Garbage is rejected by tokeninfo-style endpoints with 400.
+    exchange = new MockExchange("GET", "Bearer garbage");
+    filter.doFilter(exchange.request(), exchange.response(), exchange);
+    assertEquals(401, exchange.status);
+  }
+
+  @Test
+  public void testOtherAudience() throws Exception {
+    // A token the provider issued to another client is not accepted here.
+    MockExchange exchange = new MockExchange("GET", "Bearer foreign");
+    filter.doFilter(exchange.request(), exchange.response(), exchange);
+    assertFalse(exchange.passed);
+    assertEquals(401, exchange.status);
+    assertEquals("Bearer error=\"invalid_token\"", exchange.headers.get("WWW-Authenticate"));
+  }
+
+  @Test
+  public void testMissingToken() throws Exception {
+    MockExchange exchange = new MockExchange("GET", null);
+    filter.doFilter(exchange.request(), exchange.response(), exchange);
+    assertEquals(401, exchange.status);
+    assertEquals("Bearer", exchange.headers.get("WWW-Authenticate"));
+
+    exchange = new MockExchange("GET", "Basic dXNlcjpwYXNz");
+    filter.doFilter(exchange.request(), exchange.response(), exchange);
+    assertEquals(401, exchange.status);
+
+    exchange = new MockExchange("OPTIONS", null);
+    filter.doFilter(exchange.request(), exchange.response(), exchange);
+    assertTrue(exchange.passed);
+    assertEquals(0, provider.requests.get());
+  }
+
+  @Test
+  public void testProviderDown() throws Exception {
+    provider.stop();
+    MockExchange exchange = new MockExchange("GET", "Bearer good");
+    filter.doFilter(exchange.request(), exchange.response(), exchange);
+    assertFalse(exchange.passed);
+    assertEquals(503, exchange.status);
+  }
+
+  @Test
+  public void testTokenInfoResponse() {
+    IntrospectionCacheTest.MockClock clock = new IntrospectionCacheTest.MockClock();
+    HttpIntrospector introspector =
+        new HttpIntrospector(provider.url(), null, null, "client-2", clock).setTokenInfo(true);
+    Introspection introspection = introspector.parse(
+        "{\"aud\":\"client-2\",\"user_id\":\"42\",\"scope\":\"a b\",\"expires_in\":\"3599\"}");
+    assertTrue(introspection.isActive());
+    assertEquals("42", introspection.getSubject());
+    assertEquals("client-2", introspection.getClientId());
+    assertEquals(clock.now + 3599000, introspection.getExpiresAt());
+    assertFalse(introspector.parse("{\"error\":\"invalid_token\"}").isActive());
+
+    // The audience may also be named by azp, or be one of several.
+    assertTrue(introspector.parse("{\"aud\":\"api\",\"azp\":\"client-2\"}").isActive());
+    assertTrue(introspector.parse("{\"aud\":[\"api\",\"client-2\"]}").isActive());
+    assertFalse(introspector.parse("{\"aud\":\"client-3\",\"user_id\":\"42\"}").isActive());
+    assertFalse(introspector.parse("{\"user_id\":\"42\"}").isActive());
+  }
+
+  @Test
+  public void testIntrospectionResponse() {
+    // The audience defaults to the client ID the endpoint is asked with.
+    HttpIntrospector introspector = new HttpIntrospector(provider.url(), "server", "secret");
+    assertTrue(introspector.parse("{\"active\":true,\"client_id\":\"server\"}").isActive());
+    assertFalse(introspector.parse("{\"active\":true,\"client_id\":\"client-1\"}").isActive());
+
+    // RFC 7662 requires the active member.
+    assertFalse(introspector.parse("{\"client_id\":\"server\"}").isActive());
+    assertFalse(introspector.parse("{\"active\":\"true\",\"client_id\":\"server\"}").isActive());
+  }
+
+  static FilterConfig filterConfig(final Map<String, String> params) {
+    return proxy(FilterConfig.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("getInitParameter")) {
+          return params.get(args[0]);
+        }
+        throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler);
+  }
+
+  /** A request and response pair, and the rest of the filter chain. */
+  static class MockExchange implements FilterChain {
+    final String method;
+    final String authorization;
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    final Map<String, String> headers = new HashMap<String, String>();
+    int status = 200;
+    boolean passed;
+
+    MockExchange(String method, String authorization) {
+      this.method = method;
+      this.authorization = authorization;
+    }
+
+    HttpServletRequest request() {
+      return proxy(HttpServletRequest.class, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) {
+          if (m.getName().equals("getMethod")) {
+            return method;
+          } else if (m.getName().equals("getHeader")) {
+            return "Authorization".equalsIgnoreCase((String) args[0]) ? authorization : null;
+          } else if (m.getName().equals("setAttribute")) {
+            attributes.put((String) args[0], args[1]);
+            return null;
+          }
+          throw new UnsupportedOperationException(m.getName());
+        }
+      });
+    }
+
+    HttpServletResponse response() {
+      return proxy(HttpServletResponse.class, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) {
+          if (m.getName().equals("setHeader")) {
+            headers.put((String) args[0], (String) args[1]);
+            return null;
+          } else if (m.getName().equals("sendError")) {
+            status = (Integer) args[0];
+            return null;
+          }
+          throw new UnsupportedOperationException(m.getName());
+        }
+      });
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response)
+        throws IOException, ServletException {
+      passed = true;
+    }
+  }
+
+  /**
+   * Stub introspection endpoint: "good" is active, "revoked" is inactive, and
+   * anything else is rejected with 400 as tokeninfo endpoints do.
+   */
+  static class StubProvider implements HttpHandler {
+    final AtomicInteger requests = new AtomicInteger();
+    volatile String lastAuthorization;
+    volatile long latencyMillis;
+    private HttpServer server;
+
+    static StubProvider start() throws IOException {
+      StubProvider provider = new StubProvider();
+      provider.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      provider.server.createContext("/introspect", provider);
+      provider.server.setExecutor(Executors.newCachedThreadPool());
+      provider.server.start();
+      return provider;
+    }
+
+    URL url() {
+      try {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/introspect");
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    void stop() {
+      server.stop(0);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      requests.incrementAndGet();
+      lastAuthorization = exchange.getRequestHeaders().getFirst("Authorization");
+      String body = read(exchange.getRequestBody());
+      String token = null;
+      for (String param : body.split("&")) {
+        if (param.startsWith("token=")) {
+          token = URLDecoder.decode(param.substring("token=".length()), "UTF-8");
+        }
+      }
+      if (latencyMillis > 0) {
+        try {
+          Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      int status = 200;
+      String json;
+      if (token != null && token.startsWith("good")) {
+        long exp = System.currentTimeMillis() / 1000 + 3600;
+        json = "{\"active\":true,\"sub\":\"user-1\",\"client_id\":\"server\","
+            + "\"scope\":\"email profile\",\"exp\":" + exp + "}";
+      } else if ("foreign".equals(token)) {
+        long exp = System.currentTimeMillis() / 1000 + 3600;
+        json = "{\"active\":true,\"sub\":\"user-1\",\"client_id\":\"client-1\","
+            + "\"scope\":\"email profile\",\"exp\":" + exp + "}";
+      } else if ("revoked".equals(token)) {
+        json = "{\"active\":false}";
+      } else {
+        status = 400;
+        json = "{\"error\":\"invalid_token\"}";
+      }
+      byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(status, bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+    }
+
+    private static String read(InputStream in) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        bytes.write(buffer, 0, read);
+      }
+      return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.server;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link IntrospectionCache}.
+ */
+public class IntrospectionCacheTest {
+
+  private final MockClock clock = new MockClock();
+  private final MockIntrospector introspector = new MockIntrospector();
+
+  @Test
+  public void testCachedUntilTtl() throws IOException {
+    IntrospectionCache cache = new IntrospectionCache(introspector, 100, 1000, 100, clock);
+    introspector.expiresAt = clock.now + 60000;
+    assertTrue(cache.introspect("a").isActive());
+    clock.now += 999;
+    assertTrue(cache.introspect("a").isActive());
+    assertEquals(1, introspector.calls.get());
+
+    clock.now += 1;
+    cache.introspect("a");
+    assertEquals(2, introspector.calls.get());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  /** A result is never kept past the expiry of its token. */
+  @Test
+  public void testCappedAtTokenExpiry() throws IOException {
+    IntrospectionCache cache = new IntrospectionCache(introspector, 100, 60000, 100, clock);
+    introspector.expiresAt = clock.now + 500;
+    cache.introspect("a");
+    clock.now += 499;
+    cache.introspect("a");
+    assertEquals(1, introspector.calls.get());
+    clock.now += 1;
+    introspector.expiresAt = clock.now + 500;
+    cache.introspect("a");
+    assertEquals(2, introspector.calls.get());
+
+    // Tokens which already expired are not kept at all.
+    introspector.expiresAt = clock.now;
+    cache.introspect("b");
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testInactiveCachedBriefly() throws IOException {
+    IntrospectionCache cache = new IntrospectionCache(introspector, 100, 60000, 100, clock);
+    introspector.active = false;
+    assertFalse(cache.introspect("bad").isActive());
+    clock.now += 99;
+    cache.introspect("bad");
+    assertEquals(1, introspector.calls.get());
+    clock.now += 1;
+    cache.introspect("bad");
+    assertEquals(2, introspector.calls.get());
+  }
+
+  @Test
+  public void testBounded() throws IOException {
+    IntrospectionCache cache = new IntrospectionCache(introspector, 10, 60000, 100, clock);
+    for (int i = 0; i < 100; i++) {
+      cache.introspect("token" + i);
+      assertTrue(cache.size() <= 10);
+    }
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws IOException {
+    IntrospectionCache cache = new IntrospectionCache(introspector, 2, 60000, 100, clock);
+    cache.introspect("a");
+    cache.introspect("b");
+    cache.introspect("a");
+    cache.introspect("c");
+    assertEquals(3, introspector.calls.get());
+    assertEquals(2, cache.size());
+
+    // b was evicted, not a or the token just added.
+    cache.introspect("a");
+    cache.introspect("c");
+    assertEquals(3, introspector.calls.get());
+    cache.introspect("b");
+    assertEquals(4, introspector.calls.get());
+  }
+
+  @Test
+  public void testFailuresNotCached() throws IOException {
+    IntrospectionCache cache = new IntrospectionCache(introspector, 100, 60000, 100, clock);
+    introspector.failure = new IOException("down");
+    try {
+      cache.introspect("a");
+      fail();
+    } catch (IOException expected) {
+    }
+    introspector.failure = null;
+    assertTrue(cache.introspect("a").isActive());
+    assertEquals(2, introspector.calls.get());
+  }
+
+  /** Concurrent validations of the same token share one introspection. */
+  @Test
+  public void testCoalesced() throws Exception {
+    final IntrospectionCache cache =
+        new IntrospectionCache(introspector, 100, 60000, 100, clock);
+    introspector.gate = new CountDownLatch(1);
+    final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            results.add(cache.introspect("shared"));
+          } catch (IOException e) {
+            results.add(e);
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    // Let the threads pile up behind the first introspection.
+    while (introspector.calls.get() == 0) {
+      Thread.sleep(1);
+    }
+    Thread.sleep(50);
+    introspector.gate.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(1, introspector.calls.get());
+    assertEquals(8, results.size());
+    for (Object result : results) {
+      assertSame(results.get(0), result);
+    }
+  }
+
+  /** An Error thrown by the introspection reaches the threads waiting for it. */
+  @Test
+  public void testCoalesced_error() throws Exception {
+    final IntrospectionCache cache =
+        new IntrospectionCache(introspector, 100, 60000, 100, clock);
+    introspector.gate = new CountDownLatch(1);
+    introspector.error = new AssertionError("broken");
+    final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            results.add(cache.introspect("shared"));
+          } catch (Throwable e) {
+            results.add(e);
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    while (introspector.calls.get() == 0) {
+      Thread.sleep(1);
+    }
+    Thread.sleep(50);
+    introspector.gate.countDown();
+    for (Thread thread : threads) {
+      thread.join(5000);
+      assertFalse(thread.isAlive());
+    }
+
+    assertEquals(1, introspector.calls.get());
+    assertEquals(4, results.size());
+    for (Object result : results) {
+      assertSame(introspector.error, result);
+    }
+  }
+
+  static class MockClock extends Clock {
+    volatile long now = 1300000000000L;
+
+    @Override
+    public long millis() {
+      return now;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(now);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  static class MockIntrospector implements TokenIntrospector {
+    final AtomicInteger calls = new AtomicInteger();
+    volatile boolean active = true;
+    volatile long expiresAt;
+    volatile IOException failure;
+    volatile Error error;
+    volatile CountDownLatch gate;
+
+    @Override
+    public Introspection introspect(String token) throws IOException {
+      calls.incrementAndGet();
+      if (gate != null) {
+        try {
+          gate.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      if (error != null) {
+        throw error;
+      }
+      return active ? new Introspection(true, "user", "client", "email", expiresAt,
+          Collections.<String, Object>emptyMap()) : Introspection.INACTIVE;
+    }
+  }
+}
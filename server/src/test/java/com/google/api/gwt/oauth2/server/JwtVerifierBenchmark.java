@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifications per second on a single thread, and so per core, of
+ * {@link JwtVerifier}, with and without the {@link IntrospectionCache}.
+ *
+ * <p>Run with: {@code mvn -Pbench test-compile exec:exec}</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@Threads(1)
+public class JwtVerifierBenchmark {
+
+  /** The signature algorithm of the tokens. */
+  @Param({"RS256", "ES256"})
+  String alg;
+
+  /** Number of distinct tokens in use at the same time. */
+  @Param({"1000"})
+  int tokens;
+
+  private JwtVerifier verifier;
+  private IntrospectionCache cache;
+  private String[] pool;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    JwtVerifierTest.generateKeys();
+    KeyPair keys = alg.startsWith("RS") ? JwtVerifierTest.rsa : JwtVerifierTest.ec;
+    JwtVerifierTest.MockJwksSource source = new JwtVerifierTest.MockJwksSource();
+    source.json = JwtVerifierTest.jwks(JwtVerifierTest.jwk("key", keys.getPublic()));
+    verifier = new JwtVerifier(new JwksCache(source), "https://issuer", "api");
+    cache = new IntrospectionCache(verifier, tokens * 2, 86400000);
+    long exp = System.currentTimeMillis() / 1000 + 3600;
+    pool = new String[tokens];
+    for (int i = 0; i < tokens; i++) {
+      pool[i] = JwtVerifierTest.sign(alg, "key", keys.getPrivate(),
+          "{\"iss\":\"https://issuer\",\"aud\":\"api\",\"sub\":\"user-" + i + "\",\"exp\":"
+          + exp + "}");
+    }
+  }
+
+  private String token() {
+    return pool[ThreadLocalRandom.current().nextInt(pool.length)];
+  }
+
+  @Benchmark
+  public boolean verify() throws IOException {
+    return verifier.introspect(token()).isActive();
+  }
+
+  @Benchmark
+  public boolean cached() throws IOException {
+    return cache.introspect(token()).isActive();
+  }
+}
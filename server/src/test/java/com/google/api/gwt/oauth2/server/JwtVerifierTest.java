@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.server;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link JwtVerifier} and {@link JwksCache}, with keys generated
+ * for the test.
+ */
+public class JwtVerifierTest {
+
+  static KeyPair rsa;
+  static KeyPair rotated;
+  static KeyPair ec;
+  static KeyPair ec384;
+
+  private final IntrospectionCacheTest.MockClock clock = new IntrospectionCacheTest.MockClock();
+  private final MockJwksSource source = new MockJwksSource();
+  private final QueuedExecutor executor = new QueuedExecutor();
+  private final JwksCache keys = new JwksCache(source, 3600000, 30000, executor, clock);
+  private final JwtVerifier verifier = new JwtVerifier(keys, "https://issuer", "api", clock);
+
+  @BeforeClass
+  public static void generateKeys() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    rsa = generator.generateKeyPair();
+    rotated = generator.generateKeyPair();
+    generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec("secp256r1"));
+    ec = generator.generateKeyPair();
+    generator.initialize(new ECGenParameterSpec("secp384r1"));
+    ec384 = generator.generateKeyPair();
+  }
+
+  private String claims(long expiresIn) {
+    return "{\"iss\":\"https://issuer\",\"aud\":[\"api\",\"other\"],\"sub\":\"user-1\","
+        + "\"azp\":\"client-1\",\"scope\":\"email profile\",\"exp\":"
+        + (clock.now + expiresIn) / 1000 + "}";
+  }
+
+  @Test
+  public void testValidToken() throws Exception {
+    source.json = jwks(jwk("rsa", rsa.getPublic()), jwk("ec", ec.getPublic()));
+    Introspection introspection =
+        verifier.introspect(sign("RS256", "rsa", rsa.getPrivate(), claims(3600000)));
+    assertTrue(introspection.isActive());
+    assertEquals("user-1", introspection.getSubject());
+    assertEquals("client-1", introspection.getClientId());
+    assertTrue(introspection.hasScope("profile"));
+    assertEquals((clock.now + 3600000) / 1000 * 1000, introspection.getExpiresAt());
+
+    assertTrue(verifier.introspect(
+        sign("ES256", "ec", ec.getPrivate(), claims(3600000))).isActive());
+    assertTrue(verifier.introspect(
+        sign("RS512", "rsa", rsa.getPrivate(), claims(3600000))).isActive());
+    assertEquals(1, source.fetches.get());
+  }
+
+  @Test
+  public void testInvalidTokens() throws Exception {
+    source.json = jwks(jwk("rsa", rsa.getPublic()), jwk("ec", ec.getPublic()));
+    String valid = sign("RS256", "rsa", rsa.getPrivate(), claims(3600000));
+    String[] parts = valid.split("\\.");
+
+    assertInactive(sign("RS256", "rsa", rotated.getPrivate(), claims(3600000)));
+    assertInactive(parts[0] + "." + encode("{\"sub\":\"admin\",\"exp\":9999999999}") + "."
+        + parts[2]);
+    assertInactive(encode("{\"alg\":\"none\",\"kid\":\"rsa\"}") + "." + parts[1] + ".");
+    assertInactive(sign("ES256", "rsa", ec.getPrivate(), claims(3600000)));
+    assertInactive(sign("RS256", "rsa", rsa.getPrivate(), claims(-60000)));
+    assertInactive(sign("RS256", "rsa", rsa.getPrivate(),
+        claims(3600000).replace("\"api\"", "\"elsewhere\"")));
+    assertInactive(sign("RS256", "rsa", rsa.getPrivate(),
+        claims(3600000).replace("https://issuer", "https://evil")));
+    assertInactive(sign("RS256", "rsa", rsa.getPrivate(),
+        "{\"iss\":\"https://issuer\",\"aud\":\"api\"}"));
+    assertInactive(sign("RS256", "rsa", rsa.getPrivate(), claims(3600000).replace(
+        "\"exp\"", "\"nbf\":" + (clock.now + 600000) / 1000 + ",\"exp\"")));
+    assertInactive("not.a.jwt");
+    assertInactive("garbage");
+
+    // Within the leeway, an expired token is still accepted.
+    assertTrue(verifier.introspect(
+        sign("RS256", "rsa", rsa.getPrivate(), claims(-10000))).isActive());
+  }
+
+  /** id_tokens and tokens of other types are not accepted as access tokens. */
+  @Test
+  public void testTokenType() throws Exception {
+    source.json = jwks(jwk("rsa", rsa.getPublic()));
+    String claims = claims(3600000);
+    String idToken = claims.replace("}", ",\"nonce\":\"n-0S6\",\"at_hash\":\"77QmUP\"}");
+    assertTrue(verifier.introspect(
+        sign("RS256", "rsa", "at+jwt", rsa.getPrivate(), claims)).isActive());
+    assertTrue(verifier.introspect(
+        sign("RS256", "rsa", "application/at+jwt", rsa.getPrivate(), claims)).isActive());
+    assertTrue(verifier.introspect(
+        sign("RS256", "rsa", null, rsa.getPrivate(), claims)).isActive());
+
+    assertInactive(sign("RS256", "rsa", rsa.getPrivate(), idToken));
+    assertInactive(sign("RS256", "rsa", null, rsa.getPrivate(), idToken));
+    assertInactive(sign("RS256", "rsa", "logout+jwt", rsa.getPrivate(), claims));
+    // Explicitly typed access tokens may carry any claim.
+    assertTrue(verifier.introspect(
+        sign("RS256", "rsa", "at+jwt", rsa.getPrivate(), idToken)).isActive());
+  }
+
+  /** ECDSA signatures must be made on the algorithm's curve, and have its size. */
+  @Test
+  public void testEcCurves() throws Exception {
+    source.json = jwks(jwk("ec", ec.getPublic()), jwk("ec384", ec384.getPublic()));
+    assertTrue(verifier.introspect(
+        sign("ES384", "ec384", ec384.getPrivate(), claims(3600000))).isActive());
+    assertInactive(sign("ES256", "ec384", ec384.getPrivate(), claims(3600000)));
+    assertInactive(sign("ES384", "ec", ec.getPrivate(), claims(3600000)));
+
+    // A valid signature with its integers padded to other lengths.
+    String[] parts = sign("ES256", "ec", ec.getPrivate(), claims(3600000)).split("\\.");
+    byte[] jose = Base64.getUrlDecoder().decode(parts[2]);
+    byte[] padded = new byte[66];
+    System.arraycopy(jose, 0, padded, 1, 32);
+    System.arraycopy(jose, 32, padded, 34, 32);
+    assertInactive(parts[0] + "." + parts[1] + "." + encode(padded));
+  }
+
+  private void assertInactive(String token) throws IOException {
+    assertFalse(token, verifier.introspect(token).isActive());
+  }
+
+  /** A token signed with a new key refreshes the key set right away, but not too often. */
+  @Test
+  public void testUnknownKeyRefreshes() throws Exception {
+    source.json = jwks(jwk("rsa", rsa.getPublic()));
+    assertTrue(verifier.introspect(
+        sign("RS256", "rsa", rsa.getPrivate(), claims(3600000))).isActive());
+    clock.now += 60000;
+    source.json = jwks(jwk("rsa", rsa.getPublic()), jwk("rotated", rotated.getPublic()));
+    assertTrue(verifier.introspect(
+        sign("RS256", "rotated", rotated.getPrivate(), claims(3600000))).isActive());
+    assertEquals(2, source.fetches.get());
+
+    // Made-up key IDs do not cause a fetch each.
+    for (int i = 0; i < 10; i++) {
+      assertInactive(sign("RS256", "made-up-" + i, rsa.getPrivate(), claims(3600000)));
+    }
+    assertEquals(2, source.fetches.get());
+    clock.now += 30000;
+    assertInactive(sign("RS256", "made-up", rsa.getPrivate(), claims(3600000)));
+    assertEquals(3, source.fetches.get());
+  }
+
+  /** An old key set is refreshed in the background, and served until then. */
+  @Test
+  public void testBackgroundRefresh() throws Exception {
+    source.json = jwks(jwk("rsa", rsa.getPublic()));
+    String token = sign("RS256", "rsa", rsa.getPrivate(), claims(7200000));
+    assertTrue(verifier.introspect(token).isActive());
+    clock.now += 3600000;
+    source.json = jwks(jwk("rotated", rotated.getPublic()));
+    assertTrue(verifier.introspect(token).isActive());
+    assertTrue(verifier.introspect(token).isActive());
+    assertEquals(1, source.fetches.get());
+    assertEquals(1, executor.queue.size());
+
+    executor.runAll();
+    assertEquals(2, source.fetches.get());
+    assertTrue(verifier.introspect(
+        sign("RS256", "rotated", rotated.getPrivate(), claims(3600000))).isActive());
+    assertEquals(2, source.fetches.get());
+  }
+
+  @Test
+  public void testSourceDown() throws Exception {
+    source.failure = new IOException("down");
+    try {
+      verifier.introspect(sign("RS256", "rsa", rsa.getPrivate(), claims(3600000)));
+      fail();
+    } catch (IOException expected) {
+    }
+    source.failure = null;
+    source.json = "{\"keys\":[{\"kty\":\"RSA\",\"kid\":\"broken\"},"
+        + "{\"kty\":\"oct\",\"kid\":\"secret\",\"k\":\"AAAA\"}," + jwk("rsa", rsa.getPublic())
+        + "]}";
+    assertTrue(verifier.introspect(
+        sign("RS256", "rsa", rsa.getPrivate(), claims(3600000))).isActive());
+  }
+
+  /** Behind an {@link IntrospectionCache}, a token is verified once until it expires. */
+  @Test
+  public void testCachedUntilExpiry() throws Exception {
+    source.json = jwks(jwk("rsa", rsa.getPublic()));
+    IntrospectionCache cache =
+        new IntrospectionCache(verifier.setLeeway(0), 100, 86400000, 10000, clock);
+    String token = sign("RS256", "rsa", rsa.getPrivate(), claims(600000));
+    for (int i = 0; i < 10; i++) {
+      assertTrue(cache.introspect(token).isActive());
+      clock.now += 50000;
+    }
+    assertEquals(1, cache.getMissCount());
+    clock.now += 100000;
+    assertFalse(cache.introspect(token).isActive());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  static String encode(String json) {
+    return encode(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  static String encode(byte[] bytes) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+  }
+
+  private static String encode(BigInteger value, int length) {
+    byte[] bytes = value.toByteArray();
+    byte[] fixed = new byte[length];
+    int copy = Math.min(bytes.length, length);
+    System.arraycopy(bytes, bytes.length - copy, fixed, length - copy, copy);
+    return encode(fixed);
+  }
+
+  static String jwks(String... keys) {
+    StringBuilder sb = new StringBuilder("{\"keys\":[");
+    for (int i = 0; i < keys.length; i++) {
+      sb.append(i == 0 ? "" : ",").append(keys[i]);
+    }
+    return sb.append("]}").toString();
+  }
+
+  static String jwk(String kid, PublicKey key) {
+    if (key instanceof RSAPublicKey) {
+      RSAPublicKey rsaKey = (RSAPublicKey) key;
+      return "{\"kty\":\"RSA\",\"use\":\"sig\",\"kid\":\"" + kid + "\",\"n\":\""
+          + encode(rsaKey.getModulus().toByteArray()) + "\",\"e\":\""
+          + encode(rsaKey.getPublicExponent().toByteArray()) + "\"}";
+    }
+    ECPublicKey ecKey = (ECPublicKey) key;
+    int fieldSize = ecKey.getParams().getCurve().getField().getFieldSize();
+    int length = (fieldSize + 7) / 8;
+    return "{\"kty\":\"EC\",\"crv\":\"P-" + fieldSize + "\",\"kid\":\"" + kid + "\",\"x\":\""
+        + encode(ecKey.getW().getAffineX(), length) + "\",\"y\":\""
+        + encode(ecKey.getW().getAffineY(), length) + "\"}";
+  }
+
+  static String sign(String alg, String kid, PrivateKey key, String claims)
+      throws GeneralSecurityException {
+    return sign(alg, kid, "JWT", key, claims);
+  }
+
+  /** Signs the claims, with a typ header unless it is null. */
+  static String sign(String alg, String kid, String typ, PrivateKey key, String claims)
+      throws GeneralSecurityException {
+    String content = encode("{\"alg\":\"" + alg + "\",\"kid\":\"" + kid + "\""
+        + (typ == null ? "" : ",\"typ\":\"" + typ + "\"") + "}") + "." + encode(claims);
+    String digest = "SHA" + alg.substring(2);
+    Signature signer = Signature.getInstance(
+        digest + (key.getAlgorithm().equals("RSA") ? "withRSA" : "withECDSA"));
+    signer.initSign(key);
+    signer.update(content.getBytes(StandardCharsets.UTF_8));
+    byte[] signature = signer.sign();
+    if (!key.getAlgorithm().equals("RSA")) {
+      int fieldSize = ((ECPrivateKey) key).getParams().getCurve().getField().getFieldSize();
+      signature = toJose(signature, (fieldSize + 7) / 8);
+    }
+    return content + "." + encode(signature);
+  }
+
+  /** Converts a DER encoded ECDSA signature to the concatenated integers of JWS. */
+  private static byte[] toJose(byte[] der, int length) {
+    int pos = (der[1] & 0x80) != 0 ? 3 : 2;
+    int rLength = der[pos + 1];
+    byte[] r = Arrays.copyOfRange(der, pos + 2, pos + 2 + rLength);
+    pos += 2 + rLength;
+    byte[] s = Arrays.copyOfRange(der, pos + 2, pos + 2 + der[pos + 1]);
+    byte[] jose = new byte[2 * length];
+    copyInteger(r, jose, 0, length);
+    copyInteger(s, jose, length, length);
+    return jose;
+  }
+
+  private static void copyInteger(byte[] integer, byte[] to, int offset, int length) {
+    int copy = Math.min(integer.length, length);
+    System.arraycopy(integer, integer.length - copy, to, offset + length - copy, copy);
+  }
+
+  static class MockJwksSource implements JwksSource {
+    final AtomicInteger fetches = new AtomicInteger();
+    volatile String json;
+    volatile IOException failure;
+
+    @Override
+    public String fetch() throws IOException {
+      fetches.incrementAndGet();
+      if (failure != null) {
+        throw failure;
+      }
+      return json;
+    }
+  }
+
+  /** Holds background refreshes until the test runs them. */
+  static class QueuedExecutor implements Executor {
+    final List<Runnable> queue = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      queue.add(command);
+    }
+
+    void runAll() {
+      List<Runnable> commands = new ArrayList<Runnable>(queue);
+      queue.clear();
+      for (Runnable command : commands) {
+        command.run();
+      }
+    }
+  }
+}
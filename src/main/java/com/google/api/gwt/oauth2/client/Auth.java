@@ -20,7 +20,21 @@ import com.google.gwt.core.client.Callback;
 import com.google.gwt.core.client.JavaScriptObject;
 import com.google.gwt.core.client.JsArrayString;
 import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
 import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.event.shared.HandlerManager;
+import com.google.gwt.event.shared.HandlerRegistration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Provides methods to manage authentication flow.
@@ -37,13 +51,22 @@ public abstract class Auth {
   protected OAuthResponseParser responseParser;
 
   final TokenStore tokenStore;
-  private final Clock clock;
-  private final UrlCodex urlCodex;
+  final Clock clock;
+  final UrlCodex urlCodex;
   final Scheduler scheduler;
   String oauthWindowUrl;
 
   int height = 600;
   int width = 800;
+  int batchWindow = 0;
+  int loginTimeout = 0;
+  boolean watchWindow = true;
+  boolean microtaskDelivery;
+  boolean staleWhileRevalidate;
+  AuthMetrics metrics = AuthMetrics.NONE;
+  AuthTracer tracer;
+  final RenewalLeases leases;
+  final ErrorBackoff backoff;
 
   Auth(TokenStore tokenStore, Clock clock, UrlCodex urlCodex, Scheduler scheduler,
       String oauthWindowUrl) {
@@ -52,13 +75,63 @@ public abstract class Auth {
     this.urlCodex = urlCodex;
     this.scheduler = scheduler;
     this.oauthWindowUrl = oauthWindowUrl;
+    this.leases = new RenewalLeases(this, clock);
+    this.backoff = new ErrorBackoff(clock);
   }
 
-  private AuthRequest lastRequest;
-  private Callback<OAuthResponseParser.TokenInfo, Throwable> lastCallback;
+  /** Logins waiting for the provider's response, by their {@code state}. */
+  private final Map<String, PendingLogin> pending = new HashMap<String, PendingLogin>();
+  private PendingLogin lastLogin;
+  private final Map<String, RenewalBatch> batches = new HashMap<String, RenewalBatch>();
+
+  /**
+   * The access token each background renewal was started for, by its
+   * request's key, so that each expiring token is renewed at most once.
+   */
+  private final Map<String, String> revalidated = new HashMap<String, String>();
+
+  /**
+   * The skew of each provider's clock, by its authorization URL, or null
+   * until the saved estimates are first needed.
+   */
+  private Map<String, ClockSkew> skews;
+
+  /**
+   * The clock's time minus {@link #ticks()}, when {@link #localTime()} was
+   * first read, or NaN before.
+   */
+  private double clockBase = Double.NaN;
+
+  /** Where to revoke the tokens of each client, by client ID. */
+  private final Map<String, RevocationEndpoint> revocationEndpoints =
+      new HashMap<String, RevocationEndpoint>();
+
+  /** Tokens read from or written to the store, by their request's key. */
+  private final Map<String, OAuthResponseParser.TokenInfo> tokens =
+      new HashMap<String, OAuthResponseParser.TokenInfo>();
+  private int loginCount;
+
+  /**
+   * The last token known for each request, to fire {@link TokenEvent}s for.
+   * Unlike {@link #tokens}, these are kept when another window changes the
+   * store, until the tokens are read again.
+   */
+  private final Map<String, TokenWatch> watches = new HashMap<String, TokenWatch>();
+  private HandlerManager handlers;
+
+  /** Identifies the current expiry timer; timers of earlier generations do nothing. */
+  private int expiryGeneration;
+  private double expiryDue = Double.POSITIVE_INFINITY;
 
   private static final double TEN_MINUTES = 10 * 60 * 1000;
 
+  /** First and longest delays between checks for a closed popup window. */
+  private static final int WATCHDOG_MIN_DELAY = 250;
+  private static final int WATCHDOG_MAX_DELAY = 2000;
+
+  /** How long a background renewal waits for the provider, unless a timeout is set. */
+  private static final int SILENT_TIMEOUT = 30 * 1000;
+
   /**
    * Request an access token from an OAuth 2.0 provider.
    *
@@ -76,49 +149,404 @@ public abstract class Auth {
    * token will be passed to the callback.
    * </p>
    *
+   * <p>
+   * If the popup window is closed, or the provider does not respond within
+   * the timeout set by {@link AuthRequest#withTimeout(int)} or
+   * {@link #setLoginTimeout(int)}, a {@link LoginAbortedException} will be
+   * passed to the callback.
+   * </p>
+   *
+   * <p>
+   * With {@link #setStaleWhileRevalidate(boolean)}, a token which is expiring
+   * soon but still valid is passed to the callback as well, while it is
+   * renewed in the background.
+   * </p>
+   *
+   * <p>
+   * If the provider responds with an error, a {@link ProviderErrorException}
+   * is passed to the callback, and so it is to the callbacks of further logins
+   * for the same request for a while, without contacting the provider again.
+   * See {@link #setErrorBackoff(int, int)} and {@link #setRateLimit(int, int)}.
+   * </p>
+   *
    * @param req Request for authentication.
    * @param callback Callback to pass the token to when access has been granted.
+   * @return A handle to cancel the login with.
    */
-  public void login(AuthRequest req,  final OAuthResponseParser responseParser, final Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
-    lastRequest = req;
-    lastCallback = callback;
-
+  public LoginHandle login(AuthRequest req,  final OAuthResponseParser responseParser, final Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
+    trace(AuthTracer.Event.LOGIN, req);
     this.responseParser = responseParser;
 
-    String authUrl = req.toUrl(urlCodex) + "&redirect_uri=" + urlCodex.encode(oauthWindowUrl);
-
     // Try to look up the token we have stored.
     final OAuthResponseParser.TokenInfo info = getToken(req);
-    if (info == null || info.expires == null || expiringSoon(info)) {
+    if (!isUsable(req, info) && revalidate(req, responseParser, info)) {
+      // The token is expiring soon, but can still be used while it is renewed.
+      return deliver(new CachedDelivery(info, null, callback));
+    } else if (!isUsable(req, info)) {
       // Token wasn't found, or doesn't have an expiration, or is expired or
       // expiring soon. Requesting access will refresh the token.
-      doLogin(authUrl, callback);
+      metrics.increment(AuthMetrics.Counter.CACHE_MISS);
+      RuntimeException failure = backoff.check(req);
+      if (failure != null) {
+        metrics.increment(AuthMetrics.Counter.FAILED_FAST);
+        return deliver(new CachedDelivery(null, failure, callback));
+      }
+      String key = req.asString();
+      if (!leases.acquire(key)) {
+        // Another window is already renewing this token, wait for it.
+        return leases.await(req, responseParser, callback);
+      }
+      Callback<OAuthResponseParser.TokenInfo, Throwable> leased =
+          leases.releasing(key, backoff.recording(req, callback));
+      if (batchWindow > 0) {
+        return addToBatch(req, responseParser, leased);
+      } else {
+        return startLogin(req, responseParser, leased, false);
+      }
     } else {
+      metrics.increment(AuthMetrics.Counter.CACHE_HIT);
       // Token was found and is good, immediately execute the callback with the
       // access token.
 
-      scheduler.scheduleDeferred(new ScheduledCommand() {
+      return deliver(new CachedDelivery(info, null, callback));
+    }
+  }
+
+  public LoginHandle login(AuthRequest req, final Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
+    return login(req, new DefaultResponseParser(clock), callback);
+  }
+
+  /**
+   * Returns the stored token for the request if it can be used as it is, or
+   * null if a {@link #login(AuthRequest, Callback)} is needed to obtain one.
+   *
+   * <p>
+   * Unlike {@code login()}, nothing is scheduled: callers which fan out many
+   * authenticated calls can use the token right away, and only fall back to
+   * {@code login()} when this returns null. With
+   * {@link #setStaleWhileRevalidate(boolean)}, a token which is expiring soon
+   * but still valid is returned too, and renewed in the background.
+   * </p>
+   */
+  public OAuthResponseParser.TokenInfo getValidToken(AuthRequest req) {
+    OAuthResponseParser.TokenInfo info = getToken(req);
+    if (!isUsable(req, info)) {
+      return revalidate(req, new DefaultResponseParser(clock), info) ? info : null;
+    }
+    metrics.increment(AuthMetrics.Counter.CACHE_HIT);
+    return info;
+  }
+
+  /**
+   * If stale-while-revalidate is on and the token is expiring soon but still
+   * valid, makes sure a background renewal was started for it, and returns
+   * true so that it is used in the meantime.
+   *
+   * <p>
+   * Each token is renewed at most once, and not while another window renews
+   * it or its request is backing off from a provider error. If the renewal
+   * fails, the token is used until it expires, and the next login then asks
+   * the user.
+   * </p>
+   */
+  private boolean revalidate(AuthRequest req, OAuthResponseParser responseParser,
+      OAuthResponseParser.TokenInfo info) {
+    if (!staleWhileRevalidate || info == null || info.expires == null
+        || Double.valueOf(info.expires) <= providerTime(req)) {
+      return false;
+    }
+    metrics.increment(AuthMetrics.Counter.STALE_HIT);
+    String key = req.asString();
+    if (!info.accessToken.equals(revalidated.get(key)) && backoff.check(req) == null) {
+      Callback<OAuthResponseParser.TokenInfo, Throwable> ignored =
+          new Callback<OAuthResponseParser.TokenInfo, Throwable>() {
+            @Override
+            public void onSuccess(OAuthResponseParser.TokenInfo result) {
+              // finish() stored the new token for the next caller.
+            }
+
+            @Override
+            public void onFailure(Throwable reason) {
+              // Keep using the expiring token.
+            }
+          };
+      if (leases.acquire(key)) {
+        revalidated.put(key, info.accessToken);
+        startLogin(req, responseParser, leases.releasing(key, ignored), true);
+      } else if (!leases.isWaiting(key)) {
+        // Another window is renewing it, or the lease is not granted yet, in
+        // which case the waiting login takes the renewal over once it is.
+        leases.await(req, responseParser, ignored);
+      }
+    }
+    return true;
+  }
+
+  private CachedDelivery deliver(CachedDelivery delivery) {
+    if (microtaskDelivery) {
+      scheduleMicrotask(delivery);
+    } else {
+      scheduler.scheduleDeferred(delivery);
+    }
+    return delivery;
+  }
+
+  /**
+   * Runs the command once the current script is done, before the browser gets
+   * back to its event loop. Implementations queue a microtask; by default the
+   * command is run as a {@link Scheduler#scheduleFinally finally command}.
+   */
+  void scheduleMicrotask(ScheduledCommand command) {
+    scheduler.scheduleFinally(command);
+  }
+
+  /**
+   * Passes a stored token, or the failure of an earlier attempt, to the
+   * callback, unless cancelled before.
+   */
+  private static class CachedDelivery implements ScheduledCommand, LoginHandle {
+    private final OAuthResponseParser.TokenInfo info;
+    private final Throwable failure;
+    private Callback<OAuthResponseParser.TokenInfo, Throwable> callback;
+
+    CachedDelivery(OAuthResponseParser.TokenInfo info, Throwable failure,
+        Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
+      this.info = info;
+      this.failure = failure;
+      this.callback = callback;
+    }
+
+    @Override
+    public void execute() {
+      if (callback != null) {
+        Callback<OAuthResponseParser.TokenInfo, Throwable> c = callback;
+        callback = null;
+        if (failure != null) {
+          c.onFailure(failure);
+        } else {
+          c.onSuccess(info);
+        }
+      }
+    }
+
+    @Override
+    public void cancel() {
+      if (callback != null) {
+        Callback<OAuthResponseParser.TokenInfo, Throwable> c = callback;
+        callback = null;
+        c.onFailure(new LoginAbortedException(LoginAbortedException.Reason.CANCELLED));
+      }
+    }
+  }
+
+  private String authUrl(AuthRequest req, String state) {
+    return req.toUrl(urlCodex) + "&redirect_uri=" + urlCodex.encode(oauthWindowUrl)
+        + "&state=" + state;
+  }
+
+  /**
+   * Adds a renewal to the batch for its client, starting a new batch if there
+   * is none. The batch is sent to the provider once the batch window elapses.
+   */
+  private LoginHandle addToBatch(AuthRequest req, OAuthResponseParser responseParser,
+      Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
+    final String key = req.clientKey();
+    RenewalBatch batch = batches.get(key);
+    if (batch == null) {
+      batch = new RenewalBatch(this, responseParser);
+      batches.put(key, batch);
+      batch.reservedWindow = beginBatch();
+      scheduler.scheduleFixedDelay(new RepeatingCommand() {
         @Override
-        public void execute() {
-          callback.onSuccess(info);
+        public boolean execute() {
+          sendBatch(key);
+          return false;
         }
-      });
+      }, batchWindow);
+    }
+    return batch.add(req, callback);
+  }
+
+  private void sendBatch(String key) {
+    RenewalBatch batch = batches.remove(key);
+    if (batch == null) {
+      return;
     }
+    if (batch.isEmpty()) {
+      // Every request was cancelled, release the popup reserved for them, but
+      // not one which another login is using.
+      if (batch.reservedWindow) {
+        releaseWindow();
+      }
+      return;
+    }
+    batch.login = startLogin(batch.mergedRequest(), batch.responseParser, batch, false);
+  }
+
+  /**
+   * @param silent Whether to renew the token in the background, without
+   *        showing anything to the user, rather than in the popup
+   */
+  private PendingLogin startLogin(AuthRequest req, OAuthResponseParser responseParser,
+      Callback<OAuthResponseParser.TokenInfo, Throwable> callback, boolean silent) {
+    PendingLogin login = new PendingLogin(req, responseParser, callback, newState(), silent);
+    backoff.attempt(req);
+    pending.put(login.state, login);
+    if (!silent) {
+      lastLogin = login;
+    }
+    trace(AuthTracer.Event.DO_LOGIN, req);
+    login.started = startTimer();
+    login.sentTicks = ticks();
+    int timeout = req.getTimeout() > 0 ? req.getTimeout() : loginTimeout;
+    if (silent && timeout <= 0) {
+      timeout = SILENT_TIMEOUT;
+    }
+    if (timeout > 0) {
+      login.deadline = clock.now() + timeout;
+    }
+    if (silent) {
+      doSilentLogin(login.state, authUrl(req, login.state) + "&prompt=none", login);
+    } else {
+      doLogin(authUrl(req, login.state), login);
+    }
+    if (login.isPending() && ((watchWindow && !silent) || timeout > 0)) {
+      watch(login, WATCHDOG_MIN_DELAY);
+    }
+    return login;
+  }
+
+  /**
+   * Checks, with increasing delays, whether the popup window of a pending
+   * login was closed, and whether the login's deadline has passed.
+   */
+  private void watch(final PendingLogin login, final int delay) {
+    int next = watchWindow ? delay : Integer.MAX_VALUE;
+    if (login.deadline > 0) {
+      next = (int) Math.min(next, Math.max(0, login.deadline - clock.now()));
+    }
+    scheduler.scheduleFixedDelay(new RepeatingCommand() {
+      @Override
+      public boolean execute() {
+        if (!login.isPending()) {
+          return false;
+        }
+        if (login.deadline > 0 && clock.now() >= login.deadline) {
+          login.abort(LoginAbortedException.Reason.TIMED_OUT);
+        } else if (watchWindow && !login.silent && !isWindowOpen()) {
+          login.abort(LoginAbortedException.Reason.WINDOW_CLOSED);
+        } else {
+          watch(login, Math.min(delay * 2, WATCHDOG_MAX_DELAY));
+        }
+        return false;
+      }
+    }, next);
   }
 
-  public void login(AuthRequest req, final Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
-    login(req, new DefaultResponseParser(clock), callback);
+  /**
+   * Returns a new value for the {@code state} parameter, which the provider
+   * passes back with its response to identify the login it belongs to.
+   * Implementations make it unguessable, so that other pages cannot forge a
+   * response; by default it is only unique.
+   */
+  String newState() {
+    return Integer.toString(++loginCount, 36) + "."
+        + Integer.toString((int) (Math.random() * Integer.MAX_VALUE), 36)
+        + Integer.toString((int) (Math.random() * Integer.MAX_VALUE), 36);
   }
 
   /**
-   * Returns whether or not the token will be expiring within the next ten
-   * minutes.
+   * Returns the current time if metrics are being recorded. Avoids reading
+   * the clock when they are not.
    */
-  boolean expiringSoon(OAuthResponseParser.TokenInfo info) {
+  private double startTimer() {
+    return metrics == AuthMetrics.NONE ? 0 : clock.now();
+  }
+
+  private void trace(AuthTracer.Event event, AuthRequest req) {
+    if (tracer != null) {
+      tracer.record(event, clock.now(), req == null ? null : req.asString());
+    }
+  }
+
+  private void stopTimer(AuthMetrics.Latency latency, double started) {
+    if (metrics != AuthMetrics.NONE) {
+      metrics.record(latency, clock.now() - started);
+    }
+  }
+
+  /**
+   * Returns a monotonic time in milliseconds, which is not changed along with
+   * the system clock, to measure how long logins take. By default this is
+   * the clock's time.
+   */
+  double ticks() {
+    return clock.now();
+  }
+
+  /**
+   * Returns the time by the clock as it was when first read, advanced by
+   * {@link #ticks()} since, so that changing the system clock afterwards does
+   * not move it. Times the provider's clock is compared with are read here.
+   */
+  double localTime() {
+    if (Double.isNaN(clockBase)) {
+      clockBase = clock.now() - ticks();
+    }
+    return ticks() + clockBase;
+  }
+
+  /**
+   * Returns the current time by the clock of the request's provider, as
+   * estimated from its tokens. Stored expiry times are by this clock.
+   */
+  double providerTime(AuthRequest req) {
+    return localTime() + getClockSkew(req.getAuthUrl()).getOffset();
+  }
+
+  /**
+   * Returns whether the popup window is still open. Implementations which do
+   * not know return true.
+   */
+  boolean isWindowOpen() {
+    return true;
+  }
+
+  /**
+   * Called when a new batch of renewals starts collecting, while the caller
+   * may still be handling a user action. Implementations may use this to
+   * reserve the popup window before the popup blocker would prevent it.
+   *
+   * @return Whether a window was reserved for the batch
+   */
+  boolean beginBatch() {
+    return false;
+  }
+
+  /**
+   * Closes the window reserved by {@link #beginBatch()} when its batch was
+   * not sent after all, unless another login has used it since.
+   */
+  void releaseWindow() {
+  }
+
+  /**
+   * Returns whether the request's token can be used as it is: it has an
+   * expiration, and is not expiring soon.
+   */
+  boolean isUsable(AuthRequest req, OAuthResponseParser.TokenInfo info) {
+    return info != null && info.expires != null && !expiringSoon(req, info);
+  }
+
+  /**
+   * Returns whether or not the request's token will be expiring within the
+   * next ten minutes, by its provider's clock.
+   */
+  boolean expiringSoon(AuthRequest req, OAuthResponseParser.TokenInfo info) {
     // TODO(jasonhall): Consider varying the definition of "soon" based on the
     // original expires_in value (e.g., "soon" = 1/10th of the total time before
     // it's expired).
-    return Double.valueOf(info.expires) < (clock.now() + TEN_MINUTES);
+    return Double.valueOf(info.expires) < (providerTime(req) + TEN_MINUTES);
   }
 
   /**
@@ -127,6 +555,37 @@ public abstract class Auth {
    */
   abstract void doLogin(String authUrl, Callback<OAuthResponseParser.TokenInfo, Throwable> callback);
 
+  /**
+   * Get the OAuth 2.0 token without user interaction, for a background
+   * renewal. The URL asks the provider not to prompt the user, and to respond
+   * with an error if it would have to. Implementations load it in a hidden
+   * frame; by default the popup of {@link #doLogin} is used.
+   *
+   * @param state The {@code state} of the login, to find its frame again
+   */
+  void doSilentLogin(String state, String authUrl,
+      Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
+    doLogin(authUrl, callback);
+  }
+
+  /** Called when a background renewal is over, to clean up its frame. */
+  void closeSilentLogin(String state) {
+    closeWindow();
+  }
+
+  /**
+   * Sets whether {@link #login(AuthRequest, Callback)} and
+   * {@link #getValidToken(AuthRequest)} keep using a token which is expiring
+   * soon but still valid, instead of asking for a new one before answering.
+   * A single renewal of the token is started in the background, without
+   * showing the popup, and later calls are given the new token once it
+   * arrives. The default is to renew the token before answering.
+   */
+  public Auth setStaleWhileRevalidate(boolean enabled) {
+    this.staleWhileRevalidate = enabled;
+    return this;
+  }
+
   /**
    * Set the oauth window URL to use to authenticate.
    */
@@ -135,6 +594,111 @@ public abstract class Auth {
     return this;
   }
 
+  /**
+   * Sets the {@link AuthMetrics} to report counters and latencies of the
+   * authentication flow to, such as an {@link AuthStats}. By default nothing
+   * is recorded, and the clock is not read for timings.
+   */
+  public Auth setMetrics(AuthMetrics metrics) {
+    this.metrics = metrics == null ? AuthMetrics.NONE : metrics;
+    return this;
+  }
+
+  /** Returns the {@link AuthMetrics} set by {@link #setMetrics(AuthMetrics)}. */
+  public AuthMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Sets the {@link AuthTracer} to record the steps of the authentication flow
+   * into, or null to stop tracing, which is the default.
+   */
+  public Auth setTracer(AuthTracer tracer) {
+    this.tracer = tracer;
+    return this;
+  }
+
+  /** Returns the {@link AuthTracer} set by {@link #setTracer(AuthTracer)}. */
+  public AuthTracer getTracer() {
+    return tracer;
+  }
+
+  /**
+   * Sets how long, in milliseconds, to wait for the provider's response to a
+   * login before failing with a {@link LoginAbortedException}, unless the
+   * request sets its own timeout. The default of 0 waits as long as the popup
+   * window is open.
+   */
+  public Auth setLoginTimeout(int millis) {
+    this.loginTimeout = millis;
+    return this;
+  }
+
+  /**
+   * Sets whether to fail pending logins with a {@link LoginAbortedException}
+   * when their popup window is closed, which is the default.
+   *
+   * <p>
+   * Pages served with a {@code Cross-Origin-Opener-Policy} which isolates
+   * popups cannot tell whether they are still open, and should turn this off
+   * and rely on a timeout instead.
+   * </p>
+   */
+  public Auth setPopupWatchdog(boolean enabled) {
+    this.watchWindow = enabled;
+    return this;
+  }
+
+  /**
+   * Sets whether {@link #login(AuthRequest, Callback)} passes stored tokens,
+   * and failures which need no popup, to the callback on a microtask rather
+   * than a deferred command. Deferred commands run on a timer, which browsers
+   * clamp to several milliseconds, while microtasks run as soon as the
+   * current script is done. The default is deferred commands.
+   */
+  public Auth setMicrotaskDelivery(boolean enabled) {
+    this.microtaskDelivery = enabled;
+    return this;
+  }
+
+  /**
+   * Sets how long, in milliseconds, renewals for the same client are collected
+   * before a single authorization is requested for the union of their scopes.
+   * Every waiting request is then given the resulting token. The default of 0
+   * requests each renewal separately and immediately.
+   */
+  public Auth setBatchWindow(int millis) {
+    this.batchWindow = millis;
+    return this;
+  }
+
+  /**
+   * Sets how long, in milliseconds, logins for a request fail immediately
+   * with the {@link ProviderErrorException} of its last attempt, after the
+   * provider responded with an error. The delay starts at
+   * {@code initialDelay} and doubles with each consecutive error, up to
+   * {@code maxDelay}, until a login succeeds. The default is 1 second up to 1
+   * minute; an initial delay of 0 turns this off.
+   */
+  public Auth setErrorBackoff(int initialDelay, int maxDelay) {
+    backoff.initialDelay = initialDelay;
+    backoff.maxDelay = maxDelay;
+    return this;
+  }
+
+  /**
+   * Limits the authorizations requested from each provider to
+   * {@code maxAttempts} within any {@code windowMillis} milliseconds. Logins
+   * beyond the limit fail immediately with a {@link LoginAbortedException}
+   * for {@link LoginAbortedException.Reason#RATE_LIMITED}. By default there
+   * is no limit.
+   */
+  public Auth setRateLimit(int maxAttempts, int windowMillis) {
+    backoff.maxAttempts = maxAttempts;
+    backoff.attemptWindow = windowMillis;
+    return this;
+  }
+
   /** Sets the height of the OAuth 2.0 popup dialog, in pixels. The default is 600px. */
   public Auth setWindowHeight(int height) {
     this.height = height;
@@ -149,22 +713,248 @@ public abstract class Auth {
 
   /**
    * Called by the {@code doLogin()} method which is registered as a global
-   * variable on the page.
+   * variable on the page, by older copies of the OAuth window page which do
+   * not send the {@code state}. The response is given to the most recent
+   * login.
    */
   // This method is called via a global method defined in AuthImpl.register()
   @SuppressWarnings("unused")
   void finish(String hash, String queryString) {
+    // A login which was already handled is no longer pending, ignore
+    // duplicate responses for it.
+    if (lastLogin != null && lastLogin.isPending()) {
+      finish(lastLogin, hash, queryString);
+    }
+  }
+
+  /** Finishes the login with the given state, parsing its fragment. */
+  void finish(String state, String hash, String queryString) {
+    finish(state, null, hash, queryString);
+  }
+
+  /**
+   * Called with the response the OAuth window page posted back to this page.
+   * Responses with a {@code state} that does not belong to a pending login,
+   * such as ones which were already handled, are ignored.
+   *
+   * <p>
+   * The page posts the parameters it decoded from the fragment and query
+   * string, which {@link DefaultResponseParser} takes as they are. Other
+   * parsers are given the fragment and query string themselves.
+   * </p>
+   */
+  // This method is called via a message listener defined in AuthImpl.register()
+  void finish(String state, Map<String, String> params, String hash, String queryString) {
+    PendingLogin login = pending.get(state);
+    if (login != null) {
+      finish(login, params, hash, queryString);
+    }
+  }
+
+  private void finish(PendingLogin login, String hash, String queryString) {
+    finish(login, null, hash, queryString);
+  }
 
-    OAuthResponseParser.TokenInfo info = responseParser.parseResponse(hash, queryString);
+  private void finish(PendingLogin login, Map<String, String> params, String hash,
+      String queryString) {
+    login.close();
+    trace(AuthTracer.Event.FINISH, login.request);
+    stopTimer(AuthMetrics.Latency.ROUND_TRIP, login.started);
+
+    double parseStarted = startTimer();
+    OAuthResponseParser.TokenInfo info;
+    if (login.responseParser instanceof DefaultResponseParser) {
+      String authUrl = login.request.getAuthUrl();
+      ClockSkew skew = getClockSkew(authUrl);
+      double offset = skew.getOffset();
+      double received = localTime();
+      double sent = received - (ticks() - login.sentTicks);
+      DefaultResponseParser parser = (DefaultResponseParser) login.responseParser;
+      info = params != null ? parser.parseParams(params, sent, received, skew)
+          : parser.parseResponse(hash, queryString, sent, received, skew);
+      clockSkewObserved(authUrl, offset);
+    } else {
+      info = login.responseParser.parseResponse(hash, queryString);
+      toProviderTime(login.request, info);
+    }
+    stopTimer(AuthMetrics.Latency.PARSE, parseStarted);
 
     if (info.error != null) {
-      lastCallback.onFailure(
-          new RuntimeException("Error from provider: " + info.error + info.errorDesc + info.errorUri));
+      metrics.increment(AuthMetrics.Counter.PROVIDER_ERROR);
+      login.onFailure(new ProviderErrorException(info));
     } else if (info.accessToken == null) {
-      lastCallback.onFailure(new RuntimeException("Could not find access_token in hash " + hash));
+      metrics.increment(AuthMetrics.Counter.PARSE_FAILURE);
+      login.onFailure(new RuntimeException("Could not find access_token in hash " + hash));
     } else {
-      setToken(lastRequest, info);
-      lastCallback.onSuccess(info);
+      if (!(login.callback instanceof RenewalBatch)) {
+        // A batch stores the token for each of its requests itself, rather
+        // than for the merged request which no caller asked for.
+        setToken(login.request, info);
+      }
+      login.onSuccess(info);
+    }
+  }
+
+  /**
+   * Turns the expiry set by a parser other than {@link DefaultResponseParser},
+   * which is by the local clock, into one by the provider's clock, since that
+   * is what expiries are compared with.
+   */
+  private void toProviderTime(AuthRequest req, OAuthResponseParser.TokenInfo info) {
+    double offset = getClockSkew(req.getAuthUrl()).getOffset();
+    if (info.expires != null && offset != 0) {
+      info.expires = String.valueOf(Double.valueOf(info.expires) + offset);
+    }
+  }
+
+  /**
+   * Returns the estimated skew of the given provider's clock against
+   * {@link #localTime()}, which the tokens it issues update. Expiry times are
+   * stored by the provider's clock, and compared with
+   * {@link #providerTime(AuthRequest)}, so that each check uses the latest
+   * estimate.
+   */
+  ClockSkew getClockSkew(String authUrl) {
+    if (skews == null) {
+      skews = loadSkews();
+    }
+    ClockSkew skew = skews.get(authUrl);
+    if (skew == null) {
+      skew = new ClockSkew();
+      skews.put(authUrl, skew);
+    }
+    return skew;
+  }
+
+  /**
+   * Saves the estimates once a response moved the given provider's from
+   * {@code previous}, so that other pages, and this one when next loaded,
+   * start from them.
+   */
+  void clockSkewObserved(String authUrl, double previous) {
+    if (getClockSkew(authUrl).getOffset() == previous) {
+      return;
+    }
+    // Saved against the clock rather than localTime(), which is only kept by
+    // this page.
+    double drift = localTime() - clock.now();
+    StringBuilder saved = new StringBuilder();
+    for (Map.Entry<String, ClockSkew> entry : skews.entrySet()) {
+      if (saved.length() > 0) {
+        saved.append('\n');
+      }
+      saved.append(entry.getValue().getOffset() + drift).append("-----").append(entry.getKey());
+    }
+    saveClockSkews(saved.toString());
+  }
+
+  private Map<String, ClockSkew> loadSkews() {
+    Map<String, ClockSkew> loaded = new HashMap<String, ClockSkew>();
+    String saved = loadClockSkews();
+    if (saved == null || saved.length() == 0) {
+      return loaded;
+    }
+    double drift = clock.now() - localTime();
+    for (String line : saved.split("\n")) {
+      String[] parts = line.split("-----", 2);
+      if (parts.length == 2) {
+        try {
+          loaded.put(parts[1], new ClockSkew(Double.parseDouble(parts[0]) + drift));
+        } catch (NumberFormatException e) {
+          // Skip the entry, the next response from its provider replaces it.
+        }
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * Returns the clock skew estimates last passed to
+   * {@link #saveClockSkews(String)}, by this or another page, or null.
+   * Implementations keep them where the tokens are kept; by default they
+   * are not kept.
+   */
+  String loadClockSkews() {
+    return null;
+  }
+
+  /** Keeps the clock skew estimates for {@link #loadClockSkews()}. */
+  void saveClockSkews(String skews) {
+  }
+
+  /** Called when the provider's response arrives, to clean up the popup. */
+  void closeWindow() {
+  }
+
+  /**
+   * A login waiting for the provider's response. Once its callback has been
+   * called, it is no longer pending.
+   */
+  final class PendingLogin
+      implements Callback<OAuthResponseParser.TokenInfo, Throwable>, LoginHandle {
+    final AuthRequest request;
+    final OAuthResponseParser responseParser;
+    final Callback<OAuthResponseParser.TokenInfo, Throwable> callback;
+    final String state;
+    final boolean silent;
+    double started;
+
+    /** The {@link #ticks()} when the request was sent. */
+    double sentTicks;
+
+    /** When the login times out, or 0 if it does not. */
+    double deadline;
+
+    PendingLogin(AuthRequest request, OAuthResponseParser responseParser,
+        Callback<OAuthResponseParser.TokenInfo, Throwable> callback, String state,
+        boolean silent) {
+      this.request = request;
+      this.responseParser = responseParser;
+      this.callback = callback;
+      this.state = state;
+      this.silent = silent;
+    }
+
+    @Override
+    public void onSuccess(OAuthResponseParser.TokenInfo info) {
+      pending.remove(state);
+      callback.onSuccess(info);
+    }
+
+    @Override
+    public void onFailure(Throwable reason) {
+      pending.remove(state);
+      callback.onFailure(reason);
+    }
+
+    @Override
+    public void cancel() {
+      abort(LoginAbortedException.Reason.CANCELLED);
+    }
+
+    boolean isPending() {
+      return pending.get(state) == this;
+    }
+
+    /** Ends the login without waiting for the provider any longer. */
+    void abort(LoginAbortedException.Reason reason) {
+      if (!isPending()) {
+        return;
+      }
+      if (lastLogin == this) {
+        lastLogin = null;
+      }
+      close();
+      onFailure(new LoginAbortedException(reason));
+    }
+
+    /** Cleans up the popup or frame of the login. */
+    void close() {
+      if (silent) {
+        closeSilentLogin(state);
+      } else {
+        closeWindow();
+      }
     }
   }
 
@@ -189,13 +979,142 @@ public abstract class Auth {
     String decode(String url);
   }
 
+  /**
+   * Returns the stored token for the request, or null if there is none. Tokens
+   * are only read from the store once, and kept in memory after that.
+   */
   OAuthResponseParser.TokenInfo getToken(AuthRequest req) {
-    String tokenStr = tokenStore.get(req.asString());
-    return tokenStr != null ? OAuthResponseParser.TokenInfo.fromString(tokenStr) : null;
+    trace(AuthTracer.Event.GET_TOKEN, req);
+    String key = req.asString();
+    OAuthResponseParser.TokenInfo info = tokens.get(key);
+    if (info == null) {
+      double started = startTimer();
+      String tokenStr = tokenStore.get(key);
+      stopTimer(AuthMetrics.Latency.STORE_GET, started);
+      if (tokenStr != null && tokenStr.length() > 0) {
+        info = OAuthResponseParser.TokenInfo.fromString(tokenStr);
+        tokens.put(key, info);
+        watch(key, req, info);
+      }
+    }
+    return info;
   }
 
   void setToken(AuthRequest req, OAuthResponseParser.TokenInfo info) {
-    tokenStore.set(req.asString(), info.asString());
+    trace(AuthTracer.Event.SET_TOKEN, req);
+    String key = req.asString();
+    double started = startTimer();
+    tokenStore.set(key, info.asString());
+    stopTimer(AuthMetrics.Latency.STORE_SET, started);
+    remember(key, req, info);
+  }
+
+  /**
+   * Stores the same token for each of the requests, such as those of a
+   * renewal batch, with a single write to the store.
+   */
+  void setTokens(List<AuthRequest> reqs, OAuthResponseParser.TokenInfo info) {
+    Map<String, AuthRequest> byKey = new LinkedHashMap<String, AuthRequest>();
+    Map<String, String> values = new HashMap<String, String>();
+    String value = info.asString();
+    for (AuthRequest req : reqs) {
+      trace(AuthTracer.Event.SET_TOKEN, req);
+      byKey.put(req.asString(), req);
+      values.put(req.asString(), value);
+    }
+    if (values.isEmpty()) {
+      return;
+    }
+    double started = startTimer();
+    tokenStore.setAll(values);
+    stopTimer(AuthMetrics.Latency.STORE_SET, started);
+    for (Map.Entry<String, AuthRequest> entry : byKey.entrySet()) {
+      remember(entry.getKey(), entry.getValue(), info);
+    }
+  }
+
+  /** Keeps a token which was just stored in memory, and tells the handlers. */
+  private void remember(String key, AuthRequest req, OAuthResponseParser.TokenInfo info) {
+    tokens.put(key, info);
+    boolean refreshed = watches.containsKey(key);
+    watch(key, req, info);
+    fire(new TokenEvent(refreshed ? TokenEvent.Kind.REFRESHED : TokenEvent.Kind.ACQUIRED, req,
+        req.getClientId(), info));
+  }
+
+  /**
+   * Discards the stored token for the request, if it is still the given one,
+   * for example because the server rejected it.
+   */
+  void invalidateToken(AuthRequest req, OAuthResponseParser.TokenInfo info) {
+    OAuthResponseParser.TokenInfo current = getToken(req);
+    if (current != null && current.accessToken.equals(info.accessToken)) {
+      clearToken(req);
+    }
+  }
+
+  /**
+   * Forgets the token kept in memory for the given key, so that it is read
+   * from the store again.
+   */
+  void forgetToken(String key) {
+    tokens.remove(key);
+  }
+
+  /**
+   * Forgets the tokens kept in memory, so that they are read from the store
+   * again, when another window changed a stored item holding tokens, or
+   * cleared all items ({@code item} is then null).
+   */
+  void storageChanged(String item) {
+    if (item == null || TokenStoreImpl.holdsTokens(item)) {
+      tokens.clear();
+    }
+  }
+
+  /**
+   * Prepares for the given requests so that the first {@code login()} for
+   * them is as fast as possible, ideally called while the application is idle
+   * after it has loaded.
+   *
+   * <p>
+   * The requests are handled incrementally on the {@link Scheduler}. Their
+   * stored tokens are read into memory, their authorization URLs are built
+   * ahead of time, and the browser is hinted to resolve and connect to their
+   * providers.
+   * </p>
+   */
+  public void prewarm(final AuthRequest... toWarm) {
+    scheduler.scheduleIncremental(new RepeatingCommand() {
+      private int next;
+
+      @Override
+      public boolean execute() {
+        if (next < toWarm.length) {
+          AuthRequest req = toWarm[next++];
+          getToken(req);
+          preconnect(req.toUrl(urlCodex));
+        }
+        return next < toWarm.length;
+      }
+    });
+  }
+
+  /**
+   * Hints the browser to connect to the server of the given URL ahead of
+   * time. Implementations which cannot do so ignore it.
+   */
+  void preconnect(String url) {
+  }
+
+  /** Returns the JSON snapshot of the current {@link AuthStats}, if any. */
+  String statsJson() {
+    return metrics instanceof AuthStats ? ((AuthStats) metrics).toJson() : null;
+  }
+
+  /** Returns the JSON export of the current {@link AuthTracer}, if any. */
+  String traceJson() {
+    return tracer == null ? null : tracer.toJson();
   }
 
   /**
@@ -209,6 +1128,338 @@ public abstract class Auth {
    */
   public void clearAllTokens() {
     tokenStore.clear();
+    tokens.clear();
+    watches.clear();
+    fire(new TokenEvent(TokenEvent.Kind.CLEARED, null, null, null));
+  }
+
+  /**
+   * Clears the stored token for the given request only, leaving the tokens of
+   * other requests in place.
+   */
+  public void clearToken(AuthRequest req) {
+    String key = req.asString();
+    tokens.remove(key);
+    watches.remove(key);
+    tokenStore.removeAll(Collections.singleton(key));
+    fire(new TokenEvent(TokenEvent.Kind.CLEARED, req, req.getClientId(), null));
+  }
+
+  /**
+   * Clears the stored tokens of every request for the given client ID, for
+   * example when the user logs out of that provider. Tokens for other clients
+   * are left in place.
+   */
+  public void clearTokens(String clientId) {
+    final String prefix = clientId + "-----";
+    removeKeys(tokens, prefix);
+    removeKeys(watches, prefix);
+    tokenStore.removeIf(new TokenStore.Filter() {
+      @Override
+      public boolean matches(String key, String value) {
+        return key.startsWith(prefix);
+      }
+    });
+    fire(new TokenEvent(TokenEvent.Kind.CLEARED, null, clientId, null));
+  }
+
+  /**
+   * Sets the provider's token revocation endpoint (RFC 7009) for the given
+   * client, used by {@link #revoke(AuthRequest)} and {@link #revokeAll()}.
+   * Tokens are sent to it one per request.
+   */
+  public Auth setRevocationUrl(String clientId, String url) {
+    return setRevocationUrl(clientId, url, false);
+  }
+
+  /**
+   * Sets the provider's token revocation endpoint for the given client.
+   *
+   * @param batched Whether the endpoint accepts several {@code token}
+   *        parameters in one request, so that all the client's tokens are
+   *        revoked with a single request
+   */
+  public Auth setRevocationUrl(String clientId, String url, boolean batched) {
+    revocationEndpoints.put(clientId, new RevocationEndpoint(url, batched));
+    return this;
+  }
+
+  /**
+   * Clears the stored token for the given request, like
+   * {@link #clearToken(AuthRequest)}, and asks the provider to revoke it, if
+   * a revocation endpoint is set for its client.
+   *
+   * <p>
+   * The token is cleared right away, without waiting for the provider. The
+   * revocation is sent as a beacon, so it is delivered even when called as
+   * the page unloads, and its result is not reported.
+   * </p>
+   */
+  public void revoke(AuthRequest req) {
+    OAuthResponseParser.TokenInfo info = getToken(req);
+    clearToken(req);
+    if (info != null) {
+      Map<String, Set<String>> byClient = new HashMap<String, Set<String>>();
+      addRevocation(byClient, req.getClientId(), info.accessToken);
+      sendRevocations(byClient);
+    }
+  }
+
+  /**
+   * Clears all stored tokens, like {@link #clearAllTokens()}, and asks the
+   * providers to revoke them, for example when the user logs out.
+   *
+   * <p>
+   * The tokens of each client are grouped, so that a token shared by several
+   * requests is only revoked once, and endpoints which accept several tokens
+   * are sent a single request per client. As with
+   * {@link #revoke(AuthRequest)}, the tokens are cleared right away and the
+   * revocations sent as beacons.
+   * </p>
+   */
+  public void revokeAll() {
+    Map<String, String> stored = tokenStore.getAll();
+    clearAllTokens();
+    Map<String, Set<String>> byClient = new LinkedHashMap<String, Set<String>>();
+    for (Map.Entry<String, String> entry : stored.entrySet()) {
+      int end = entry.getKey().indexOf("-----");
+      if (end > 0 && entry.getValue() != null && entry.getValue().length() > 0) {
+        addRevocation(byClient, entry.getKey().substring(0, end),
+            OAuthResponseParser.TokenInfo.fromString(entry.getValue()).accessToken);
+      }
+    }
+    sendRevocations(byClient);
+  }
+
+  private void addRevocation(Map<String, Set<String>> byClient, String clientId,
+      String accessToken) {
+    if (accessToken == null || !revocationEndpoints.containsKey(clientId)) {
+      return;
+    }
+    Set<String> tokens = byClient.get(clientId);
+    if (tokens == null) {
+      tokens = new LinkedHashSet<String>();
+      byClient.put(clientId, tokens);
+    }
+    tokens.add(accessToken);
+  }
+
+  private void sendRevocations(Map<String, Set<String>> byClient) {
+    for (Map.Entry<String, Set<String>> entry : byClient.entrySet()) {
+      RevocationEndpoint endpoint = revocationEndpoints.get(entry.getKey());
+      String clientParam = "client_id=" + urlCodex.encode(entry.getKey());
+      StringBuilder batch = new StringBuilder();
+      for (String token : entry.getValue()) {
+        String tokenParam = "token=" + urlCodex.encode(token);
+        if (endpoint.batched) {
+          batch.append(tokenParam).append('&');
+        } else {
+          sendRevocation(endpoint.url, tokenParam + "&" + clientParam);
+        }
+      }
+      if (batch.length() > 0) {
+        sendRevocation(endpoint.url, batch.append(clientParam).toString());
+      }
+    }
+  }
+
+  /**
+   * Posts the form-encoded body to the revocation endpoint without waiting
+   * for, or reporting, the response. Implementations send it as a beacon;
+   * by default nothing is sent.
+   */
+  void sendRevocation(String url, String body) {
+  }
+
+  /** A provider's token revocation endpoint. */
+  private static class RevocationEndpoint {
+    final String url;
+    final boolean batched;
+
+    RevocationEndpoint(String url, boolean batched) {
+      this.url = url;
+      this.batched = batched;
+    }
+  }
+
+  private static void removeKeys(Map<String, ?> map, String prefix) {
+    Iterator<String> keys = map.keySet().iterator();
+    while (keys.hasNext()) {
+      if (keys.next().startsWith(prefix)) {
+        keys.remove();
+      }
+    }
+  }
+
+  private static void removeAccountKeys(Map<String, ?> map, String account) {
+    Iterator<String> keys = map.keySet().iterator();
+    while (keys.hasNext()) {
+      if (account.equals(AuthRequest.accountOf(keys.next()))) {
+        keys.remove();
+      }
+    }
+  }
+
+  /**
+   * Returns the accounts, as given to {@link AuthRequest#withLoginHint}, which
+   * have tokens stored.
+   *
+   * <p>
+   * The tokens of each account are stored apart from the others, so listing
+   * the accounts reads no tokens, and {@link #clearAccount(String)} neither
+   * reads nor rewrites the tokens of other accounts.
+   * </p>
+   */
+  public Set<String> getAccounts() {
+    return tokenStore.getAccounts();
+  }
+
+  /**
+   * Clears the stored tokens of every request for the given account, for
+   * example when the user signs it out, leaving the tokens of other accounts
+   * in place.
+   */
+  public void clearAccount(String account) {
+    Collection<String> keys = tokenStore.removeAccount(account);
+    removeAccountKeys(tokens, account);
+    removeAccountKeys(watches, account);
+    for (String key : keys) {
+      AuthRequest req = AuthRequest.fromString(key);
+      fire(new TokenEvent(TokenEvent.Kind.CLEARED, req, req.getClientId(), null));
+    }
+  }
+
+  /**
+   * Adds a handler to be told when tokens are obtained, are about to expire
+   * or have expired, or are cleared, instead of polling
+   * {@link #expiresIn(AuthRequest)}.
+   *
+   * <p>
+   * Expiry is reported for the tokens this class has read or obtained, by a
+   * single timer set for the next token due, which only runs while there are
+   * handlers.
+   * </p>
+   */
+  public HandlerRegistration addTokenHandler(TokenEvent.Handler handler) {
+    if (handlers == null) {
+      handlers = new HandlerManager(this);
+    }
+    final HandlerRegistration registration = handlers.addHandler(TokenEvent.TYPE, handler);
+    scheduleExpiryCheck();
+    return new HandlerRegistration() {
+      @Override
+      public void removeHandler() {
+        registration.removeHandler();
+        if (!hasTokenHandlers()) {
+          // Stop the timer.
+          expiryGeneration++;
+          expiryDue = Double.POSITIVE_INFINITY;
+        }
+      }
+    };
+  }
+
+  private boolean hasTokenHandlers() {
+    return handlers != null && handlers.getHandlerCount(TokenEvent.TYPE) > 0;
+  }
+
+  private void fire(TokenEvent event) {
+    if (hasTokenHandlers()) {
+      handlers.fireEvent(event);
+    }
+  }
+
+  private void watch(String key, AuthRequest req, OAuthResponseParser.TokenInfo info) {
+    TokenWatch watch = watches.get(key);
+    if (watch == null || watch.info != info) {
+      watches.put(key, new TokenWatch(req, info));
+      scheduleExpiryCheck();
+    }
+  }
+
+  /**
+   * Sets the expiry timer for the next token due, unless it is already set
+   * for then or earlier.
+   */
+  private void scheduleExpiryCheck() {
+    if (!hasTokenHandlers()) {
+      return;
+    }
+    // Due times are by each provider's clock, the timer by the local one.
+    double next = Double.POSITIVE_INFINITY;
+    for (TokenWatch watch : watches.values()) {
+      next = Math.min(next,
+          watch.due() - getClockSkew(watch.request.getAuthUrl()).getOffset());
+    }
+    if (next >= expiryDue) {
+      return;
+    }
+    final int generation = ++expiryGeneration;
+    expiryDue = next;
+    scheduler.scheduleFixedDelay(new RepeatingCommand() {
+      @Override
+      public boolean execute() {
+        if (generation == expiryGeneration) {
+          expiryDue = Double.POSITIVE_INFINITY;
+          checkExpiry();
+          scheduleExpiryCheck();
+        }
+        return false;
+      }
+    }, (int) Math.max(0, Math.min(Integer.MAX_VALUE, next - localTime())));
+  }
+
+  /** Fires the expiry events which are due. */
+  private void checkExpiry() {
+    List<TokenEvent> due = new ArrayList<TokenEvent>();
+    for (TokenWatch watch : watches.values()) {
+      if (watch.info.expires == null) {
+        continue;
+      }
+      double now = providerTime(watch.request);
+      double expires = Double.valueOf(watch.info.expires);
+      if (!watch.expiring && now >= expires - TEN_MINUTES) {
+        watch.expiring = true;
+        due.add(watch.event(TokenEvent.Kind.EXPIRING));
+      }
+      if (!watch.expired && now >= expires) {
+        watch.expired = true;
+        due.add(watch.event(TokenEvent.Kind.EXPIRED));
+      }
+    }
+    // Handlers may change the tokens, so fire once done with them.
+    for (TokenEvent event : due) {
+      fire(event);
+    }
+  }
+
+  /** A token to report expiry events for, and which of them were fired. */
+  private static class TokenWatch {
+    final AuthRequest request;
+    final OAuthResponseParser.TokenInfo info;
+    boolean expiring;
+    boolean expired;
+
+    TokenWatch(AuthRequest request, OAuthResponseParser.TokenInfo info) {
+      this.request = request;
+      this.info = info;
+    }
+
+    /**
+     * Returns when the next event for the token is due, by its provider's
+     * clock, or infinity if none is.
+     */
+    double due() {
+      if (info.expires == null || expired) {
+        return Double.POSITIVE_INFINITY;
+      }
+      double expires = Double.valueOf(info.expires);
+      return expiring ? expires : expires - TEN_MINUTES;
+    }
+
+    TokenEvent event(TokenEvent.Kind kind) {
+      return new TokenEvent(kind, request, request.getClientId(), info);
+    }
   }
 
   /*
@@ -216,11 +1467,12 @@ public abstract class Auth {
    *        status.
    * @return The number of milliseconds until the token expires, or negative
    *         infinity if no token was found.
+   * @see #addTokenHandler(TokenEvent.Handler)
    */
   public double expiresIn(AuthRequest req) {
-    String val = tokenStore.get(req.asString());
-    return val == null ? Double.NEGATIVE_INFINITY :
-        Double.valueOf(OAuthResponseParser.TokenInfo.fromString(val).expires) - clock.now();
+    OAuthResponseParser.TokenInfo info = getToken(req);
+    return info == null ? Double.NEGATIVE_INFINITY :
+        Double.valueOf(info.expires) - providerTime(req);
   }
 
 }
@@ -21,6 +21,7 @@ import com.google.gwt.core.client.Duration;
 import com.google.gwt.core.client.GWT;
 import com.google.gwt.core.client.JavaScriptObject;
 import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
 import com.google.gwt.storage.client.Storage;
 
 /**
@@ -32,15 +33,46 @@ class AuthImpl extends Auth {
 
   static final AuthImpl INSTANCE = new AuthImpl();
 
+  private static final String SKEWS_KEY = "gwt-oauth2-skew";
+
   private Window window;
 
+  /** Whether {@link #window} was opened blank, waiting for a batch to be sent. */
+  private boolean windowReserved;
+
   AuthImpl() {
     super(getTokenStore(), new RealClock(), new RealUrlCodex(), Scheduler.get(),
     // Default to use the bundled oauthWindow.html
         GWT.getModuleBaseURL() + "oauthWindow.html");
+    // Tabs of the same application share the store, let only one of them renew
+    // each token at a time.
+    leases.coordinator = new StorageCoordinator(leases);
     register();
   }
 
+  /**
+   * Uses 128 bits from {@code crypto.getRandomValues()}, so that the state
+   * cannot be guessed, or else the default where it is not available.
+   */
+  @Override
+  String newState() {
+    String state = randomState();
+    return state != null ? state : super.newState();
+  }
+
+  private static native String randomState() /*-{
+    var crypto = $wnd.crypto || $wnd.msCrypto;
+    if (!crypto || !crypto.getRandomValues || !$wnd.Uint32Array) {
+      return null;
+    }
+    var words = crypto.getRandomValues(new $wnd.Uint32Array(4));
+    var state = '';
+    for (var i = 0; i < words.length; i++) {
+      state += ('0000000' + words[i].toString(16)).slice(-8);
+    }
+    return state;
+  }-*/;
+
   /**
    * Returns the correct {@link TokenStore} implementation to use based on
    * browser support for localStorage.
@@ -53,7 +85,20 @@ class AuthImpl extends Auth {
   }
 
   /**
-   * Register a global function to receive auth responses from the popup window.
+   * Register listeners to receive auth responses from the popup window.
+   *
+   * <p>
+   * The OAuth window page posts its response to this window, or broadcasts it
+   * on the {@code gwt-oauth2} BroadcastChannel when a Cross-Origin-Opener-Policy
+   * has severed its link to this window. Messages are only accepted from the
+   * origin of the OAuth window URL, and are dispatched to the pending login
+   * matching their {@code state}, with the parameters the page decoded.
+   * </p>
+   *
+   * <p>
+   * A global function is also registered for copies of the OAuth window page
+   * which predate the message transport.
+   * </p>
    */
   private native void register() /*-{
     var self = this;
@@ -61,7 +106,55 @@ class AuthImpl extends Auth {
       $wnd.oauth2 = {};
     }
     $wnd.oauth2.__doLogin = $entry(function(hash, uri) {
-      self.@com.google.api.gwt.oauth2.client.Auth::finish(Ljava/lang/String;Ljava/lang/String;)(hash, uri);
+      self.@com.google.api.gwt.oauth2.client.Auth::finish(Ljava/lang/String;Ljava/lang/String;)(hash, uri || '');
+    });
+
+    var receive = $entry(function(data) {
+      if (data && data.type == 'gwt-oauth2' && data.state) {
+        var params = data.params && typeof data.params == 'object'
+            ? @com.google.api.gwt.oauth2.client.TokenStoreImpl::toMap(Lcom/google/gwt/core/client/JavaScriptObject;)(data.params)
+            : null;
+        self.@com.google.api.gwt.oauth2.client.Auth::finish(Ljava/lang/String;Ljava/util/Map;Ljava/lang/String;Ljava/lang/String;)(
+            String(data.state), params, String(data.hash || ''), String(data.query || ''));
+      }
+    });
+    if ($wnd.addEventListener) {
+      $wnd.addEventListener('message', function(e) {
+        var url = self.@com.google.api.gwt.oauth2.client.Auth::oauthWindowUrl;
+        if (e.origin == @com.google.api.gwt.oauth2.client.AuthImpl::originOf(Ljava/lang/String;)(url)) {
+          receive(e.data);
+        }
+      }, false);
+    }
+    if ($wnd.BroadcastChannel) {
+      // A BroadcastChannel only carries messages between pages of the same
+      // origin, so unlike window messages these need no origin check.
+      new $wnd.BroadcastChannel('gwt-oauth2').onmessage = function(e) {
+        receive(e.data);
+      };
+    }
+
+    // Tokens are kept in memory, forget them when another window changes the
+    // stored ones.
+    if ($wnd.addEventListener) {
+      $wnd.addEventListener('storage', $entry(function(e) {
+        self.@com.google.api.gwt.oauth2.client.Auth::storageChanged(Ljava/lang/String;)(e.key);
+      }), false);
+    }
+    // Each read of oauth2.stats returns a fresh snapshot of the AuthStats set
+    // with setMetrics(), or null if there are none.
+    Object.defineProperty($wnd.oauth2, 'stats', {
+      configurable: true,
+      get: $entry(function() {
+        var json = self.@com.google.api.gwt.oauth2.client.Auth::statsJson()();
+        return json == null ? null : JSON.parse(json);
+      })
+    });
+    // Returns the events recorded by the AuthTracer set with setTracer(), or
+    // null if there is none.
+    $wnd.oauth2.trace = $entry(function() {
+      var json = self.@com.google.api.gwt.oauth2.client.Auth::traceJson()();
+      return json == null ? null : JSON.parse(json);
     });
   }-*/;
 
@@ -71,26 +164,197 @@ class AuthImpl extends Auth {
    */
   @Override
   void doLogin(String authUrl, Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
-    if (window != null && window.isOpen()) {
+    if (windowReserved && window != null && window.isOpen()) {
+      windowReserved = false;
+      window.navigate(authUrl);
+    } else if (window != null && window.isOpen()) {
       callback.onFailure(new IllegalStateException("Authentication in progress"));
     } else {
+      windowReserved = false;
       window = openWindow(authUrl, height, width);
       if (window == null) {
+        metrics.increment(AuthMetrics.Counter.POPUP_BLOCKED);
         callback.onFailure(new RuntimeException(
             "The authentication popup window appears to have been blocked"));
+      } else {
+        metrics.increment(AuthMetrics.Counter.POPUP_OPENED);
       }
     }
   }
 
+  /**
+   * Opens a blank popup while the user action which started the batch is
+   * still being handled, since opening it when the batch is sent would likely
+   * be blocked.
+   */
+  @Override
+  boolean beginBatch() {
+    if (window != null && window.isOpen()) {
+      return false;
+    }
+    window = openWindow("about:blank", height, width);
+    windowReserved = window != null;
+    metrics.increment(windowReserved
+        ? AuthMetrics.Counter.POPUP_OPENED : AuthMetrics.Counter.POPUP_BLOCKED);
+    return windowReserved;
+  }
+
+  /** A login which used the reserved window has cleared {@link #windowReserved}. */
+  @Override
+  void releaseWindow() {
+    if (windowReserved) {
+      closeWindow();
+    }
+  }
+
+  /**
+   * Queues the command as a microtask through a resolved Promise, or defers
+   * it in browsers without Promises.
+   */
+  @Override
+  native void scheduleMicrotask(ScheduledCommand command) /*-{
+    if ($wnd.Promise) {
+      $wnd.Promise.resolve().then($entry(function() {
+        command.@com.google.gwt.core.client.Scheduler.ScheduledCommand::execute()();
+      }));
+    } else {
+      var scheduler = this.@com.google.api.gwt.oauth2.client.Auth::scheduler;
+      scheduler.@com.google.gwt.core.client.Scheduler::scheduleDeferred(Lcom/google/gwt/core/client/Scheduler$ScheduledCommand;)(command);
+    }
+  }-*/;
+
+  @Override
+  public Auth setTracer(AuthTracer tracer) {
+    if (tracer != null) {
+      tracer.timeline = true;
+    }
+    return super.setTracer(tracer);
+  }
+
+  /** Keeps the estimates in localStorage, next to the tokens, where supported. */
   @Override
-  void finish(String hash, String queryString) {
+  String loadClockSkews() {
+    Storage storage = Storage.getLocalStorageIfSupported();
+    return storage == null ? null : storage.getItem(SKEWS_KEY);
+  }
+
+  @Override
+  void saveClockSkews(String skews) {
+    Storage storage = Storage.getLocalStorageIfSupported();
+    if (storage != null) {
+      storage.setItem(SKEWS_KEY, skews);
+    }
+  }
+
+  /** Uses {@code performance.now()}, which is monotonic, where available. */
+  @Override
+  native double ticks() /*-{
+    var perf = $wnd.performance;
+    return perf && perf.now ? perf.now() : new Date().getTime();
+  }-*/;
+
+  @Override
+  boolean isWindowOpen() {
+    return window != null && window.isOpen();
+  }
+
+  @Override
+  void closeWindow() {
     // Clean up the popup
     if (window != null && window.isOpen()) {
       window.close();
     }
-    super.finish(hash, queryString);
+    // Some browsers only report the popup as closed a little later, which
+    // must not fail a login started right away with "in progress".
+    window = null;
+    windowReserved = false;
   }
 
+  /**
+   * Sends the revocation with {@code navigator.sendBeacon}, which outlives
+   * the page, or else a keepalive fetch, or an asynchronous XHR in older
+   * browsers.
+   */
+  @Override
+  native void sendRevocation(String url, String body) /*-{
+    var type = 'application/x-www-form-urlencoded';
+    var nav = $wnd.navigator;
+    if (nav.sendBeacon && $wnd.Blob
+        && nav.sendBeacon(url, new $wnd.Blob([body], {type: type}))) {
+      return;
+    }
+    if ($wnd.fetch) {
+      $wnd.fetch(url, {method: 'POST', body: body, headers: {'Content-Type': type},
+          keepalive: true, mode: 'no-cors', credentials: 'omit'})['catch'](function() {});
+      return;
+    }
+    var xhr = new $wnd.XMLHttpRequest();
+    xhr.open('POST', url, true);
+    xhr.setRequestHeader('Content-Type', type);
+    xhr.send(body);
+  }-*/;
+
+  /** Hidden frames of the background renewals in progress, by their state. */
+  private final JavaScriptObject frames = JavaScriptObject.createObject();
+
+  /**
+   * Loads the authorization URL in a hidden frame, from which
+   * oauthWindow.html posts the response to this page.
+   */
+  @Override
+  native void doSilentLogin(String state, String authUrl,
+      Callback<OAuthResponseParser.TokenInfo, Throwable> callback) /*-{
+    var frame = $doc.createElement('iframe');
+    frame.style.display = 'none';
+    frame.src = authUrl;
+    $doc.body.appendChild(frame);
+    this.@com.google.api.gwt.oauth2.client.AuthImpl::frames[state] = frame;
+  }-*/;
+
+  @Override
+  native void closeSilentLogin(String state) /*-{
+    var frames = this.@com.google.api.gwt.oauth2.client.AuthImpl::frames;
+    var frame = frames[state];
+    delete frames[state];
+    if (frame && frame.parentNode) {
+      frame.parentNode.removeChild(frame);
+    }
+  }-*/;
+
+  /**
+   * Adds {@code dns-prefetch} and {@code preconnect} hints for the origin of
+   * the given URL, once per origin. Browsers which partition connections by
+   * top-level site will not reuse the connection for the popup, but still
+   * benefit from the resolved address.
+   */
+  @Override
+  native void preconnect(String url) /*-{
+    var origin = @com.google.api.gwt.oauth2.client.AuthImpl::originOf(Ljava/lang/String;)(url);
+    var hinted = @com.google.api.gwt.oauth2.client.AuthImpl::preconnected;
+    if (hinted[origin]) {
+      return;
+    }
+    hinted[origin] = true;
+    var head = $doc.getElementsByTagName('head')[0];
+    var rels = ['dns-prefetch', 'preconnect'];
+    for (var i = 0; i < rels.length; i++) {
+      var link = $doc.createElement('link');
+      link.rel = rels[i];
+      link.href = origin;
+      head.appendChild(link);
+    }
+  }-*/;
+
+  /** Origins which were already hinted by {@link #preconnect(String)}. */
+  private static final JavaScriptObject preconnected = JavaScriptObject.createObject();
+
+  /** Returns the origin of the given URL, resolved against this page. */
+  private static native String originOf(String url) /*-{
+    var a = $doc.createElement('a');
+    a.href = url;
+    return a.protocol + '//' + a.host;
+  }-*/;
+
   // Because GWT's Window.open() method does not return a reference to the
   // newly-opened window, we have to manage this all ourselves manually...
   private static native Window openWindow(String url, int height, int width) /*-{
@@ -109,6 +373,10 @@ class AuthImpl extends Auth {
     native void close() /*-{
       this.close();
     }-*/;
+
+    native void navigate(String url) /*-{
+      this.location.href = url;
+    }-*/;
   }
 
   /** Real GWT implementation of Clock. */
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+/**
+ * Receives counters and latencies from the authentication flow of an
+ * {@link Auth}.
+ *
+ * <p>
+ * See {@link Auth#setMetrics(AuthMetrics)}, and {@link AuthStats} for an
+ * implementation which keeps totals and histograms in memory.
+ * </p>
+ */
+public interface AuthMetrics {
+
+  /** Events counted during the authentication flow. */
+  enum Counter {
+    /** A valid token was found in the store. */
+    CACHE_HIT,
+    /** No valid token was found in the store, so access must be requested. */
+    CACHE_MISS,
+    /** The popup window was opened. */
+    POPUP_OPENED,
+    /** The popup window could not be opened. */
+    POPUP_BLOCKED,
+    /** The provider responded with an error. */
+    PROVIDER_ERROR,
+    /** The provider's response did not contain an access token. */
+    PARSE_FAILURE,
+    /**
+     * A login failed without contacting the provider, because of an earlier
+     * error from the provider or the rate limit.
+     */
+    FAILED_FAST,
+    /**
+     * A token which is expiring soon was used while it is renewed in the
+     * background, see {@link Auth#setStaleWhileRevalidate(boolean)}.
+     */
+    STALE_HIT
+  }
+
+  /** Operations whose latency is recorded. */
+  enum Latency {
+    /** Reading a token from the {@link TokenStore}. */
+    STORE_GET,
+    /** Writing a token to the {@link TokenStore}. */
+    STORE_SET,
+    /** From requesting access from the provider until its response arrives. */
+    ROUND_TRIP,
+    /** Parsing the provider's response. */
+    PARSE
+  }
+
+  /**
+   * Metrics which discards everything it is given, used by default. Since
+   * metrics can be set at runtime, each event is still dispatched to this
+   * instance's empty methods rather than compiled away, but the clock is not
+   * read for timings.
+   */
+  AuthMetrics NONE = new AuthMetrics() {
+    @Override
+    public void increment(Counter counter) {
+    }
+
+    @Override
+    public void record(Latency latency, double millis) {
+    }
+  };
+
+  void increment(Counter counter);
+
+  void record(Latency latency, double millis);
+}
@@ -16,6 +16,11 @@
 
 package com.google.api.gwt.oauth2.client;
 
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * Represents a request for authentication to an OAuth 2.0 provider server.
  *
@@ -27,6 +32,13 @@ public class AuthRequest {
   private String[] scopes;
   private String scopeDelimiter = " ";
   private String tokenType = "token";
+  private boolean includeGrantedScopes;
+  private int timeout;
+  private String loginHint;
+
+  // The URL last built by toUrl(), and the codex it was built with.
+  private String url;
+  private Auth.UrlCodex urlCodex;
 
   /**
    * @param authUrl URL of the OAuth 2.0 provider server
@@ -40,6 +52,7 @@ public class AuthRequest {
   /** Set some OAuth 2.0 scopes to request access to. */
   public AuthRequest withScopes(String... scopes) {
     this.scopes = scopes;
+    this.url = null;
     return this;
   }
 
@@ -55,31 +68,120 @@ public class AuthRequest {
    */
   public AuthRequest withScopeDelimiter(String scopeDelimiter) {
     this.scopeDelimiter = scopeDelimiter;
+    this.url = null;
     return this;
   }
 
   public AuthRequest withTokenType(String tokenType) {
     this.tokenType = tokenType;
+    this.url = null;
+    return this;
+  }
+
+  /**
+   * Asks the provider to include scopes previously granted to this client in
+   * the new token (incremental authorization). Only some providers, such as
+   * Google, support this parameter; others will ignore it.
+   */
+  public AuthRequest withIncludeGrantedScopes(boolean includeGrantedScopes) {
+    this.includeGrantedScopes = includeGrantedScopes;
+    this.url = null;
     return this;
   }
 
+  /**
+   * Sets how long, in milliseconds, to wait for the provider's response to
+   * this request before failing with a {@link LoginAbortedException}. This
+   * overrides {@link Auth#setLoginTimeout(int)}; the default of 0 uses that
+   * value.
+   */
+  public AuthRequest withTimeout(int millis) {
+    this.timeout = millis;
+    return this;
+  }
+
+  /**
+   * Sets the account to sign in with, such as an email address or subject
+   * ID, passed to the provider as {@code login_hint}. The tokens of each
+   * account are stored apart, so that switching between accounts does not
+   * ask the user again. See {@link Auth#getAccounts()}.
+   */
+  public AuthRequest withLoginHint(String loginHint) {
+    this.loginHint = loginHint;
+    this.url = null;
+    return this;
+  }
+
+  String getLoginHint() {
+    return loginHint;
+  }
+
+  int getTimeout() {
+    return timeout;
+  }
+
+  String getAuthUrl() {
+    return authUrl;
+  }
+
+  String getClientId() {
+    return clientId;
+  }
+
   /**
    * Returns a URL representation of this request, appending the client ID and
    * scopes to the original authUrl.
+   *
+   * <p>The URL is kept until this request is changed.</p>
    */
   String toUrl(Auth.UrlCodex urlCodex) {
+    if (url == null || this.urlCodex != urlCodex) {
+      this.url = buildUrl(urlCodex);
+      this.urlCodex = urlCodex;
+    }
+    return url;
+  }
+
+  private String buildUrl(Auth.UrlCodex urlCodex) {
     return new StringBuilder(authUrl)
         .append(authUrl.contains("?") ? "&" : "?")
         .append("client_id").append("=").append(urlCodex.encode(clientId))
         .append("&").append("response_type").append("=").append(tokenType)
         .append("&").append("scope").append("=").append(scopesToString(urlCodex))
+        .append(includeGrantedScopes ? "&include_granted_scopes=true" : "")
+        .append(loginHint != null ? "&login_hint=" + urlCodex.encode(loginHint) : "")
         .toString();
   }
 
-  /** Returns a unique representation of this request for use as a cookie name. */
+  /**
+   * Returns a key identifying the provider, client and account of this
+   * request, regardless of the scopes requested.
+   */
+  String clientKey() {
+    return authUrl + "-----" + clientId + accountSuffix();
+  }
+
+  /**
+   * Returns a unique representation of this request for use as a cookie name.
+   * The account is only appended when there is one, so that tokens stored
+   * without one are still found.
+   */
   String asString() {
     // Don't need to URL-encode the scopes since they're just stored here.
-    return clientId + "-----" + scopesToString(null);
+    return clientId + "-----" + scopesToString(null) + accountSuffix();
+  }
+
+  private String accountSuffix() {
+    return loginHint == null ? "" : "-----" + loginHint;
+  }
+
+  /**
+   * Returns the account of the request represented by the string
+   * serialization, or null if it has none.
+   */
+  static String accountOf(String str) {
+    String[] parts = str.split("-----", 3);
+    return parts.length == 3 ? parts[2] : null;
   }
 
   /**
@@ -87,7 +189,7 @@ public class AuthRequest {
    *
    * <p>These scopes will be URL-encoded if the given codex is not null.</p>
    */
-  private String scopesToString(Auth.UrlCodex urlCodex) {
+  String scopesToString(Auth.UrlCodex urlCodex) {
     if (scopes == null || scopes.length == 0) {
       return "";
     }
@@ -107,10 +209,46 @@ public class AuthRequest {
 
   /** Returns an {@link AuthRequest} represented by the string serialization. */
   static AuthRequest fromString(String str) {
-    String[] parts = str.split("-----");
+    String[] parts = str.split("-----", 3);
     String clientId = parts[0];
-    String[] scopes = parts.length == 2 ? parts[1].split(",") : new String[0];
-    AuthRequest req = new AuthRequest("", clientId).withScopes(scopes);
+    String[] scopes = parts.length >= 2 && parts[1].length() > 0
+        ? parts[1].split(",") : new String[0];
+    AuthRequest req = new AuthRequest("", clientId).withScopes(scopes)
+        .withLoginHint(parts.length == 3 ? parts[2] : null);
     return req;
   }
+
+  /**
+   * Returns a request for the union of the scopes of the given requests, which
+   * must all share the same {@link #clientKey()}, and so the same account. The
+   * scope delimiter and token type of the first request are used, and the
+   * shortest timeout.
+   *
+   * <p>If there is only one request, it is returned unchanged.</p>
+   */
+  static AuthRequest union(List<AuthRequest> requests) {
+    AuthRequest first = requests.get(0);
+    if (requests.size() == 1) {
+      return first;
+    }
+    Set<String> scopes = new LinkedHashSet<String>();
+    boolean includeGrantedScopes = false;
+    int timeout = 0;
+    for (AuthRequest req : requests) {
+      if (req.scopes != null) {
+        Collections.addAll(scopes, req.scopes);
+      }
+      includeGrantedScopes |= req.includeGrantedScopes;
+      if (req.timeout > 0 && (timeout == 0 || req.timeout < timeout)) {
+        timeout = req.timeout;
+      }
+    }
+    return new AuthRequest(first.authUrl, first.clientId)
+        .withScopes(scopes.toArray(new String[scopes.size()]))
+        .withScopeDelimiter(first.scopeDelimiter)
+        .withTokenType(first.tokenType)
+        .withIncludeGrantedScopes(includeGrantedScopes)
+        .withTimeout(timeout)
+        .withLoginHint(first.loginHint);
+  }
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+/**
+ * {@link AuthMetrics} keeping counters and latency histograms in memory.
+ *
+ * <p>
+ * When set on {@link Auth#get()}, a snapshot of these statistics is also
+ * available to JavaScript as {@code window.oauth2.stats}, in the form returned
+ * by {@link #toJson()}.
+ * </p>
+ */
+public class AuthStats implements AuthMetrics {
+
+  /** Upper bounds of the histogram buckets, in milliseconds. */
+  static final double[] BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+  private final int[] counters = new int[Counter.values().length];
+  private final Histogram[] histograms = new Histogram[Latency.values().length];
+
+  public AuthStats() {
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i] = new Histogram();
+    }
+  }
+
+  @Override
+  public void increment(Counter counter) {
+    counters[counter.ordinal()]++;
+  }
+
+  @Override
+  public void record(Latency latency, double millis) {
+    histograms[latency.ordinal()].add(millis);
+  }
+
+  /** Returns how many times the given event has been counted. */
+  public int getCount(Counter counter) {
+    return counters[counter.ordinal()];
+  }
+
+  /** Returns how many latencies have been recorded for the given operation. */
+  public int getCount(Latency latency) {
+    return histograms[latency.ordinal()].count;
+  }
+
+  /** Returns the sum of the latencies recorded for the given operation. */
+  public double getTotal(Latency latency) {
+    return histograms[latency.ordinal()].total;
+  }
+
+  /** Returns the highest latency recorded for the given operation. */
+  public double getMax(Latency latency) {
+    return histograms[latency.ordinal()].max;
+  }
+
+  /** Resets all counters and histograms. */
+  public void reset() {
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = 0;
+    }
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i] = new Histogram();
+    }
+  }
+
+  /**
+   * Returns a JSON snapshot of the statistics, in the form:
+   *
+   * <pre>
+   * {"counters": {"CACHE_HIT": 3, ...},
+   *  "latencies": {"STORE_GET": {"count": 3, "total": 1.5, "max": 1,
+   *                              "buckets": [2, 1, 0, ...]}, ...},
+   *  "bucketBounds": [1, 2, 5, ...]}
+   * </pre>
+   *
+   * <p>
+   * Each bucket counts the latencies which are at most its bound and greater
+   * than the previous one, with a final bucket for the latencies which are
+   * greater than every bound.
+   * </p>
+   */
+  public String toJson() {
+    StringBuilder sb = new StringBuilder("{\"counters\":{");
+    Counter[] counterValues = Counter.values();
+    for (int i = 0; i < counterValues.length; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append('"').append(counterValues[i].name()).append("\":").append(counters[i]);
+    }
+    sb.append("},\"latencies\":{");
+    Latency[] latencyValues = Latency.values();
+    for (int i = 0; i < latencyValues.length; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append('"').append(latencyValues[i].name()).append("\":");
+      histograms[i].appendJson(sb);
+    }
+    sb.append("},\"bucketBounds\":");
+    appendNumbers(sb, BUCKETS);
+    return sb.append('}').toString();
+  }
+
+  private static void appendNumbers(StringBuilder sb, double[] numbers) {
+    sb.append('[');
+    for (int i = 0; i < numbers.length; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(number(numbers[i]));
+    }
+    sb.append(']');
+  }
+
+  /**
+   * Formats whole numbers in the range of an int without a trailing ".0", as
+   * JavaScript would, and NaN and infinities, which JSON cannot represent, as
+   * null. Avoids long, which is emulated in the compiled script.
+   */
+  static String number(double d) {
+    if (Double.isNaN(d) || Double.isInfinite(d)) {
+      return "null";
+    }
+    return d == (int) d ? String.valueOf((int) d) : String.valueOf(d);
+  }
+
+  private static class Histogram {
+    int count;
+    double total;
+    double max;
+    final double[] buckets = new double[BUCKETS.length + 1];
+
+    void add(double millis) {
+      count++;
+      total += millis;
+      max = Math.max(max, millis);
+      int i = 0;
+      while (i < BUCKETS.length && millis > BUCKETS[i]) {
+        i++;
+      }
+      buckets[i]++;
+    }
+
+    void appendJson(StringBuilder sb) {
+      sb.append("{\"count\":").append(count)
+          .append(",\"total\":").append(number(total))
+          .append(",\"max\":").append(number(max))
+          .append(",\"buckets\":");
+      appendNumbers(sb, buckets);
+      sb.append('}');
+    }
+  }
+}
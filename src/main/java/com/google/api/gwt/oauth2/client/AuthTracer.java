@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+/**
+ * Records the steps of the authentication flow of an {@link Auth} into a
+ * fixed-size ring buffer, keeping only the most recent events.
+ *
+ * <p>
+ * When set on {@link Auth#get()}, each event is also added to the browser's
+ * Performance timeline as a {@code performance.mark()} named
+ * {@code "oauth2:<event>:<request>"}, such as
+ * {@code "oauth2:getToken:clientId-----scope"}, and each round trip to the
+ * provider as a {@code performance.measure()} named
+ * {@code "oauth2:round-trip"}, so that they show up in the developer tools.
+ * A mark replaces the previous mark of the same event and request, and only
+ * the latest measure is kept, so that the timeline does not grow in a
+ * long-lived page. The recorded events are available to JavaScript from
+ * {@code window.oauth2.trace()}.
+ * </p>
+ *
+ * <p>See {@link Auth#setTracer(AuthTracer)}.</p>
+ */
+public class AuthTracer {
+
+  /** Steps of the authentication flow which are recorded. */
+  public enum Event {
+    LOGIN("login"),
+    GET_TOKEN("getToken"),
+    DO_LOGIN("doLogin"),
+    FINISH("finish"),
+    SET_TOKEN("setToken");
+
+    private final String jsonName;
+    private final String markName;
+
+    private Event(String name) {
+      this.jsonName = name;
+      this.markName = "oauth2:" + name;
+    }
+  }
+
+  private static final String ROUND_TRIP = "oauth2:round-trip";
+
+  private final Event[] events;
+  private final double[] times;
+  private final String[] details;
+  private int next;
+  private int size;
+
+  /** Whether to add events to the browser's Performance timeline. */
+  boolean timeline;
+
+  /**
+   * @param capacity The number of most recent events to keep, at least one
+   */
+  public AuthTracer(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+    }
+    this.events = new Event[capacity];
+    this.times = new double[capacity];
+    this.details = new String[capacity];
+  }
+
+  /**
+   * Records an event at the given time, overwriting the oldest event if the
+   * buffer is full.
+   *
+   * @param detail Optional detail about the event, such as the request's key
+   */
+  void record(Event event, double time, String detail) {
+    events[next] = event;
+    times[next] = time;
+    details[next] = detail;
+    next = (next + 1) % events.length;
+    size = Math.min(size + 1, events.length);
+
+    if (timeline) {
+      String suffix = detail == null ? "" : ":" + detail;
+      if (event == Event.FINISH) {
+        measure(ROUND_TRIP, Event.DO_LOGIN.markName + suffix, event.markName + suffix);
+      } else {
+        mark(event.markName + suffix);
+      }
+    }
+  }
+
+  /** Returns the number of events currently held in the buffer. */
+  public int size() {
+    return size;
+  }
+
+  /** Discards all recorded events. */
+  public void clear() {
+    for (int i = 0; i < events.length; i++) {
+      events[i] = null;
+      details[i] = null;
+    }
+    next = 0;
+    size = 0;
+    if (timeline) {
+      clearTimeline(ROUND_TRIP);
+    }
+  }
+
+  /**
+   * Returns the recorded events as JSON, oldest first, in the form:
+   *
+   * <pre>
+   * [{"event": "login", "time": 1300000000000, "detail": "clientId-----scope"}, ...]
+   * </pre>
+   */
+  public String toJson() {
+    StringBuilder sb = new StringBuilder("[");
+    int first = (next - size + events.length) % events.length;
+    for (int i = 0; i < size; i++) {
+      int idx = (first + i) % events.length;
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"event\":\"").append(events[idx].jsonName)
+          .append("\",\"time\":").append(AuthStats.number(times[idx]))
+          .append(",\"detail\":");
+      appendString(sb, details[idx]);
+      sb.append('}');
+    }
+    return sb.append(']').toString();
+  }
+
+  private static void appendString(StringBuilder sb, String str) {
+    if (str == null) {
+      sb.append("null");
+      return;
+    }
+    sb.append('"');
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < ' ') {
+        String hex = Integer.toHexString(c);
+        sb.append("\\u").append("0000".substring(hex.length())).append(hex);
+      } else {
+        sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+
+  /** Marks the time, replacing an earlier mark of the same name. */
+  private static native void mark(String name) /*-{
+    var perf = $wnd.performance;
+    if (perf && perf.mark && perf.clearMarks) {
+      perf.clearMarks(name);
+      perf.mark(name);
+    }
+  }-*/;
+
+  /**
+   * Measures from the start mark until now, replacing the previous measure,
+   * and clears the marks. The developer tools record entries as they are
+   * added, so they still show every measure.
+   */
+  private static native void measure(String name, String start, String end) /*-{
+    var perf = $wnd.performance;
+    if (perf && perf.measure && perf.clearMarks && perf.clearMeasures) {
+      perf.mark(end);
+      perf.clearMeasures(name);
+      try {
+        perf.measure(name, start, end);
+      } catch (e) {
+        // The start mark is missing when there was no popup, ignore.
+      }
+      perf.clearMarks(start);
+      perf.clearMarks(end);
+    }
+  }-*/;
+
+  /** Clears the measure and every mark of the tracer from the timeline. */
+  private static native void clearTimeline(String measure) /*-{
+    var perf = $wnd.performance;
+    if (perf && perf.getEntriesByType && perf.clearMarks && perf.clearMeasures) {
+      perf.clearMeasures(measure);
+      var marks = perf.getEntriesByType('mark');
+      for (var i = 0; i < marks.length; i++) {
+        if (marks[i].name.indexOf('oauth2:') == 0) {
+          perf.clearMarks(marks[i].name);
+        }
+      }
+    }
+  }-*/;
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+import com.google.gwt.core.client.Callback;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+
+import java.util.LinkedList;
+
+/**
+ * Sends HTTP requests authorized with the access token for an
+ * {@link AuthRequest}.
+ *
+ * <p>
+ * Each request is sent with an {@code Authorization: Bearer} header. While no
+ * valid token is available, requests are held in a queue and a single
+ * {@link Auth#login(AuthRequest, Callback)} is made for all of them; they are
+ * sent together once it succeeds, or all fail if it does not. A request which
+ * is answered with 401 Unauthorized is sent once more, after the token it was
+ * sent with has been discarded and a new one obtained.
+ * </p>
+ *
+ * <p>
+ * Note that obtaining a new token may require the popup, which browsers only
+ * allow in response to a user action.
+ * </p>
+ */
+public class AuthorizedRequests {
+
+  /** Test-compatible abstraction for sending a request. */
+  static interface Transport {
+    void send(RequestBuilder builder, RequestCallback callback) throws RequestException;
+  }
+
+  static final Transport XHR_TRANSPORT = new Transport() {
+    @Override
+    public void send(RequestBuilder builder, RequestCallback callback) throws RequestException {
+      builder.sendRequest(builder.getRequestData(), callback);
+    }
+  };
+
+  private final Auth auth;
+  private final AuthRequest authRequest;
+  private final Transport transport;
+  private final LinkedList<Call> queue = new LinkedList<Call>();
+  private int maxConcurrentRequests = Integer.MAX_VALUE;
+  private int inFlight;
+  private boolean renewing;
+
+  /** The token obtained by the last renewal. */
+  private OAuthResponseParser.TokenInfo renewed;
+
+  /**
+   * @param auth The {@link Auth} to obtain tokens from
+   * @param authRequest The request whose token to authorize requests with
+   */
+  public AuthorizedRequests(Auth auth, AuthRequest authRequest) {
+    this(auth, authRequest, XHR_TRANSPORT);
+  }
+
+  AuthorizedRequests(Auth auth, AuthRequest authRequest, Transport transport) {
+    this.auth = auth;
+    this.authRequest = authRequest;
+    this.transport = transport;
+  }
+
+  /**
+   * Sets how many requests may be waiting for a response at the same time.
+   * Further requests are queued until one of them completes. By default there
+   * is no limit.
+   */
+  public AuthorizedRequests setMaxConcurrentRequests(int max) {
+    this.maxConcurrentRequests = max;
+    return this;
+  }
+
+  /** Returns the number of requests waiting to be sent. */
+  public int getQueuedCount() {
+    return queue.size();
+  }
+
+  /**
+   * Sends the request built by the given builder, with its request data,
+   * passing the response to the given callback.
+   */
+  public void send(RequestBuilder builder, RequestCallback callback) {
+    queue.add(new Call(builder, callback));
+    pump();
+  }
+
+  /** Sends as many queued requests as possible. */
+  private void pump() {
+    while (!renewing && inFlight < maxConcurrentRequests && !queue.isEmpty()) {
+      OAuthResponseParser.TokenInfo info = auth.getToken(authRequest);
+      // A token which was just obtained is used even if it expires soon, since
+      // renewing again would not get a better one.
+      if (info == null || (info != renewed
+          && (info.expires == null || auth.expiringSoon(authRequest, info)))) {
+        renew();
+        return;
+      }
+      queue.removeFirst().send(info);
+    }
+  }
+
+  private void renew() {
+    renewing = true;
+    auth.login(authRequest, new Callback<OAuthResponseParser.TokenInfo, Throwable>() {
+      @Override
+      public void onSuccess(OAuthResponseParser.TokenInfo result) {
+        renewing = false;
+        renewed = result;
+        pump();
+      }
+
+      @Override
+      public void onFailure(Throwable reason) {
+        renewing = false;
+        Call[] failed = queue.toArray(new Call[queue.size()]);
+        queue.clear();
+        for (Call call : failed) {
+          call.callback.onError(null, reason);
+        }
+      }
+    });
+  }
+
+  private class Call implements RequestCallback {
+    final RequestBuilder builder;
+    final RequestCallback callback;
+    OAuthResponseParser.TokenInfo token;
+    boolean retried;
+
+    Call(RequestBuilder builder, RequestCallback callback) {
+      this.builder = builder;
+      this.callback = callback;
+    }
+
+    void send(OAuthResponseParser.TokenInfo info) {
+      token = info;
+      builder.setHeader("Authorization", "Bearer " + info.accessToken);
+      inFlight++;
+      try {
+        transport.send(builder, this);
+      } catch (RequestException e) {
+        onError(null, e);
+      }
+    }
+
+    @Override
+    public void onResponseReceived(Request request, Response response) {
+      inFlight--;
+      if (response.getStatusCode() == Response.SC_UNAUTHORIZED && !retried) {
+        // The token was rejected, discard it and try once more with a new one.
+        retried = true;
+        auth.invalidateToken(authRequest, token);
+        queue.addFirst(this);
+      } else {
+        callback.onResponseReceived(request, response);
+      }
+      pump();
+    }
+
+    @Override
+    public void onError(Request request, Throwable exception) {
+      inFlight--;
+      callback.onError(request, exception);
+      pump();
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.gwt.oauth2.client;
+
+/**
+ * Estimates how far a provider's clock is ahead of this one, so that times
+ * given by the provider, such as the {@code iat} and {@code exp} of its
+ * tokens, can be turned into local times.
+ *
+ * <p>
+ * Each response which says when its token was issued bounds the offset: the
+ * token was issued after the request was sent and before the response
+ * arrived, to within the one second resolution of {@code iat}. The estimate
+ * is moved as little as needed to stay within the bounds of the latest
+ * response, so it stays 0 as long as both clocks agree, and follows the
+ * local clock when it is changed between responses.
+ * </p>
+ *
+ * <p>
+ * Responses which would put the offset beyond {@link #MAX_OFFSET} are
+ * ignored. An old {@code iat}, such as that of an id_token replayed from a
+ * cache or kept by the provider on refresh, would otherwise move the estimate
+ * by its age, and make every token of the provider look valid that much
+ * longer.
+ * </p>
+ */
+class ClockSkew {
+
+  /** The largest offset believed, in milliseconds. */
+  static final double MAX_OFFSET = 5 * 60 * 1000;
+
+  private double offset;
+
+  ClockSkew() {
+  }
+
+  /** Starts from an earlier estimate, such as one saved by another page. */
+  ClockSkew(double offset) {
+    this.offset = Math.max(-MAX_OFFSET, Math.min(MAX_OFFSET, offset));
+  }
+
+  /** Returns the provider's time minus the local time, in milliseconds. */
+  double getOffset() {
+    return offset;
+  }
+
+  /**
+   * Updates the estimate with a token issued at {@code issuedAt} by the
+   * provider's clock, in response to a request sent at {@code sent} and
+   * answered at {@code received} by the local clock.
+   */
+  void observe(double issuedAt, double sent, double received) {
+    double min = issuedAt - received;
+    double max = issuedAt + 1000 - sent;
+    if (min > MAX_OFFSET || max < -MAX_OFFSET) {
+      return;
+    }
+    offset = Math.max(min, Math.min(max, offset));
+  }
+
+  /**
+   * Returns when, by the local clock, a token was issued at
+   * {@code issuedAt} by the provider's clock, in response to the given
+   * request.
+   */
+  double toLocal(double issuedAt, double sent, double received) {
+    return Math.max(sent, Math.min(received, issuedAt - offset));
+  }
+}
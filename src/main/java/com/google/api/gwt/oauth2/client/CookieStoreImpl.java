@@ -18,6 +18,13 @@ package com.google.api.gwt.oauth2.client;
 
 import com.google.gwt.core.client.JavaScriptObject;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Backup implementation of TokenStoreImpl storing tokens in cookies, for
  * browsers where localStorage is not supported.
@@ -27,31 +34,109 @@ import com.google.gwt.core.client.JavaScriptObject;
 class CookieStoreImpl extends TokenStoreImpl {
   private static final String COOKIE_PREFIX = "gwt-oauth2-";
 
-  @SuppressWarnings("deprecation")
   @Override
   public native void set(String key, String value) /*-{
     $doc.cookie = @com.google.api.gwt.oauth2.client.CookieStoreImpl::COOKIE_PREFIX +
-        encodeURIComponent(name) + '=' + encodeURIComponent(value);
+        encodeURIComponent(key) + '=' + encodeURIComponent(value);
   }-*/;
 
   @Override
   public native String get(String key) /*-{
-    var m = @com.google.api.gwt.oauth2.client.CookieStoreImpl::ensureCookies();
-    return m[@com.google.api.gwt.oauth2.client.CookieStoreImpl::COOKIE_PREFIX + key];
+    var m = @com.google.api.gwt.oauth2.client.CookieStoreImpl::ensureCookies()();
+    return m[@com.google.api.gwt.oauth2.client.CookieStoreImpl::COOKIE_PREFIX + key] || '';
   }-*/;
 
   @Override
-  public native void clear() /*-{
+  public void clear() {
+    removeIf(new Filter() {
+      @Override
+      public boolean matches(String key, String value) {
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public Map<String, String> getAll() {
+    return toMap(prefixedCookies());
+  }
+
+  /**
+   * Each token is a cookie of its own, so there is no single write to batch
+   * into; this only saves the caller from parsing the cookies between writes.
+   */
+  @Override
+  public void setAll(Map<String, String> values) {
+    for (Map.Entry<String, String> entry : values.entrySet()) {
+      set(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public int removeIf(Filter filter) {
+    int removed = 0;
+    for (Map.Entry<String, String> entry : getAll().entrySet()) {
+      if (filter.matches(entry.getKey(), entry.getValue())) {
+        expire(entry.getKey());
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  @Override
+  public int removeAll(Collection<String> keys) {
+    int removed = 0;
+    for (String key : keys) {
+      if (get(key).length() > 0) {
+        expire(key);
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  /** Each token is a cookie of its own, so accounts are found by their keys. */
+  @Override
+  public Set<String> getAccounts() {
+    Set<String> accounts = new LinkedHashSet<String>();
+    for (String key : getAll().keySet()) {
+      String account = AuthRequest.accountOf(key);
+      if (account != null) {
+        accounts.add(account);
+      }
+    }
+    return accounts;
+  }
+
+  @Override
+  public Collection<String> removeAccount(String account) {
+    List<String> removed = new ArrayList<String>();
+    for (String key : getAll().keySet()) {
+      if (account.equals(AuthRequest.accountOf(key))) {
+        expire(key);
+        removed.add(key);
+      }
+    }
+    return removed;
+  }
+
+  /** Returns the token cookies, keyed without the prefix. */
+  private static native JavaScriptObject prefixedCookies() /*-{
     var allCookies = @com.google.api.gwt.oauth2.client.CookieStoreImpl::ensureCookies()();
     var prefix = @com.google.api.gwt.oauth2.client.CookieStoreImpl::COOKIE_PREFIX;
-
+    var tokens = {};
     for (var key in allCookies) {
       if (key.indexOf(prefix) == 0) {
-        this.@com.google.api.gwt.oauth2.client.CookieStoreImpl::set(*)(
-            key.substring(prefix.length), '');
+        tokens[key.substring(prefix.length)] = allCookies[key];
       }
     }
-    @com.google.api.gwt.oauth2.client.CookieStoreImpl::cachedCookies = null;
+    return tokens;
+  }-*/;
+
+  private static native void expire(String key) /*-{
+    $doc.cookie = @com.google.api.gwt.oauth2.client.CookieStoreImpl::COOKIE_PREFIX +
+        encodeURIComponent(key) + '=; expires=Thu, 01 Jan 1970 00:00:00 GMT';
   }-*/;
 
   private static JavaScriptObject cachedCookies = null;
@@ -99,8 +184,8 @@ class CookieStoreImpl extends TokenStoreImpl {
   private static native boolean needsRefresh() /*-{
     var docCookie = $doc.cookie;
     // Check to see if cached cookies need to be invalidated.
-    if (docCookie != @com.google.gwt.user.client.Cookies::rawCookies) {
-      @com.google.gwt.user.client.Cookies::rawCookies = docCookie;
+    if (docCookie != @com.google.api.gwt.oauth2.client.CookieStoreImpl::rawCookies) {
+      @com.google.api.gwt.oauth2.client.CookieStoreImpl::rawCookies = docCookie;
       return true;
     } else {
       return false;
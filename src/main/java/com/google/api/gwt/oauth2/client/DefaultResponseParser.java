@@ -1,5 +1,8 @@
 package com.google.api.gwt.oauth2.client;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * User: Eugene Dzhurinsky
  * Date: 5/11/15
@@ -13,11 +16,56 @@ public class DefaultResponseParser implements OAuthResponseParser {
     }
 
     public TokenInfo parseResponse(String hash, String queryString) {
+        double now = clock.now();
+        return parseResponse(hash, queryString, now, now, null);
+    }
+
+    /**
+     * Parses the response to a request sent at {@code sent} and answered at
+     * {@code received}, by the local clock. If the response says when its
+     * token was issued, the expiry is counted from then rather than from its
+     * arrival, corrected for the provider's clock skew, which the response
+     * also updates. The expiry is given by the provider's clock, as estimated
+     * by the skew, so that it is only compared with the provider's time.
+     *
+     * @param skew The skew of the provider's clock, or null to ignore it
+     */
+    TokenInfo parseResponse(String hash, String queryString, double sent, double received,
+            ClockSkew skew) {
+        return parseParams(parseHash(hash), sent, received, skew);
+    }
+
+    /**
+     * Parses a response given as its decoded parameters, such as those the
+     * OAuth window page posts back, as
+     * {@link #parseResponse(String, String, double, double, ClockSkew)} does.
+     */
+    TokenInfo parseParams(Map<String, String> params, double sent, double received,
+            ClockSkew skew) {
         OAuthResponseParser.TokenInfo info = new TokenInfo();
+        info.accessToken = params.get("access_token");
+        info.idToken = params.get("id_token");
+        info.error = params.get("error");
+        if (params.containsKey("error_description")) {
+            info.errorDesc = " (" + params.get("error_description") + ")";
+        }
+        if (params.containsKey("error_uri")) {
+            info.errorUri = "; see: " + params.get("error_uri");
+        }
 
-        // Iterate over keys and values in the string hash value to find relevant
-        // information like the access token or an error message. The string will be
-        // in the form of: #key1=val1&key2=val2&key3=val3 (etc.)
+        // expires_in is seconds, convert to milliseconds
+        String expiresIn = params.get("expires_in");
+        setExpiry(info, expiresIn == null ? Double.NaN : Double.valueOf(expiresIn) * 1000,
+                sent, received, skew);
+        return info;
+    }
+
+    /**
+     * Collects the keys and values of the hash, which is in the form of:
+     * #key1=val1&key2=val2&key3=val3 (etc.)
+     */
+    static Map<String, String> parseHash(String hash) {
+        Map<String, String> params = new HashMap<String, String>();
         int idx = 1;
         while (idx < hash.length() - 1) {
             // Grab the next key (between start and '=')
@@ -34,25 +82,62 @@ public class DefaultResponseParser implements OAuthResponseParser {
 
             // Start looking from here from now on.
             idx = nextAmp + 1;
+            params.put(key, val);
+        }
+        return params;
+    }
 
-            // Store relevant values to be used later.
-            if (key.equals("access_token")) {
-                info.accessToken = val;
-            } else if (key.equals("expires_in")) {
-                // expires_in is seconds, convert to milliseconds and add to now
-                Double expiresIn = Double.valueOf(val) * 1000;
-                info.expires = String.valueOf(clock.now() + expiresIn);
-            } else if (key.equals("error")) {
-                info.error = val;
-            } else if (key.equals("error_description")) {
-                info.errorDesc = " (" + val + ")";
-            } else if (key.equals("error_uri")) {
-                info.errorUri = "; see: " + val;
-            }
+    /**
+     * Sets the expiry of a token which the provider says expires
+     * {@code expiresIn} milliseconds after it was issued, or NaN if it did not
+     * say, as {@link #parseResponse(String, String, double, double, ClockSkew)}
+     * does, by the provider's clock.
+     */
+    static void setExpiry(TokenInfo info, double expiresIn, double sent, double received,
+            ClockSkew skew) {
+        double issued = received;
+        double issuedAt = issuedAt(info);
+        if (skew != null && !Double.isNaN(issuedAt)) {
+            skew.observe(issuedAt, sent, received);
+            issued = skew.toLocal(issuedAt, sent, received);
+        }
+        double offset = skew == null ? 0 : skew.getOffset();
+        if (!Double.isNaN(expiresIn)) {
+            info.expires = String.valueOf(issued + offset + expiresIn);
         }
 
-        return info;
+        // Without expires_in, fall back to the expiry of the id_token, if any,
+        // which is already by the provider's clock.
+        if (info.expires == null && info.idToken != null) {
+            try {
+                double exp = info.getIdTokenClaims().getExpiration();
+                if (!Double.isNaN(exp)) {
+                    info.expires = String.valueOf(exp);
+                }
+            } catch (IllegalArgumentException e) {
+                // Leave the expiry unknown, the token will be renewed on next use.
+            }
+        }
+    }
 
+    /**
+     * Returns the {@code iat} of the id_token, or else of the access token if
+     * it is a JWT, in milliseconds since the epoch, or NaN if neither says.
+     */
+    private static double issuedAt(TokenInfo info) {
+        try {
+            if (info.idToken != null) {
+                return info.getIdTokenClaims().getIssuedAt();
+            }
+            String token = info.accessToken;
+            if (token != null && token.indexOf('.') > 0
+                    && token.indexOf('.') != token.lastIndexOf('.')) {
+                return IdTokenClaims.decode(token).getIssuedAt();
+            }
+        } catch (IllegalArgumentException e) {
+            // Not a JWT after all.
+        }
+        return Double.NaN;
     }
 
 }
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.gwt.oauth2.client;
+
+import com.google.gwt.core.client.Callback;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Obtains tokens with the OAuth 2.0 device authorization grant (RFC 8628), for
+ * applications which cannot show the provider's page themselves, such as ones
+ * running on a TV or kiosk. The user enters a code on another device while
+ * this class polls the provider's token endpoint.
+ *
+ * <p>
+ * Polls are spaced by the interval the provider asks for, which grows by five
+ * seconds whenever it answers {@code slow_down}, and stop when the code
+ * expires. Only one request is outstanding at a time, and all logins for the
+ * same {@link AuthRequest} share a single code and poll loop. Tokens obtained
+ * are stored in the {@link Auth} like those from its popup.
+ * </p>
+ */
+public class DeviceAuthorization {
+
+  /** Receives the code the user has to enter to approve a login. */
+  public interface Handler {
+    void onUserCode(UserCode code);
+  }
+
+  /** The code the user enters, and where to enter it. */
+  public static class UserCode {
+    private final String userCode;
+    private final String verificationUri;
+    private final String verificationUriComplete;
+    private final double expires;
+
+    UserCode(String userCode, String verificationUri, String verificationUriComplete,
+        double expires) {
+      this.userCode = userCode;
+      this.verificationUri = verificationUri;
+      this.verificationUriComplete = verificationUriComplete;
+      this.expires = expires;
+    }
+
+    /** Returns the code to enter on the verification page. */
+    public String getUserCode() {
+      return userCode;
+    }
+
+    /** Returns the page to enter the code on. */
+    public String getVerificationUri() {
+      return verificationUri;
+    }
+
+    /**
+     * Returns the verification page with the code filled in, for example to
+     * show as a QR code, or null if the provider did not give one.
+     */
+    public String getVerificationUriComplete() {
+      return verificationUriComplete;
+    }
+
+    /** Returns when the code expires, in milliseconds since the epoch. */
+    public double getExpires() {
+      return expires;
+    }
+  }
+
+  static final String GRANT_TYPE = "urn:ietf:params:oauth:grant-type:device_code";
+
+  /** The poll interval when the provider does not give one, per RFC 8628. */
+  private static final int DEFAULT_INTERVAL = 5000;
+
+  /** How much longer to wait after each {@code slow_down}, per RFC 8628. */
+  private static final int SLOW_DOWN = 5000;
+
+  /** The longest wait between polls after failed requests. */
+  private static final int MAX_RETRY_DELAY = 60000;
+
+  private final Auth auth;
+  private final String deviceAuthorizationUrl;
+  private final String tokenUrl;
+  private final AuthorizedRequests.Transport transport;
+
+  /** The poll loop of each request, by its key. */
+  private final Map<String, Poll> polls = new HashMap<String, Poll>();
+
+  /**
+   * @param auth The {@link Auth} to store tokens in
+   * @param deviceAuthorizationUrl The provider's device authorization endpoint
+   * @param tokenUrl The provider's token endpoint
+   */
+  public DeviceAuthorization(Auth auth, String deviceAuthorizationUrl, String tokenUrl) {
+    this(auth, deviceAuthorizationUrl, tokenUrl, AuthorizedRequests.XHR_TRANSPORT);
+  }
+
+  DeviceAuthorization(Auth auth, String deviceAuthorizationUrl, String tokenUrl,
+      AuthorizedRequests.Transport transport) {
+    this.auth = auth;
+    this.deviceAuthorizationUrl = deviceAuthorizationUrl;
+    this.tokenUrl = tokenUrl;
+    this.transport = transport;
+  }
+
+  /**
+   * Obtains a token for the request, unless a valid one is already stored.
+   *
+   * <p>
+   * The handler is passed the code to show to the user once the provider has
+   * issued it, or right away if another login for the same request is already
+   * waiting for it. The callback is passed the token once the user has
+   * approved the login, or a {@link ProviderErrorException} if they denied
+   * it, or a {@link LoginAbortedException} if the code expired first.
+   * </p>
+   */
+  public LoginHandle login(AuthRequest req, Handler handler,
+      Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
+    final Waiter waiter = new Waiter(handler, callback);
+    final OAuthResponseParser.TokenInfo info = auth.getValidToken(req);
+    if (info != null) {
+      auth.scheduler.scheduleDeferred(new ScheduledCommand() {
+        @Override
+        public void execute() {
+          waiter.onSuccess(info);
+        }
+      });
+      return waiter;
+    }
+
+    String key = req.asString();
+    Poll poll = polls.get(key);
+    if (poll == null) {
+      poll = new Poll(req, key);
+      polls.put(key, poll);
+      poll.waiters.add(waiter);
+      waiter.poll = poll;
+      poll.start();
+    } else {
+      poll.waiters.add(waiter);
+      waiter.poll = poll;
+      if (poll.code != null) {
+        handler.onUserCode(poll.code);
+      }
+    }
+    return waiter;
+  }
+
+  /**
+   * Returns how long the poll loop for the request currently waits between
+   * polls, or 0 if there is none.
+   */
+  int getInterval(AuthRequest req) {
+    Poll poll = polls.get(req.asString());
+    return poll == null ? 0 : poll.interval;
+  }
+
+  /** A caller of {@link #login}, until its callback has been called. */
+  private final class Waiter
+      implements Callback<OAuthResponseParser.TokenInfo, Throwable>, LoginHandle {
+    final Handler handler;
+    final Callback<OAuthResponseParser.TokenInfo, Throwable> callback;
+    Poll poll;
+    boolean done;
+
+    Waiter(Handler handler, Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
+      this.handler = handler;
+      this.callback = callback;
+    }
+
+    @Override
+    public void onSuccess(OAuthResponseParser.TokenInfo info) {
+      if (!done) {
+        done = true;
+        callback.onSuccess(info);
+      }
+    }
+
+    @Override
+    public void onFailure(Throwable reason) {
+      if (!done) {
+        done = true;
+        callback.onFailure(reason);
+      }
+    }
+
+    @Override
+    public void cancel() {
+      if (done) {
+        return;
+      }
+      if (poll != null) {
+        poll.waiters.remove(this);
+        if (poll.waiters.isEmpty()) {
+          // Nobody is waiting for the token any more, stop polling for it.
+          poll.stop();
+        }
+      }
+      onFailure(new LoginAbortedException(LoginAbortedException.Reason.CANCELLED));
+    }
+  }
+
+  /**
+   * Requests a code for an {@link AuthRequest}, then polls for its token on
+   * behalf of everyone waiting for it.
+   */
+  private final class Poll implements RepeatingCommand, RequestCallback {
+    final AuthRequest request;
+    final String key;
+    final List<Waiter> waiters = new ArrayList<Waiter>();
+    UserCode code;
+    String deviceCode;
+    int interval = DEFAULT_INTERVAL;
+    double deadline;
+    int failures;
+    boolean stopped;
+
+    /** When the outstanding request was sent, by the clock and by {@link Auth#ticks()}. */
+    double sent;
+    double sentTicks;
+
+    Poll(AuthRequest request, String key) {
+      this.request = request;
+      this.key = key;
+    }
+
+    void start() {
+      send(deviceAuthorizationUrl, "client_id=" + auth.urlCodex.encode(request.getClientId())
+          + "&scope=" + request.scopesToString(auth.urlCodex));
+    }
+
+    @Override
+    public boolean execute() {
+      if (!stopped) {
+        send(tokenUrl, "grant_type=" + auth.urlCodex.encode(GRANT_TYPE)
+            + "&device_code=" + auth.urlCodex.encode(deviceCode)
+            + "&client_id=" + auth.urlCodex.encode(request.getClientId()));
+      }
+      return false;
+    }
+
+    private void send(String url, String body) {
+      RequestBuilder builder = new RequestBuilder(RequestBuilder.POST, url);
+      builder.setHeader("Content-Type", "application/x-www-form-urlencoded");
+      builder.setHeader("Accept", "application/json");
+      builder.setRequestData(body);
+      sent = auth.clock.now();
+      sentTicks = auth.ticks();
+      try {
+        transport.send(builder, this);
+      } catch (RequestException e) {
+        onError(null, e);
+      }
+    }
+
+    @Override
+    public void onResponseReceived(Request req, Response response) {
+      if (stopped) {
+        return;
+      }
+      int status = response.getStatusCode();
+      if (status == 0 || status >= 500) {
+        retry(new RuntimeException("Request to provider failed with status " + status));
+        return;
+      }
+      Map<String, Object> json;
+      try {
+        json = parse(response.getText());
+      } catch (IllegalArgumentException e) {
+        fail(e);
+        return;
+      }
+      failures = 0;
+
+      String error = string(json, "error");
+      if (error != null) {
+        if (deviceCode != null && error.equals("authorization_pending")) {
+          schedule(interval);
+        } else if (deviceCode != null && error.equals("slow_down")) {
+          interval += SLOW_DOWN;
+          schedule(interval);
+        } else {
+          OAuthResponseParser.TokenInfo info = new OAuthResponseParser.TokenInfo();
+          info.error = error;
+          String description = string(json, "error_description");
+          if (description != null) {
+            info.errorDesc = " (" + description + ")";
+          }
+          String uri = string(json, "error_uri");
+          if (uri != null) {
+            info.errorUri = "; see: " + uri;
+          }
+          fail(new ProviderErrorException(info));
+        }
+      } else if (deviceCode == null) {
+        issued(json);
+      } else {
+        granted(json);
+      }
+    }
+
+    @Override
+    public void onError(Request req, Throwable exception) {
+      if (!stopped) {
+        retry(exception);
+      }
+    }
+
+    /** Passes the code to everyone waiting, and starts polling. */
+    private void issued(Map<String, Object> json) {
+      deviceCode = string(json, "device_code");
+      String userCode = string(json, "user_code");
+      String verificationUri = string(json, "verification_uri");
+      double expiresIn = number(json, "expires_in") * 1000;
+      if (deviceCode == null || userCode == null || verificationUri == null
+          || Double.isNaN(expiresIn)) {
+        fail(new RuntimeException("Incomplete device authorization response"));
+        return;
+      }
+      double seconds = number(json, "interval");
+      if (!Double.isNaN(seconds)) {
+        interval = (int) Math.max(1000, seconds * 1000);
+      }
+      deadline = sent + expiresIn;
+      code = new UserCode(userCode, verificationUri,
+          string(json, "verification_uri_complete"), deadline);
+      for (Waiter waiter : new ArrayList<Waiter>(waiters)) {
+        waiter.handler.onUserCode(code);
+      }
+      schedule(interval);
+    }
+
+    /** Stores the token and passes it to everyone waiting. */
+    private void granted(Map<String, Object> json) {
+      OAuthResponseParser.TokenInfo info = new OAuthResponseParser.TokenInfo();
+      info.accessToken = string(json, "access_token");
+      info.idToken = string(json, "id_token");
+      if (info.accessToken == null) {
+        fail(new RuntimeException("Could not find access_token in the token response"));
+        return;
+      }
+      String authUrl = request.getAuthUrl();
+      ClockSkew skew = auth.getClockSkew(authUrl);
+      double offset = skew.getOffset();
+      double received = auth.localTime();
+      DefaultResponseParser.setExpiry(info, number(json, "expires_in") * 1000,
+          received - (auth.ticks() - sentTicks), received, skew);
+      auth.clockSkewObserved(authUrl, offset);
+      stop();
+      auth.setToken(request, info);
+      for (Waiter waiter : new ArrayList<Waiter>(waiters)) {
+        waiter.onSuccess(info);
+      }
+    }
+
+    /**
+     * Waits before the next poll, or gives up if the code would expire before
+     * it is answered.
+     */
+    private void schedule(int delay) {
+      if (auth.clock.now() + delay >= deadline) {
+        fail(new LoginAbortedException(LoginAbortedException.Reason.TIMED_OUT));
+        return;
+      }
+      auth.scheduler.scheduleFixedDelay(this, delay);
+    }
+
+    /**
+     * Polls again after a request failed, waiting longer after each failure in
+     * a row. Failing to obtain a code at all is not retried.
+     */
+    private void retry(Throwable reason) {
+      if (deviceCode == null) {
+        fail(reason);
+        return;
+      }
+      failures++;
+      schedule((int) Math.min(MAX_RETRY_DELAY, (double) interval * (1 << Math.min(failures, 4))));
+    }
+
+    private void fail(Throwable reason) {
+      stop();
+      for (Waiter waiter : new ArrayList<Waiter>(waiters)) {
+        waiter.onFailure(reason);
+      }
+    }
+
+    void stop() {
+      stopped = true;
+      if (polls.get(key) == this) {
+        polls.remove(key);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> parse(String text) {
+    Object json = new IdTokenClaims.JsonParser(text == null ? "" : text).parse();
+    if (!(json instanceof Map)) {
+      throw new IllegalArgumentException("Malformed response from provider: " + text);
+    }
+    return (Map<String, Object>) json;
+  }
+
+  private static String string(Map<String, Object> json, String name) {
+    Object value = json.get(name);
+    return value instanceof String ? (String) value : null;
+  }
+
+  /** Returns the named number, which some providers send as a string, or NaN. */
+  private static double number(Map<String, Object> json, String name) {
+    Object value = json.get(name);
+    if (value instanceof Double) {
+      return (Double) value;
+    }
+    try {
+      return value instanceof String ? Double.valueOf((String) value) : Double.NaN;
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+import com.google.gwt.core.client.Callback;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Keeps logins from contacting a provider which just refused them, or which
+ * was asked too often.
+ *
+ * <p>
+ * When the provider responds to a request with an error, further logins for
+ * that request fail with the same error until a delay has elapsed, which
+ * doubles with each consecutive error. Independently, the number of
+ * authorization attempts for each provider can be limited within a sliding
+ * window of time.
+ * </p>
+ */
+class ErrorBackoff {
+
+  /** The last error for a request, and until when it is repeated. */
+  private static class Entry {
+    ProviderErrorException error;
+    double until;
+    int delay;
+  }
+
+  private final Auth.Clock clock;
+  int initialDelay = 1000;
+  int maxDelay = 60000;
+  int maxAttempts;
+  int attemptWindow;
+
+  /** Errors by the key of their request. */
+  private final Map<String, Entry> errors = new HashMap<String, Entry>();
+
+  /** Times of the recent authorization attempts, by provider. */
+  private final Map<String, LinkedList<Double>> attempts =
+      new HashMap<String, LinkedList<Double>>();
+
+  ErrorBackoff(Auth.Clock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Returns the failure to fail a login for the request with immediately, or
+   * null if it may contact the provider.
+   */
+  RuntimeException check(AuthRequest req) {
+    if (!errors.isEmpty()) {
+      Entry entry = errors.get(req.asString());
+      if (entry != null && clock.now() < entry.until) {
+        return entry.error;
+      }
+    }
+    if (maxAttempts > 0) {
+      LinkedList<Double> recent = attempts.get(req.getAuthUrl());
+      if (recent != null) {
+        double since = clock.now() - attemptWindow;
+        while (!recent.isEmpty() && recent.getFirst() <= since) {
+          recent.removeFirst();
+        }
+        if (recent.size() >= maxAttempts) {
+          return new LoginAbortedException(LoginAbortedException.Reason.RATE_LIMITED);
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Counts an authorization attempt for the request's provider. */
+  void attempt(AuthRequest req) {
+    if (maxAttempts <= 0) {
+      return;
+    }
+    LinkedList<Double> recent = attempts.get(req.getAuthUrl());
+    if (recent == null) {
+      recent = new LinkedList<Double>();
+      attempts.put(req.getAuthUrl(), recent);
+    }
+    recent.addLast(clock.now());
+  }
+
+  /**
+   * Wraps the callback of a login for the given request, to remember the
+   * provider's errors for it, and to forget them once it succeeds.
+   */
+  Callback<OAuthResponseParser.TokenInfo, Throwable> recording(final AuthRequest req,
+      final Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
+    if (initialDelay <= 0) {
+      return callback;
+    }
+    return new Callback<OAuthResponseParser.TokenInfo, Throwable>() {
+      @Override
+      public void onSuccess(OAuthResponseParser.TokenInfo result) {
+        errors.remove(req.asString());
+        callback.onSuccess(result);
+      }
+
+      @Override
+      public void onFailure(Throwable reason) {
+        if (reason instanceof ProviderErrorException) {
+          failed(req.asString(), (ProviderErrorException) reason);
+        }
+        callback.onFailure(reason);
+      }
+    };
+  }
+
+  private void failed(String key, ProviderErrorException error) {
+    Entry entry = errors.get(key);
+    double now = clock.now();
+    if (entry == null) {
+      entry = new Entry();
+      errors.put(key, entry);
+    } else if (now < entry.until) {
+      // Another login for the same request already failed with this response.
+      return;
+    }
+    entry.error = error;
+    entry.delay = entry.delay == 0 ? initialDelay : Math.min(entry.delay * 2, maxDelay);
+    entry.until = now + entry.delay;
+  }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The claims of an OpenID Connect {@code id_token}, decoded from its JWT
+ * payload.
+ *
+ * <p>
+ * The signature of the token is <em>not</em> verified: these claims are fine
+ * for showing who is logged in, but a server must verify the token itself
+ * before trusting them. Instances are obtained from
+ * {@link OAuthResponseParser.TokenInfo#getIdTokenClaims()}, which decodes the
+ * token once and keeps the result with it.
+ * </p>
+ */
+public class IdTokenClaims {
+
+  private final Map<String, Object> claims;
+  private final String subject;
+  private final String email;
+  private final double expiration;
+  private final double issuedAt;
+
+  private IdTokenClaims(Map<String, Object> claims) {
+    this.claims = claims;
+    this.subject = claims.get("sub") instanceof String ? (String) claims.get("sub") : null;
+    this.email = claims.get("email") instanceof String ? (String) claims.get("email") : null;
+    this.expiration = claims.get("exp") instanceof Double
+        ? (Double) claims.get("exp") * 1000 : Double.NaN;
+    this.issuedAt = claims.get("iat") instanceof Double
+        ? (Double) claims.get("iat") * 1000 : Double.NaN;
+  }
+
+  /**
+   * Decodes the payload of the given JWT.
+   *
+   * @throws IllegalArgumentException if it is not a JWT with a JSON object as
+   *         its payload
+   */
+  public static IdTokenClaims decode(String jwt) {
+    int start = jwt.indexOf('.');
+    int end = jwt.indexOf('.', start + 1);
+    if (start < 0 || end < 0) {
+      throw new IllegalArgumentException("Malformed id_token: " + jwt);
+    }
+    String json;
+    try {
+      json = new String(base64UrlDecode(jwt.substring(start + 1, end)), "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalArgumentException(e);
+    }
+    Object payload = new JsonParser(json).parse();
+    if (!(payload instanceof Map)) {
+      throw new IllegalArgumentException("Malformed id_token payload: " + json);
+    }
+    @SuppressWarnings("unchecked")
+    Map<String, Object> claims = (Map<String, Object>) payload;
+    return new IdTokenClaims(claims);
+  }
+
+  /** Returns the {@code sub} claim, identifying the user, or null. */
+  public String getSubject() {
+    return subject;
+  }
+
+  /** Returns the {@code email} claim, or null. */
+  public String getEmail() {
+    return email;
+  }
+
+  /**
+   * Returns the {@code exp} claim in milliseconds since the epoch, or NaN if
+   * the token has none.
+   */
+  public double getExpiration() {
+    return expiration;
+  }
+
+  /**
+   * Returns the {@code iat} claim, when the token was issued, in milliseconds
+   * since the epoch, or NaN if the token has none.
+   */
+  public double getIssuedAt() {
+    return issuedAt;
+  }
+
+  /**
+   * Returns the named claim: a String, Double, Boolean, List or Map for JSON
+   * strings, numbers, booleans, arrays and objects, or null.
+   */
+  public Object getClaim(String name) {
+    return claims.get(name);
+  }
+
+  private static final String BASE64URL =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+  static byte[] base64UrlDecode(String str) {
+    int length = str.length();
+    while (length > 0 && str.charAt(length - 1) == '=') {
+      length--;
+    }
+    byte[] out = new byte[length * 3 / 4];
+    int bits = 0;
+    int buffered = 0;
+    int pos = 0;
+    for (int i = 0; i < length; i++) {
+      char c = str.charAt(i);
+      // Also accept standard base64, which some providers use.
+      int value = c == '+' ? 62 : c == '/' ? 63 : BASE64URL.indexOf(c);
+      if (value < 0) {
+        throw new IllegalArgumentException("Malformed base64url: " + str);
+      }
+      bits = (bits << 6) | value;
+      buffered += 6;
+      if (buffered >= 8) {
+        buffered -= 8;
+        out[pos++] = (byte) (bits >> buffered);
+        bits &= (1 << buffered) - 1;
+      }
+    }
+    return out;
+  }
+
+  /** Minimal JSON parser, enough for the payload of a JWT. */
+  static class JsonParser {
+    private final String json;
+    private int pos;
+
+    JsonParser(String json) {
+      this.json = json;
+    }
+
+    Object parse() {
+      Object value = value();
+      skipWhitespace();
+      if (pos != json.length()) {
+        throw error();
+      }
+      return value;
+    }
+
+    private Object value() {
+      skipWhitespace();
+      if (pos >= json.length()) {
+        throw error();
+      }
+      char c = json.charAt(pos);
+      switch (c) {
+        case '{':
+          return object();
+        case '[':
+          return array();
+        case '"':
+          return string();
+        case 't':
+          return literal("true", Boolean.TRUE);
+        case 'f':
+          return literal("false", Boolean.FALSE);
+        case 'n':
+          return literal("null", null);
+        default:
+          return number();
+      }
+    }
+
+    private Map<String, Object> object() {
+      Map<String, Object> map = new HashMap<String, Object>();
+      pos++;
+      skipWhitespace();
+      if (peek() == '}') {
+        pos++;
+        return map;
+      }
+      while (true) {
+        skipWhitespace();
+        if (peek() != '"') {
+          throw error();
+        }
+        String key = string();
+        skipWhitespace();
+        expect(':');
+        map.put(key, value());
+        skipWhitespace();
+        if (peek() == ',') {
+          pos++;
+        } else {
+          expect('}');
+          return map;
+        }
+      }
+    }
+
+    private List<Object> array() {
+      List<Object> list = new ArrayList<Object>();
+      pos++;
+      skipWhitespace();
+      if (peek() == ']') {
+        pos++;
+        return list;
+      }
+      while (true) {
+        list.add(value());
+        skipWhitespace();
+        if (peek() == ',') {
+          pos++;
+        } else {
+          expect(']');
+          return list;
+        }
+      }
+    }
+
+    private String string() {
+      pos++;
+      StringBuilder sb = new StringBuilder();
+      while (true) {
+        if (pos >= json.length()) {
+          throw error();
+        }
+        char c = json.charAt(pos++);
+        if (c == '"') {
+          return sb.toString();
+        } else if (c != '\\') {
+          sb.append(c);
+          continue;
+        }
+        if (pos >= json.length()) {
+          throw error();
+        }
+        char escaped = json.charAt(pos++);
+        switch (escaped) {
+          case 'b':
+            sb.append('\b');
+            break;
+          case 'f':
+            sb.append('\f');
+            break;
+          case 'n':
+            sb.append('\n');
+            break;
+          case 'r':
+            sb.append('\r');
+            break;
+          case 't':
+            sb.append('\t');
+            break;
+          case 'u':
+            if (pos + 4 > json.length()) {
+              throw error();
+            }
+            sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+            pos += 4;
+            break;
+          default:
+            sb.append(escaped);
+        }
+      }
+    }
+
+    private Double number() {
+      int start = pos;
+      while (pos < json.length() && "+-0123456789.eE".indexOf(json.charAt(pos)) >= 0) {
+        pos++;
+      }
+      if (start == pos) {
+        throw error();
+      }
+      try {
+        return Double.valueOf(json.substring(start, pos));
+      } catch (NumberFormatException e) {
+        throw error();
+      }
+    }
+
+    private Object literal(String literal, Object value) {
+      if (!json.startsWith(literal, pos)) {
+        throw error();
+      }
+      pos += literal.length();
+      return value;
+    }
+
+    private void expect(char c) {
+      if (peek() != c) {
+        throw error();
+      }
+      pos++;
+    }
+
+    private char peek() {
+      return pos < json.length() ? json.charAt(pos) : 0;
+    }
+
+    private void skipWhitespace() {
+      while (pos < json.length() && " \t\r\n".indexOf(json.charAt(pos)) >= 0) {
+        pos++;
+      }
+    }
+
+    private IllegalArgumentException error() {
+      return new IllegalArgumentException("Malformed JSON at " + pos + ": " + json);
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+/**
+ * Passed to the callback of a login which ended before the provider
+ * responded, or was not started at all.
+ */
+public class LoginAbortedException extends RuntimeException {
+
+  /** Why the login ended. */
+  public enum Reason {
+    /** {@link LoginHandle#cancel()} was called. */
+    CANCELLED("The login was cancelled"),
+    /** The provider did not respond before the login's deadline. */
+    TIMED_OUT("The login timed out"),
+    /** The popup window was closed before the provider responded. */
+    WINDOW_CLOSED("The authentication popup window was closed"),
+    /**
+     * The provider was not contacted, because the limit set with
+     * {@link Auth#setRateLimit(int, int)} was reached.
+     */
+    RATE_LIMITED("Too many authorization attempts for this provider");
+
+    private final String message;
+
+    private Reason(String message) {
+      this.message = message;
+    }
+  }
+
+  private final Reason reason;
+
+  public LoginAbortedException(Reason reason) {
+    super(reason.message);
+    this.reason = reason;
+  }
+
+  public Reason getReason() {
+    return reason;
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+/**
+ * Handle to a call to {@link Auth#login(AuthRequest, com.google.gwt.core.client.Callback)}.
+ */
+public interface LoginHandle {
+
+  /**
+   * Cancels the login if its callback has not been called yet. The callback
+   * is then passed a {@link LoginAbortedException}, and the popup is closed
+   * if no other login is waiting for it.
+   */
+  void cancel();
+}
@@ -11,19 +11,46 @@ public interface OAuthResponseParser {
         public String accessToken;
         public String expires;
 
+        /** The OpenID Connect id_token, if the provider returned one. */
+        public String idToken;
+
         public String error = null;
         public String errorDesc = "";
         public String errorUri = "";
 
+        /** The decoded claims of {@link #idToken}, and the token they were decoded from. */
+        private IdTokenClaims claims;
+        private String claimsOf;
+
+        /**
+         * Returns the claims of the id_token, or null if there is none. The
+         * token is only decoded on the first call, and the claims are kept
+         * with it after that.
+         *
+         * @throws IllegalArgumentException if the id_token is malformed
+         */
+        public IdTokenClaims getIdTokenClaims() {
+            if (idToken == null) {
+                return null;
+            }
+            if (claims == null || !idToken.equals(claimsOf)) {
+                claims = IdTokenClaims.decode(idToken);
+                claimsOf = idToken;
+            }
+            return claims;
+        }
+
         public String asString() {
-            return accessToken + "-----" + (expires == null ? "" : expires);
+            return accessToken + "-----" + (expires == null ? "" : expires)
+                    + (idToken == null ? "" : "-----" + idToken);
         }
 
         public static TokenInfo fromString(String val) {
-            String[] parts = val.split("-----");
+            String[] parts = val.split("-----", 3);
             TokenInfo info = new TokenInfo();
             info.accessToken = parts[0];
-            info.expires = parts.length > 1 ? parts[1] : null;
+            info.expires = parts.length > 1 && parts[1].length() > 0 ? parts[1] : null;
+            info.idToken = parts.length > 2 ? parts[2] : null;
             return info;
         }
 
@@ -37,6 +64,7 @@ public interface OAuthResponseParser {
             if (accessToken != null ? !accessToken.equals(tokenInfo.accessToken) : tokenInfo.accessToken != null)
                 return false;
             if (expires != null ? !expires.equals(tokenInfo.expires) : tokenInfo.expires != null) return false;
+            if (idToken != null ? !idToken.equals(tokenInfo.idToken) : tokenInfo.idToken != null) return false;
             if (error != null ? !error.equals(tokenInfo.error) : tokenInfo.error != null) return false;
             if (errorDesc != null ? !errorDesc.equals(tokenInfo.errorDesc) : tokenInfo.errorDesc != null) return false;
             return !(errorUri != null ? !errorUri.equals(tokenInfo.errorUri) : tokenInfo.errorUri != null);
@@ -47,6 +75,7 @@ public interface OAuthResponseParser {
         public int hashCode() {
             int result = accessToken != null ? accessToken.hashCode() : 0;
             result = 31 * result + (expires != null ? expires.hashCode() : 0);
+            result = 31 * result + (idToken != null ? idToken.hashCode() : 0);
             result = 31 * result + (error != null ? error.hashCode() : 0);
             result = 31 * result + (errorDesc != null ? errorDesc.hashCode() : 0);
             result = 31 * result + (errorUri != null ? errorUri.hashCode() : 0);
@@ -58,6 +87,7 @@ public interface OAuthResponseParser {
             return "TokenInfo{" +
                     "accessToken='" + accessToken + '\'' +
                     ", expires='" + expires + '\'' +
+                    ", idToken='" + idToken + '\'' +
                     ", error='" + error + '\'' +
                     ", errorDesc='" + errorDesc + '\'' +
                     ", errorUri='" + errorUri + '\'' +
@@ -65,6 +95,11 @@ public interface OAuthResponseParser {
         }
     }
 
+    /**
+     * Parses the response of the provider. {@link TokenInfo#expires} is set
+     * in milliseconds by the local clock, and {@link Auth} moves it to the
+     * provider's clock, with which expiries are compared.
+     */
     TokenInfo parseResponse(String hash, String queryString);
 
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+/**
+ * Passed to the callback of a login when the provider responded with an
+ * error, such as {@code access_denied} or {@code temporarily_unavailable}.
+ *
+ * <p>
+ * Until the backoff set with {@link Auth#setErrorBackoff(int, int)} has
+ * elapsed, further logins for the same request fail with the same exception
+ * without contacting the provider again.
+ * </p>
+ */
+public class ProviderErrorException extends RuntimeException {
+
+  private final String error;
+  private final String errorDescription;
+  private final String errorUri;
+
+  /**
+   * @param info The provider's response, as parsed by an
+   *        {@link OAuthResponseParser}
+   */
+  public ProviderErrorException(OAuthResponseParser.TokenInfo info) {
+    super("Error from provider: " + info.error + info.errorDesc + info.errorUri);
+    this.error = info.error;
+    this.errorDescription = strip(info.errorDesc, " (", ")");
+    this.errorUri = strip(info.errorUri, "; see: ", "");
+  }
+
+  /** Removes the decoration {@link DefaultResponseParser} adds to a value. */
+  private static String strip(String value, String prefix, String suffix) {
+    if (value == null || value.length() == 0) {
+      return null;
+    }
+    if (value.startsWith(prefix) && value.endsWith(suffix)) {
+      return value.substring(prefix.length(), value.length() - suffix.length());
+    }
+    return value;
+  }
+
+  /** Returns the OAuth 2.0 error code, such as {@code access_denied}. */
+  public String getError() {
+    return error;
+  }
+
+  /** Returns the provider's {@code error_description}, or null. */
+  public String getErrorDescription() {
+    return errorDescription;
+  }
+
+  /** Returns the provider's {@code error_uri}, or null. */
+  public String getErrorUri() {
+    return errorUri;
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+import com.google.gwt.core.client.Callback;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renewals for the same client which are waiting to be sent to the provider as
+ * a single authorization for the union of their scopes.
+ *
+ * <p>
+ * The batch is itself the callback of that authorization, and passes the
+ * resulting token on to every request that was waiting for it.
+ * </p>
+ */
+class RenewalBatch implements Callback<OAuthResponseParser.TokenInfo, Throwable> {
+
+  /** Handle to one of the requests waiting in a batch. */
+  static class Entry implements LoginHandle {
+    private final RenewalBatch batch;
+    private final AuthRequest request;
+    private final Callback<OAuthResponseParser.TokenInfo, Throwable> callback;
+
+    private Entry(RenewalBatch batch, AuthRequest request,
+        Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
+      this.batch = batch;
+      this.request = request;
+      this.callback = callback;
+    }
+
+    @Override
+    public void cancel() {
+      batch.cancel(this);
+    }
+  }
+
+  private final Auth auth;
+  final OAuthResponseParser responseParser;
+  private final List<Entry> entries = new ArrayList<Entry>();
+  private AuthRequest merged;
+
+  /** Whether a popup window was reserved for the batch when it started. */
+  boolean reservedWindow;
+
+  /** Handle to the login for the merged request, once the batch was sent. */
+  LoginHandle login;
+
+  RenewalBatch(Auth auth, OAuthResponseParser responseParser) {
+    this.auth = auth;
+    this.responseParser = responseParser;
+  }
+
+  Entry add(AuthRequest req, Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
+    Entry entry = new Entry(this, req, callback);
+    entries.add(entry);
+    return entry;
+  }
+
+  boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  /** Returns the single request covering the scopes of every waiting request. */
+  AuthRequest mergedRequest() {
+    if (merged == null) {
+      List<AuthRequest> requests = new ArrayList<AuthRequest>();
+      for (Entry entry : entries) {
+        requests.add(entry.request);
+      }
+      merged = AuthRequest.union(requests);
+    }
+    return merged;
+  }
+
+  /**
+   * Removes a request from the batch and fails it. Once no request is left
+   * waiting, the login for the batch is cancelled as well.
+   */
+  private void cancel(Entry entry) {
+    if (!entries.remove(entry)) {
+      return;
+    }
+    entry.callback.onFailure(
+        new LoginAbortedException(LoginAbortedException.Reason.CANCELLED));
+    if (entries.isEmpty() && login != null) {
+      login.cancel();
+    }
+  }
+
+  @Override
+  public void onSuccess(OAuthResponseParser.TokenInfo info) {
+    // Store the token for each of the requests, so that they find it next
+    // time, with a single write.
+    List<Entry> waiting = new ArrayList<Entry>(entries);
+    entries.clear();
+    List<AuthRequest> requests = new ArrayList<AuthRequest>();
+    for (Entry entry : waiting) {
+      requests.add(entry.request);
+    }
+    auth.setTokens(requests, info);
+    for (Entry entry : waiting) {
+      entry.callback.onSuccess(info);
+    }
+  }
+
+  @Override
+  public void onFailure(Throwable reason) {
+    List<Entry> waiting = new ArrayList<Entry>(entries);
+    entries.clear();
+    for (Entry entry : waiting) {
+      entry.callback.onFailure(reason);
+    }
+  }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+import com.google.gwt.core.client.Callback;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Makes sure that only one of the windows sharing a token store renews a
+ * given token at a time.
+ *
+ * <p>
+ * Before renewing a token, a window takes the lease for its key. Other windows
+ * which need the same token while the lease is held wait for the renewal
+ * instead of starting their own, and pick the new token up from the store
+ * once the lease is released. The holder extends its lease while the renewal
+ * is in progress, so that a lease held by a window which was closed or
+ * crashed expires, and one of the waiting windows takes over.
+ * </p>
+ */
+class RenewalLeases {
+
+  /** Shares leases between windows. */
+  interface Coordinator {
+    /**
+     * Takes or extends the lease for the given key until the given time, if
+     * it is free, expired or already held by this window.
+     *
+     * <p>
+     * Coordinators which obtain leases asynchronously return false, and call
+     * {@link RenewalLeases#granted(String)} once they hold the lease.
+     * </p>
+     *
+     * @return Whether this window holds the lease
+     */
+    boolean acquire(String key, double now, double until);
+
+    /**
+     * Releases the lease for the given key, and tells the other windows.
+     *
+     * @param error Why the renewal failed, or null if it succeeded
+     */
+    void release(String key, String error);
+  }
+
+  /** Coordinator for a window which shares its tokens with no other. */
+  static final Coordinator NONE = new Coordinator() {
+    @Override
+    public boolean acquire(String key, double now, double until) {
+      return true;
+    }
+
+    @Override
+    public void release(String key, String error) {
+    }
+  };
+
+  /** How long a lease lasts unless it is extended. */
+  static final int LEASE_TTL = 10000;
+
+  /** Delay between extensions of the leases held by this window. */
+  static final int HEARTBEAT_DELAY = 3000;
+
+  /** Delay between checks for the token or an expired lease, while waiting. */
+  static final int POLL_DELAY = 1000;
+
+  private final Auth auth;
+  private final Auth.Clock clock;
+  Coordinator coordinator = NONE;
+
+  /** Leases held by this window, with the number of logins using each. */
+  private final Map<String, Integer> held = new HashMap<String, Integer>();
+
+  /** Logins waiting for another window's renewal, by key. */
+  private final Map<String, List<Waiter>> waiting = new HashMap<String, List<Waiter>>();
+  private boolean heartbeating;
+  private boolean polling;
+
+  RenewalLeases(Auth auth, Auth.Clock clock) {
+    this.auth = auth;
+    this.clock = clock;
+  }
+
+  /** Takes the lease for the given key, returning whether this window holds it. */
+  boolean acquire(String key) {
+    if (coordinator == NONE) {
+      return true;
+    }
+    double now = clock.now();
+    if (!coordinator.acquire(key, now, now + LEASE_TTL)) {
+      return false;
+    }
+    Integer count = held.get(key);
+    held.put(key, count == null ? 1 : count + 1);
+    startHeartbeat();
+    return true;
+  }
+
+  /**
+   * Wraps the callback of a login holding the lease for the given key, to
+   * release the lease once the login is done.
+   */
+  Callback<OAuthResponseParser.TokenInfo, Throwable> releasing(final String key,
+      final Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
+    if (coordinator == NONE) {
+      return callback;
+    }
+    return new Callback<OAuthResponseParser.TokenInfo, Throwable>() {
+      @Override
+      public void onSuccess(OAuthResponseParser.TokenInfo result) {
+        release(key, null);
+        callback.onSuccess(result);
+      }
+
+      @Override
+      public void onFailure(Throwable reason) {
+        release(key, String.valueOf(reason.getMessage()));
+        callback.onFailure(reason);
+      }
+    };
+  }
+
+  private void release(String key, String error) {
+    Integer count = held.get(key);
+    if (count == null) {
+      return;
+    }
+    if (count > 1) {
+      held.put(key, count - 1);
+    } else {
+      held.remove(key);
+      coordinator.release(key, error);
+    }
+  }
+
+  /** Waits for the renewal of the request's token in another window. */
+  LoginHandle await(AuthRequest req, OAuthResponseParser responseParser,
+      Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
+    String key = req.asString();
+    List<Waiter> list = waiting.get(key);
+    if (list == null) {
+      list = new ArrayList<Waiter>();
+      waiting.put(key, list);
+    }
+    Waiter waiter = new Waiter(key, req, responseParser, callback);
+    list.add(waiter);
+    startPolling();
+    return waiter;
+  }
+
+  /**
+   * Called when another window released the lease for the given key, passing
+   * the renewed token to the logins waiting for it.
+   *
+   * @param error Why the renewal failed, or null if it succeeded
+   */
+  void released(String key, String error) {
+    List<Waiter> list = waiting.remove(key);
+    if (list == null) {
+      return;
+    }
+    auth.forgetToken(key);
+    for (Waiter waiter : list) {
+      OAuthResponseParser.TokenInfo info = auth.getToken(waiter.request);
+      if (auth.isUsable(waiter.request, info)) {
+        waiter.callback.onSuccess(info);
+      } else {
+        waiter.callback.onFailure(new RuntimeException("Renewal in another window failed"
+            + (error == null ? "" : ": " + error)));
+      }
+    }
+  }
+
+  /**
+   * Called when the coordinator obtained the lease for the given key after
+   * {@link Coordinator#acquire} returned false, to let the logins waiting for
+   * it take the renewal over.
+   *
+   * @return Whether the lease is still needed, or else the coordinator
+   *         releases it
+   */
+  boolean granted(String key) {
+    if (waiting.containsKey(key)) {
+      poll(key);
+    }
+    return held.containsKey(key);
+  }
+
+  /** Returns whether logins are waiting for the renewal of the given key. */
+  boolean isWaiting(String key) {
+    return waiting.containsKey(key);
+  }
+
+  private void startHeartbeat() {
+    if (heartbeating) {
+      return;
+    }
+    heartbeating = true;
+    auth.scheduler.scheduleFixedDelay(new RepeatingCommand() {
+      @Override
+      public boolean execute() {
+        double now = clock.now();
+        for (String key : held.keySet()) {
+          coordinator.acquire(key, now, now + LEASE_TTL);
+        }
+        heartbeating = !held.isEmpty();
+        return heartbeating;
+      }
+    }, HEARTBEAT_DELAY);
+  }
+
+  /**
+   * Checks the waiting logins periodically, in case the renewal's result was
+   * missed, or its window went away without releasing the lease.
+   */
+  private void startPolling() {
+    if (polling) {
+      return;
+    }
+    polling = true;
+    auth.scheduler.scheduleFixedDelay(new RepeatingCommand() {
+      @Override
+      public boolean execute() {
+        for (String key : new ArrayList<String>(waiting.keySet())) {
+          poll(key);
+        }
+        polling = !waiting.isEmpty();
+        return polling;
+      }
+    }, POLL_DELAY);
+  }
+
+  private void poll(String key) {
+    List<Waiter> list = waiting.get(key);
+    auth.forgetToken(key);
+    AuthRequest req = list.get(0).request;
+    if (auth.isUsable(req, auth.getToken(req))) {
+      released(key, null);
+      return;
+    }
+    double now = clock.now();
+    if (coordinator.acquire(key, now, now + LEASE_TTL)) {
+      // The lease expired, take over the renewal. Each login takes the lease
+      // again, which this window now holds, so that it is only released once
+      // they are all done.
+      waiting.remove(key);
+      for (Waiter waiter : list) {
+        waiter.login = auth.login(waiter.request, waiter.responseParser, waiter.callback);
+      }
+    }
+  }
+
+  /** A login waiting for another window's renewal. */
+  private class Waiter implements LoginHandle {
+    final String key;
+    final AuthRequest request;
+    final OAuthResponseParser responseParser;
+    final Callback<OAuthResponseParser.TokenInfo, Throwable> callback;
+
+    /** The login made for this waiter once it took over the renewal. */
+    LoginHandle login;
+
+    Waiter(String key, AuthRequest request, OAuthResponseParser responseParser,
+        Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
+      this.key = key;
+      this.request = request;
+      this.responseParser = responseParser;
+      this.callback = callback;
+    }
+
+    @Override
+    public void cancel() {
+      if (login != null) {
+        login.cancel();
+        return;
+      }
+      List<Waiter> list = waiting.get(key);
+      if (list != null && list.remove(this)) {
+        if (list.isEmpty()) {
+          waiting.remove(key);
+        }
+        callback.onFailure(new LoginAbortedException(LoginAbortedException.Reason.CANCELLED));
+      }
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+import com.google.gwt.core.client.JavaScriptObject;
+
+/**
+ * Shares renewal leases between the windows of the same origin.
+ *
+ * <p>
+ * Where the Web Locks API is supported, a lease is a lock requested with
+ * {@code ifAvailable}, which the browser grants to a single window at a time
+ * and releases when that window goes away. Since the lock is granted
+ * asynchronously, {@link #acquire} returns false the first time, and the
+ * login waits until {@link RenewalLeases#granted(String)} lets it take the
+ * renewal over.
+ * </p>
+ *
+ * <p>
+ * Otherwise, each lease is an entry of localStorage holding its owner and
+ * expiry. localStorage offers no compare-and-set: the entry is read, then
+ * written, and two windows which both read it before either writes it both
+ * take the lease, and both renew the token. Reading the entry back would not
+ * tell, since a window always reads its own write. This fallback only makes
+ * such duplicate renewals rare.
+ * </p>
+ *
+ * <p>
+ * Releases are announced on the {@code gwt-oauth2-lease} BroadcastChannel
+ * where it is supported, and otherwise noticed through the {@code storage}
+ * event for the removed entry.
+ * </p>
+ */
+class StorageCoordinator implements RenewalLeases.Coordinator {
+  private static final String PREFIX = "gwt-oauth2-lease:";
+
+  /** Identifies this window as the owner of its leases. */
+  private final String id = Integer.toString((int) (Math.random() * Integer.MAX_VALUE), 36)
+      + Integer.toString((int) (Math.random() * Integer.MAX_VALUE), 36);
+
+  private final RenewalLeases leases;
+
+  /**
+   * Web Locks by key: the function releasing a held lock, or true while the
+   * lock is requested.
+   */
+  private final JavaScriptObject locks = JavaScriptObject.createObject();
+
+  private JavaScriptObject channel;
+
+  StorageCoordinator(RenewalLeases leases) {
+    this.leases = leases;
+    listen(leases);
+  }
+
+  @Override
+  public native boolean acquire(String key, double now, double until) /*-{
+    var name = @com.google.api.gwt.oauth2.client.StorageCoordinator::PREFIX + key;
+    var nav = $wnd.navigator;
+    if (nav.locks && nav.locks.request) {
+      var locks = this.@com.google.api.gwt.oauth2.client.StorageCoordinator::locks;
+      if (typeof locks[key] == 'function') {
+        return true;
+      }
+      if (!locks[key]) {
+        var leases = this.@com.google.api.gwt.oauth2.client.StorageCoordinator::leases;
+        var granted = $entry(function() {
+          return leases.@com.google.api.gwt.oauth2.client.RenewalLeases::granted(Ljava/lang/String;)(key);
+        });
+        locks[key] = true;
+        nav.locks.request(name, {ifAvailable: true}, function(lock) {
+          if (!lock) {
+            // Another window holds it, the next poll asks again.
+            delete locks[key];
+            return null;
+          }
+          // The lock is held until the returned Promise resolves.
+          return new $wnd.Promise(function(resolve) {
+            locks[key] = resolve;
+            if (!granted()) {
+              delete locks[key];
+              resolve();
+            }
+          });
+        });
+      }
+      return false;
+    }
+
+    var storage = $wnd.localStorage;
+    if (!storage) {
+      return true;
+    }
+    var id = this.@com.google.api.gwt.oauth2.client.StorageCoordinator::id;
+    var lease = JSON.parse(storage.getItem(name) || 'null');
+    if (lease && lease.owner != id && lease.until > now) {
+      return false;
+    }
+    storage.setItem(name, JSON.stringify({owner: id, until: until}));
+    return true;
+  }-*/;
+
+  @Override
+  public native void release(String key, String error) /*-{
+    var locks = this.@com.google.api.gwt.oauth2.client.StorageCoordinator::locks;
+    var storage = $wnd.localStorage;
+    if (typeof locks[key] == 'function') {
+      var unlock = locks[key];
+      delete locks[key];
+      unlock();
+    } else if (storage) {
+      var id = this.@com.google.api.gwt.oauth2.client.StorageCoordinator::id;
+      var name = @com.google.api.gwt.oauth2.client.StorageCoordinator::PREFIX + key;
+      var lease = JSON.parse(storage.getItem(name) || 'null');
+      if (lease && lease.owner == id) {
+        storage.removeItem(name);
+      }
+    }
+    var channel = this.@com.google.api.gwt.oauth2.client.StorageCoordinator::channel;
+    if (channel) {
+      channel.postMessage({key: key, error: error});
+    }
+  }-*/;
+
+  private native void listen(RenewalLeases leases) /*-{
+    var released = $entry(function(key, error) {
+      leases.@com.google.api.gwt.oauth2.client.RenewalLeases::released(Ljava/lang/String;Ljava/lang/String;)(
+          key, error || null);
+    });
+    if ($wnd.BroadcastChannel) {
+      var channel = new $wnd.BroadcastChannel('gwt-oauth2-lease');
+      channel.onmessage = function(e) {
+        if (e.data && typeof e.data.key == 'string') {
+          released(e.data.key, e.data.error);
+        }
+      };
+      this.@com.google.api.gwt.oauth2.client.StorageCoordinator::channel = channel;
+    } else if ($wnd.addEventListener) {
+      var prefix = @com.google.api.gwt.oauth2.client.StorageCoordinator::PREFIX;
+      $wnd.addEventListener('storage', function(e) {
+        if (e.key && e.key.indexOf(prefix) == 0 && e.newValue == null) {
+          released(e.key.substring(prefix.length), null);
+        }
+      }, false);
+    }
+  }-*/;
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+import com.google.gwt.event.shared.EventHandler;
+import com.google.gwt.event.shared.GwtEvent;
+
+/**
+ * Fired by {@link Auth} when a token is obtained, is about to expire or has
+ * expired, or is cleared. See {@link Auth#addTokenHandler(Handler)}.
+ */
+public class TokenEvent extends GwtEvent<TokenEvent.Handler> {
+
+  /** Handles {@link TokenEvent}s. */
+  public interface Handler extends EventHandler {
+    void onTokenEvent(TokenEvent event);
+  }
+
+  /** What happened to the token. */
+  public enum Kind {
+    /** A token was obtained for a request which had none. */
+    ACQUIRED,
+    /** A token was obtained in place of an earlier one for the same request. */
+    REFRESHED,
+    /**
+     * The token expires within ten minutes, so that {@code login()} will renew
+     * it rather than pass it on.
+     */
+    EXPIRING,
+    /** The token has expired. */
+    EXPIRED,
+    /** The token, or all tokens of a client or of every client, were cleared. */
+    CLEARED
+  }
+
+  public static final Type<Handler> TYPE = new Type<Handler>();
+
+  private final Kind kind;
+  private final AuthRequest request;
+  private final String clientId;
+  private final OAuthResponseParser.TokenInfo token;
+
+  TokenEvent(Kind kind, AuthRequest request, String clientId,
+      OAuthResponseParser.TokenInfo token) {
+    this.kind = kind;
+    this.request = request;
+    this.clientId = clientId;
+    this.token = token;
+  }
+
+  public Kind getKind() {
+    return kind;
+  }
+
+  /**
+   * Returns the request the token belongs to, or null if the tokens of a
+   * whole client, or of every client, were cleared.
+   */
+  public AuthRequest getRequest() {
+    return request;
+  }
+
+  /** Returns the client the token belongs to, or null if every token was cleared. */
+  public String getClientId() {
+    return clientId;
+  }
+
+  /** Returns the token, or null if it was cleared. */
+  public OAuthResponseParser.TokenInfo getToken() {
+    return token;
+  }
+
+  @Override
+  public Type<Handler> getAssociatedType() {
+    return TYPE;
+  }
+
+  @Override
+  protected void dispatch(Handler handler) {
+    handler.onTokenEvent(this);
+  }
+
+  @Override
+  public String toString() {
+    return "TokenEvent{" + kind + ", " + (request != null ? request.asString() : clientId) + "}";
+  }
+}
@@ -16,15 +16,60 @@
 
 package com.google.api.gwt.oauth2.client;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Interface for storing, retrieving, and clearing stored tokens.
  *
  * @author jasonhall@google.com (Jason Hall)
  */
 interface TokenStore {
+  /** Selects stored tokens to remove, see {@link TokenStore#removeIf(Filter)}. */
+  interface Filter {
+    boolean matches(String key, String value);
+  }
+
   public void set(String key, String value);
 
   public String get(String key);
 
   public void clear();
+
+  /** Returns every stored token, by key, reading the store once. */
+  public Map<String, String> getAll();
+
+  /** Stores each of the given tokens by its key, writing the store once. */
+  public void setAll(Map<String, String> values);
+
+  /**
+   * Removes the stored tokens matching the filter, writing the store at most
+   * once.
+   *
+   * @return The number of tokens removed
+   */
+  public int removeIf(Filter filter);
+
+  /**
+   * Removes the stored tokens for the given keys, without looking at the
+   * other tokens, writing the store at most once.
+   *
+   * @return The number of tokens removed
+   */
+  public int removeAll(Collection<String> keys);
+
+  /**
+   * Returns the accounts, as given to {@link AuthRequest#withLoginHint}, which
+   * have tokens stored, without reading the tokens.
+   */
+  public Set<String> getAccounts();
+
+  /**
+   * Removes the stored tokens of the account, without reading or writing the
+   * tokens of other accounts.
+   *
+   * @return The keys of the removed tokens
+   */
+  public Collection<String> removeAccount(String account);
 }
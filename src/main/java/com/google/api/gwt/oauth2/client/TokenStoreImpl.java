@@ -16,30 +16,231 @@
 
 package com.google.api.gwt.oauth2.client;
 
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArrayString;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Default implementation of token storage, using localStorage to store tokens
  * (if supported).
  *
+ * <p>
+ * Tokens are kept as strings in JSON objects: those of each account in an
+ * item of their own, and the others in a single item. Accounts are listed
+ * and cleared without reading or writing the tokens of other accounts.
+ * </p>
+ *
  * @author jasonhall@google.com (Jason Hall)
  */
 class TokenStoreImpl implements TokenStore {
   private static final String KEY = "gwt-oauth2";
 
-  public native void set(String key, String value) /*-{
-    var obj = JSON.parse($wnd.localStorage.getItem(
-        @com.google.api.gwt.oauth2.client.TokenStoreImpl::KEY) || '{}');
-    obj[key] = value;
-    $wnd.localStorage.setItem(
-        @com.google.api.gwt.oauth2.client.TokenStoreImpl::KEY, JSON.stringify(obj));
+  /** Prefix of the items holding the tokens of each account. */
+  private static final String ACCOUNT_KEY = "gwt-oauth2-account:";
+
+  public void set(String key, String value) {
+    String item = itemOf(key);
+    JavaScriptObject obj = load(item);
+    put(obj, key, value);
+    save(item, obj);
+  }
+
+  public String get(String key) {
+    return value(load(itemOf(key)), key);
+  }
+
+  public void clear() {
+    JsArrayString items = accountItems();
+    for (int i = 0; i < items.length(); i++) {
+      removeItem(items.get(i));
+    }
+    removeItem(KEY);
+  }
+
+  public Map<String, String> getAll() {
+    Map<String, String> all = toMap(load(KEY));
+    JsArrayString items = accountItems();
+    for (int i = 0; i < items.length(); i++) {
+      all.putAll(toMap(load(items.get(i))));
+    }
+    return all;
+  }
+
+  /**
+   * Writes each item holding one of the tokens once; the requests of a
+   * renewal batch share their account, so that is a single write.
+   */
+  public void setAll(Map<String, String> values) {
+    Map<String, JavaScriptObject> objs = new HashMap<String, JavaScriptObject>();
+    for (Map.Entry<String, String> entry : values.entrySet()) {
+      put(loaded(objs, itemOf(entry.getKey())), entry.getKey(), entry.getValue());
+    }
+    for (Map.Entry<String, JavaScriptObject> entry : objs.entrySet()) {
+      save(entry.getKey(), entry.getValue());
+    }
+  }
+
+  public int removeIf(Filter filter) {
+    int removed = removeIf(KEY, filter);
+    JsArrayString items = accountItems();
+    for (int i = 0; i < items.length(); i++) {
+      removed += removeIf(items.get(i), filter);
+    }
+    return removed;
+  }
+
+  private static int removeIf(String item, Filter filter) {
+    JavaScriptObject obj = load(item);
+    JsArrayString keys = keys(obj);
+    int removed = 0;
+    for (int i = 0; i < keys.length(); i++) {
+      String key = keys.get(i);
+      if (filter.matches(key, value(obj, key))) {
+        remove(obj, key);
+        removed++;
+      }
+    }
+    if (removed > 0) {
+      save(item, obj);
+    }
+    return removed;
+  }
+
+  public int removeAll(Collection<String> keys) {
+    Map<String, JavaScriptObject> objs = new HashMap<String, JavaScriptObject>();
+    Set<String> changed = new LinkedHashSet<String>();
+    int removed = 0;
+    for (String key : keys) {
+      String item = itemOf(key);
+      if (remove(loaded(objs, item), key)) {
+        changed.add(item);
+        removed++;
+      }
+    }
+    for (String item : changed) {
+      save(item, objs.get(item));
+    }
+    return removed;
+  }
+
+  public Set<String> getAccounts() {
+    Set<String> accounts = new LinkedHashSet<String>();
+    JsArrayString items = accountItems();
+    for (int i = 0; i < items.length(); i++) {
+      accounts.add(items.get(i).substring(ACCOUNT_KEY.length()));
+    }
+    return accounts;
+  }
+
+  public Collection<String> removeAccount(String account) {
+    String item = ACCOUNT_KEY + account;
+    JsArrayString keys = keys(load(item));
+    List<String> removed = new ArrayList<String>();
+    for (int i = 0; i < keys.length(); i++) {
+      removed.add(keys.get(i));
+    }
+    removeItem(item);
+    return removed;
+  }
+
+  /** Returns whether the named localStorage item is one holding tokens. */
+  static boolean holdsTokens(String item) {
+    return item.equals(KEY) || item.startsWith(ACCOUNT_KEY);
+  }
+
+  /** Returns the name of the item holding the token for the key. */
+  private static String itemOf(String key) {
+    String account = AuthRequest.accountOf(key);
+    return account == null ? KEY : ACCOUNT_KEY + account;
+  }
+
+  /** Returns the object of the item, loading it the first time. */
+  private static JavaScriptObject loaded(Map<String, JavaScriptObject> objs, String item) {
+    JavaScriptObject obj = objs.get(item);
+    if (obj == null) {
+      obj = load(item);
+      objs.put(item, obj);
+    }
+    return obj;
+  }
+
+  /** Copies the properties of a JavaScript object into a map. */
+  static Map<String, String> toMap(JavaScriptObject obj) {
+    Map<String, String> all = new HashMap<String, String>();
+    JsArrayString keys = keys(obj);
+    for (int i = 0; i < keys.length(); i++) {
+      all.put(keys.get(i), value(obj, keys.get(i)));
+    }
+    return all;
+  }
+
+  private static native JavaScriptObject load(String item) /*-{
+    return JSON.parse($wnd.localStorage.getItem(item) || '{}');
+  }-*/;
+
+  /** Saves the object as the item, or removes the item once it is empty. */
+  private static void save(String item, JavaScriptObject obj) {
+    if (keys(obj).length() == 0) {
+      removeItem(item);
+    } else {
+      setItem(item, obj);
+    }
+  }
+
+  private static native void setItem(String item, JavaScriptObject obj) /*-{
+    $wnd.localStorage.setItem(item, JSON.stringify(obj));
+  }-*/;
+
+  private static native void removeItem(String item) /*-{
+    $wnd.localStorage.removeItem(item);
   }-*/;
 
-  public native String get(String key) /*-{
-    return JSON.parse($wnd.localStorage.getItem(
-        @com.google.api.gwt.oauth2.client.TokenStoreImpl::KEY) || '{}')[key] || '';
+  /** Returns the names of the items holding the tokens of each account. */
+  private static native JsArrayString accountItems() /*-{
+    var storage = $wnd.localStorage;
+    var prefix = @com.google.api.gwt.oauth2.client.TokenStoreImpl::ACCOUNT_KEY;
+    var items = [];
+    for (var i = 0; i < storage.length; i++) {
+      var name = storage.key(i);
+      if (name && name.indexOf(prefix) == 0) {
+        items.push(name);
+      }
+    }
+    return items;
+  }-*/;
+
+  static native JsArrayString keys(JavaScriptObject obj) /*-{
+    var keys = [];
+    for (var key in obj) {
+      if (Object.prototype.hasOwnProperty.call(obj, key)) {
+        keys.push(key);
+      }
+    }
+    return keys;
+  }-*/;
+
+  /** Returns the value for the key, or '' if there is none. */
+  static native String value(JavaScriptObject obj, String key) /*-{
+    return obj[key] || '';
+  }-*/;
+
+  private static native void put(JavaScriptObject obj, String key, String value) /*-{
+    obj[key] = value;
   }-*/;
 
-  public native void clear() /*-{
-    $wnd.localStorage.removeItem(
-        @com.google.api.gwt.oauth2.client.TokenStoreImpl::KEY);
+  /** Removes the key from the object, returning whether it was there. */
+  private static native boolean remove(JavaScriptObject obj, String key) /*-{
+    if (!Object.prototype.hasOwnProperty.call(obj, key)) {
+      return false;
+    }
+    delete obj[key];
+    return true;
   }-*/;
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes the JSON report posted by the in-browser benchmarks to the file
+ * named by the {@code oauth2.benchmark.report} system property, by default
+ * {@code target/token-store-benchmark.json}.
+ */
+public class BenchmarkReportServlet extends HttpServlet {
+
+  @Override
+  protected void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    File report = new File(
+        System.getProperty("oauth2.benchmark.report", "target/token-store-benchmark.json"));
+    if (report.getParentFile() != null) {
+      report.getParentFile().mkdirs();
+    }
+    InputStream in = request.getInputStream();
+    OutputStream out = new FileOutputStream(report);
+    try {
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      out.close();
+    }
+    log("Wrote benchmark report to " + report.getAbsolutePath());
+    response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+  }
+}
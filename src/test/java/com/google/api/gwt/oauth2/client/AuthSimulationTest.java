@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+import com.google.gwt.core.client.Callback;
+import com.google.gwt.core.client.testing.StubScheduler;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays scripted workloads against {@link Auth} on virtual time, and checks
+ * how much storage I/O, how many popups and how many callbacks each of them
+ * costs.
+ *
+ * <p>
+ * The expected numbers are regression baselines: a change which makes the
+ * flow cheaper or more expensive shows up here as a failure, and the baseline
+ * should then be updated along with an explanation of the difference.
+ * </p>
+ */
+public class AuthSimulationTest {
+
+  /** Many logins for a few requests of one client, with long-lived tokens. */
+  @Test
+  public void testSteadyState() {
+    Scenario scenario = new Scenario("steady-state")
+        .clients(1).scopeSets(4).logins(2000).duration(2 * HOUR).tokenLifetime(HOUR);
+    assertReport("logins=2000 popups=14 storeReads=4 storeWrites=14 bytesRead=351 "
+        + "bytesWritten=2880 callbacks=2000 failures=0", scenario);
+  }
+
+  /**
+   * Several clients whose requests share scopes, logging in in bursts as an
+   * application would when a page loads, without batching.
+   */
+  @Test
+  public void testOverlappingScopes() {
+    Scenario scenario = new Scenario("overlapping-scopes")
+        .clients(3).scopeSets(6).logins(3000).duration(3 * HOUR).tokenLifetime(HOUR)
+        .bursts(40);
+    assertReport("logins=3000 popups=310 storeReads=70 storeWrites=310 bytesRead=4375 "
+        + "bytesWritten=266342 callbacks=3000 failures=0", scenario);
+  }
+
+  /** The same workload, with renewals for the same client batched together. */
+  @Test
+  public void testOverlappingScopes_batched() {
+    Scenario scenario = new Scenario("overlapping-scopes-batched")
+        .clients(3).scopeSets(6).logins(3000).duration(3 * HOUR).tokenLifetime(HOUR)
+        .bursts(40).batchWindow(TICK);
+    assertReport("logins=3000 popups=124 storeReads=70 storeWrites=124 bytesRead=4375 "
+        + "bytesWritten=104517 callbacks=3000 failures=0", scenario);
+  }
+
+  /**
+   * Tokens which are "expiring soon" shortly after they are obtained, so that
+   * most logins need the provider.
+   */
+  @Test
+  public void testShortLivedTokens() {
+    Scenario scenario = new Scenario("short-lived-tokens")
+        .clients(2).scopeSets(3).logins(2000).duration(HOUR).tokenLifetime(11 * MINUTE);
+    assertReport("logins=2000 popups=364 storeReads=6 storeWrites=364 bytesRead=742 "
+        + "bytesWritten=127469 callbacks=2000 failures=0", scenario);
+  }
+
+  /** Replaying a scenario gives exactly the same report. */
+  @Test
+  public void testDeterministic() {
+    Scenario scenario = new Scenario("deterministic")
+        .clients(2).scopeSets(4).logins(500).duration(HOUR).tokenLifetime(20 * MINUTE)
+        .batchWindow(TICK);
+    assertEquals(scenario.run().toString(), scenario.run().toString());
+  }
+
+  private static void assertReport(String expected, Scenario scenario) {
+    assertEquals(scenario.name, expected, scenario.run().toString());
+  }
+
+  private static final double TICK = 100;
+  private static final double MINUTE = 60 * 1000;
+  private static final double HOUR = 60 * MINUTE;
+
+  /** Scopes that requests pick from, so that their scope sets overlap. */
+  private static final String[] SCOPES = {"email", "profile", "calendar", "drive", "contacts"};
+
+  /** A scripted workload, generated from a fixed seed. */
+  static class Scenario {
+    final String name;
+    int clients = 1;
+    int scopeSets = 1;
+    int logins = 100;
+    double duration = HOUR;
+    double tokenLifetime = HOUR;
+    double providerLatency = 2000;
+    double batchWindow;
+    int bursts;
+    long seed = 42;
+
+    Scenario(String name) {
+      this.name = name;
+    }
+
+    Scenario clients(int clients) {
+      this.clients = clients;
+      return this;
+    }
+
+    Scenario scopeSets(int scopeSets) {
+      this.scopeSets = scopeSets;
+      return this;
+    }
+
+    Scenario logins(int logins) {
+      this.logins = logins;
+      return this;
+    }
+
+    Scenario duration(double duration) {
+      this.duration = duration;
+      return this;
+    }
+
+    Scenario tokenLifetime(double tokenLifetime) {
+      this.tokenLifetime = tokenLifetime;
+      return this;
+    }
+
+    Scenario batchWindow(double batchWindow) {
+      this.batchWindow = batchWindow;
+      return this;
+    }
+
+    /**
+     * Makes the logins happen within a second of one of the given number of
+     * instants, rather than spread evenly.
+     */
+    Scenario bursts(int bursts) {
+      this.bursts = bursts;
+      return this;
+    }
+
+    /** Builds the requests, and the virtual time at which each login is made. */
+    Report run() {
+      Random random = new Random(seed);
+      List<AuthRequest> requests = new ArrayList<AuthRequest>();
+      for (int c = 0; c < clients; c++) {
+        for (int s = 0; s < scopeSets; s++) {
+          // Each scope set has two or three scopes out of the same small pool.
+          String[] scopes = new String[2 + random.nextInt(2)];
+          for (int i = 0; i < scopes.length; i++) {
+            scopes[i] = SCOPES[(s + i * (1 + c)) % SCOPES.length];
+          }
+          requests.add(new AuthRequest("https://provider/auth", "client" + c).withScopes(scopes));
+        }
+      }
+
+      double[] burstTimes = new double[bursts];
+      for (int i = 0; i < bursts; i++) {
+        burstTimes[i] = random.nextDouble() * duration;
+      }
+      double[] times = new double[logins];
+      AuthRequest[] targets = new AuthRequest[logins];
+      for (int i = 0; i < logins; i++) {
+        double time = bursts == 0 ? random.nextDouble() * duration
+            : burstTimes[random.nextInt(bursts)] + random.nextDouble() * 1000;
+        times[i] = Math.floor(time / TICK) * TICK;
+        targets[i] = requests.get(random.nextInt(requests.size()));
+      }
+      Arrays.sort(times);
+
+      Simulation sim = new Simulation(this);
+      return sim.run(times, targets);
+    }
+  }
+
+  /** Results of a scenario. */
+  static class Report {
+    int logins;
+    int popups;
+    int storeReads;
+    int storeWrites;
+    long bytesRead;
+    long bytesWritten;
+    int callbacks;
+    int failures;
+
+    @Override
+    public String toString() {
+      return "logins=" + logins + " popups=" + popups + " storeReads=" + storeReads
+          + " storeWrites=" + storeWrites + " bytesRead=" + bytesRead
+          + " bytesWritten=" + bytesWritten + " callbacks=" + callbacks
+          + " failures=" + failures;
+    }
+  }
+
+  /** Runs one scenario on a fresh {@link Auth}, store and virtual clock. */
+  static class Simulation {
+    final Scenario scenario;
+    final Report report = new Report();
+    final VirtualClock clock = new VirtualClock();
+    final CountingTokenStore store = new CountingTokenStore(report);
+    final StubScheduler scheduler = new StubScheduler();
+    final SimulatedAuth auth;
+
+    /** Provider responses which are on their way back, in order of arrival. */
+    final LinkedList<Response> responses = new LinkedList<Response>();
+    int issued;
+
+    Simulation(Scenario scenario) {
+      this.scenario = scenario;
+      this.auth = new SimulatedAuth(this);
+      auth.setBatchWindow((int) scenario.batchWindow);
+    }
+
+    Report run(double[] times, AuthRequest[] targets) {
+      int next = 0;
+      double end = scenario.duration + scenario.providerLatency + 10 * TICK;
+      for (clock.now = 0; clock.now <= end; clock.now += TICK) {
+        while (next < times.length && times[next] <= clock.now) {
+          report.logins++;
+          auth.login(targets[next++], new CountingCallback(report));
+        }
+        scheduler.executeRepeatingCommands();
+        while (!responses.isEmpty() && responses.getFirst().arrival <= clock.now) {
+          Response response = responses.removeFirst();
+          auth.finish(response.state, response.hash, "?state=" + response.state);
+        }
+        scheduler.executeScheduledCommands();
+      }
+      return report;
+    }
+
+    /** Called for each popup; the provider answers after a fixed latency. */
+    void popup(String authUrl) {
+      report.popups++;
+      String state = authUrl.substring(authUrl.indexOf("&state=") + "&state=".length());
+      responses.add(new Response(clock.now + scenario.providerLatency, state,
+          "#access_token=token" + (++issued)
+          + "&expires_in=" + (long) (scenario.tokenLifetime / 1000)));
+    }
+  }
+
+  static class Response {
+    final double arrival;
+    final String state;
+    final String hash;
+
+    Response(double arrival, String state, String hash) {
+      this.arrival = arrival;
+      this.state = state;
+      this.hash = hash;
+    }
+  }
+
+  static class SimulatedAuth extends Auth {
+    private final Simulation sim;
+    private int stateCount;
+
+    SimulatedAuth(Simulation sim) {
+      super(sim.store, sim.clock, new AuthTest.MockUrlCodex(), sim.scheduler, "popup.html");
+      this.sim = sim;
+    }
+
+    @Override
+    void doLogin(String authUrl, Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
+      sim.popup(authUrl);
+    }
+
+    @Override
+    String newState() {
+      return "state" + (++stateCount);
+    }
+  }
+
+  static class VirtualClock implements Auth.Clock {
+    double now;
+
+    @Override
+    public double now() {
+      return now;
+    }
+  }
+
+  /**
+   * Counts reads and writes, and the bytes they cost when all tokens are
+   * kept in a single serialized blob as {@link TokenStoreImpl} does: every
+   * read parses the whole blob and every write serializes it again.
+   */
+  static class CountingTokenStore implements TokenStore {
+    private final Map<String, String> store = new HashMap<String, String>();
+    private final Report report;
+
+    CountingTokenStore(Report report) {
+      this.report = report;
+    }
+
+    private long blobSize() {
+      // {"key":"value",...}
+      long size = 2;
+      for (Map.Entry<String, String> entry : store.entrySet()) {
+        size += entry.getKey().length() + entry.getValue().length() + 6;
+      }
+      return size;
+    }
+
+    private void read() {
+      report.storeReads++;
+      report.bytesRead += blobSize();
+    }
+
+    private void write() {
+      report.storeWrites++;
+      report.bytesWritten += blobSize();
+    }
+
+    @Override
+    public void set(String key, String value) {
+      store.put(key, value);
+      write();
+    }
+
+    @Override
+    public String get(String key) {
+      read();
+      String value = store.get(key);
+      return value == null ? "" : value;
+    }
+
+    @Override
+    public void clear() {
+      store.clear();
+      write();
+    }
+
+    @Override
+    public Map<String, String> getAll() {
+      read();
+      return new HashMap<String, String>(store);
+    }
+
+    @Override
+    public void setAll(Map<String, String> values) {
+      store.putAll(values);
+      write();
+    }
+
+    @Override
+    public int removeIf(Filter filter) {
+      read();
+      int removed = 0;
+      Iterator<Map.Entry<String, String>> entries = store.entrySet().iterator();
+      while (entries.hasNext()) {
+        Map.Entry<String, String> entry = entries.next();
+        if (filter.matches(entry.getKey(), entry.getValue())) {
+          entries.remove();
+          removed++;
+        }
+      }
+      if (removed > 0) {
+        write();
+      }
+      return removed;
+    }
+
+    @Override
+    public int removeAll(Collection<String> keys) {
+      read();
+      int removed = 0;
+      for (String key : keys) {
+        if (store.remove(key) != null) {
+          removed++;
+        }
+      }
+      if (removed > 0) {
+        write();
+      }
+      return removed;
+    }
+
+    @Override
+    public Set<String> getAccounts() {
+      Set<String> accounts = new HashSet<String>();
+      for (String key : store.keySet()) {
+        if (AuthRequest.accountOf(key) != null) {
+          accounts.add(AuthRequest.accountOf(key));
+        }
+      }
+      return accounts;
+    }
+
+    @Override
+    public Collection<String> removeAccount(String account) {
+      read();
+      List<String> removed = new ArrayList<String>();
+      for (String key : store.keySet()) {
+        if (account.equals(AuthRequest.accountOf(key))) {
+          removed.add(key);
+        }
+      }
+      if (!removed.isEmpty()) {
+        store.keySet().removeAll(removed);
+        write();
+      }
+      return removed;
+    }
+  }
+
+  static class CountingCallback implements Callback<OAuthResponseParser.TokenInfo, Throwable> {
+    private final Report report;
+    private boolean called;
+
+    CountingCallback(Report report) {
+      this.report = report;
+    }
+
+    @Override
+    public void onSuccess(OAuthResponseParser.TokenInfo result) {
+      called();
+    }
+
+    @Override
+    public void onFailure(Throwable caught) {
+      called();
+      report.failures++;
+    }
+
+    private void called() {
+      assertFalse("Callback called more than once", called);
+      called = true;
+      report.callbacks++;
+    }
+  }
+}
@@ -19,12 +19,20 @@ package com.google.api.gwt.oauth2.client;
 import com.google.gwt.core.client.Callback;
 import com.google.gwt.core.client.Scheduler.ScheduledCommand;
 import com.google.gwt.core.client.testing.StubScheduler;
+import com.google.gwt.event.shared.HandlerRegistration;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.*;
 
@@ -54,8 +62,8 @@ public class AuthTest {
 
     // The popup was used and the iframe wasn't.
     assertTrue(auth.loggedInViaPopup);
-    assertEquals("url?client_id=clientId&response_type=token&scope=scope&redirect_uri=popup.html",
-        auth.lastUrl);
+    assertEquals("url?client_id=clientId&response_type=token&scope=scope&redirect_uri=popup.html"
+        + "&state=state1", auth.lastUrl);
   }
 
   /**
@@ -75,11 +83,11 @@ public class AuthTest {
     MockCallback callback = new MockCallback();
     auth.login(req, callback);
 
-    assertTrue(auth.expiringSoon(info));
+    assertTrue(auth.expiringSoon(req, info));
 
     assertTrue(auth.loggedInViaPopup);
-    assertEquals("url?client_id=clientId&response_type=token&scope=scope&redirect_uri=popup.html",
-        auth.lastUrl);
+    assertEquals("url?client_id=clientId&response_type=token&scope=scope&redirect_uri=popup.html"
+        + "&state=state1", auth.lastUrl);
   }
 
   /**
@@ -221,9 +229,7 @@ public class AuthTest {
    */
   @Test
   public void testFinish_error() {
-    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
     MockCallback callback = new MockCallback();
-    auth.login(req, callback);
 
     // Simulates the auth provider's error response, with the error first, last,
     // and in the middle of the hash, and as the only element in the hash. Also
@@ -251,6 +257,11 @@ public class AuthTest {
   }
 
   private void assertError(MockCallback callback, String hash, String error) {
+    // Each response needs a login of its own, for a request which is not
+    // backing off from the previous error.
+    callback.failure = null;
+    auth.login(new AuthRequest("url", "clientId").withScopes("scope" + hash), callback);
+
     // Simulates the auth provider's error response.
     auth.finish(hash, "nothing");
 
@@ -282,20 +293,1200 @@ public class AuthTest {
     assertEquals(Double.NEGATIVE_INFINITY, auth.expiresIn(newReq), 0.001d);
   }
 
-  private static class MockAuth extends Auth {
-    private boolean loggedInViaPopup;
-    private String lastUrl;
+  /**
+   * When batching is enabled, renewals for the same client are sent as one
+   * authorization for the union of their scopes, and every waiting request is
+   * given the resulting token.
+   */
+  @Test
+  public void testLogin_batched() {
+    auth.setBatchWindow(50);
+    AuthRequest req1 = new AuthRequest("url", "batchClient").withScopes("a", "b");
+    AuthRequest req2 = new AuthRequest("url", "batchClient").withScopes("b", "c")
+        .withIncludeGrantedScopes(true);
+    AuthRequest other = new AuthRequest("url", "otherClient").withScopes("a");
+    MockCallback callback1 = new MockCallback();
+    MockCallback callback2 = new MockCallback();
+    MockCallback otherCallback = new MockCallback();
+    auth.login(req1, callback1);
+    auth.login(req2, callback2);
+    auth.login(other, otherCallback);
+
+    // Nothing is requested until the batch window elapses.
+    assertEquals(0, auth.popupCount);
+    StubScheduler scheduler = (StubScheduler) auth.scheduler;
+    assertEquals(2, scheduler.getRepeatingCommands().size());
+
+    // The first batch is for both batchClient requests.
+    scheduler.getRepeatingCommands().get(0).execute();
+    assertEquals(1, auth.popupCount);
+    assertEquals("url?client_id=batchClient&response_type=token&scope=a b c"
+        + "&include_granted_scopes=true&redirect_uri=popup.html&state=state1", auth.lastUrl);
+
+    auth.finish("#access_token=batched&expires_in=10000", "");
+    assertEquals("batched", callback1.token.accessToken);
+    assertEquals("batched", callback2.token.accessToken);
+    assertNull(otherCallback.token);
+
+    // The token is stored for each individual request, with a single write,
+    // but not for the union which no caller asked for.
+    assertEquals("batched", auth.getToken(req1).accessToken);
+    assertEquals("batched", auth.getToken(req2).accessToken);
+    assertNull(auth.getToken(
+        new AuthRequest("url", "batchClient").withScopes("a", "b", "c")));
+    assertEquals(1, ((InMemoryTokenStore) auth.tokenStore).writes);
+
+    // The other client gets its own authorization.
+    scheduler.getRepeatingCommands().get(1).execute();
+    assertEquals(2, auth.popupCount);
+    assertEquals("url?client_id=otherClient&response_type=token&scope=a&redirect_uri=popup.html"
+        + "&state=state2", auth.lastUrl);
+  }
+
+  /**
+   * With metrics set, store hits and misses, provider errors and parse
+   * failures are counted, and the store and round trip latencies recorded.
+   */
+  @Test
+  public void testMetrics() {
+    AuthStats stats = new AuthStats();
+    auth.setMetrics(stats);
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+
+    auth.login(req, new MockCallback());
+    MockClock.now += 250;
+    auth.finish("#access_token=foo&expires_in=10000", "");
+    auth.login(req, new MockCallback());
+    auth.login(new AuthRequest("url", "clientId").withScopes("denied"), new MockCallback());
+    auth.finish("#error=access_denied", "");
+    auth.login(new AuthRequest("url", "clientId").withScopes("garbled"), new MockCallback());
+    auth.finish("#nonsense", "");
+
+    assertEquals(3, stats.getCount(AuthMetrics.Counter.CACHE_MISS));
+    assertEquals(1, stats.getCount(AuthMetrics.Counter.CACHE_HIT));
+    assertEquals(1, stats.getCount(AuthMetrics.Counter.PROVIDER_ERROR));
+    assertEquals(1, stats.getCount(AuthMetrics.Counter.PARSE_FAILURE));
+    // The second login finds the token in memory.
+    assertEquals(3, stats.getCount(AuthMetrics.Latency.STORE_GET));
+    assertEquals(1, stats.getCount(AuthMetrics.Latency.STORE_SET));
+    assertEquals(3, stats.getCount(AuthMetrics.Latency.PARSE));
+    assertEquals(250, stats.getMax(AuthMetrics.Latency.ROUND_TRIP), 0.001d);
+
+    String json = auth.statsJson();
+    assertTrue(json.startsWith("{\"counters\":{\"CACHE_HIT\":1,\"CACHE_MISS\":3,"));
+    assertTrue(json.contains("\"STORE_SET\":{\"count\":1,\"total\":0,\"max\":0,"
+        + "\"buckets\":[1,0,0,0,0,0,0,0,0,0,0,0,0,0]}"));
+    assertTrue(json.endsWith("\"bucketBounds\":[1,2,5,10,20,50,100,200,500,1000,2000,5000,10000]}"));
+
+    // Latencies which are not numbers do not break the JSON.
+    stats.record(AuthMetrics.Latency.PARSE, Double.NaN);
+    assertTrue(auth.statsJson().contains("\"PARSE\":{\"count\":4,\"total\":null,"));
+    assertEquals("null", AuthStats.number(Double.POSITIVE_INFINITY));
+    assertEquals("-3", AuthStats.number(-3d));
+
+    // Without metrics there is no snapshot.
+    auth.setMetrics(null);
+    assertNull(auth.statsJson());
+  }
+
+  /**
+   * The tracer records each step of the flow, keeping only the most recent
+   * events once its buffer is full.
+   */
+  @Test
+  public void testTracer() {
+    AuthTracer tracer = new AuthTracer(4);
+    auth.setTracer(tracer);
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+
+    auth.login(req, new MockCallback());
+    assertEquals(3, tracer.size());
+    double loggedIn = MockClock.now;
+    String key = "\"detail\":\"clientId-----scope\"}";
+    assertEquals("[{\"event\":\"login\",\"time\":" + AuthStats.number(loggedIn) + "," + key
+        + ",{\"event\":\"getToken\",\"time\":" + AuthStats.number(loggedIn) + "," + key
+        + ",{\"event\":\"doLogin\",\"time\":" + AuthStats.number(loggedIn) + "," + key + "]",
+        tracer.toJson());
+
+    MockClock.now += 100;
+    auth.finish("#access_token=foo&expires_in=10000", "");
+
+    // The buffer wrapped around, dropping the login event.
+    assertEquals(4, tracer.size());
+    String json = tracer.toJson();
+    assertTrue(json.startsWith("[{\"event\":\"getToken\""));
+    assertTrue(json.endsWith(",{\"event\":\"setToken\",\"time\":"
+        + AuthStats.number(loggedIn + 100) + "," + key + "]"));
+
+    tracer.clear();
+    assertEquals("[]", tracer.toJson());
+
+    auth.setTracer(null);
+    auth.login(req, new MockCallback());
+    assertEquals(0, tracer.size());
+
+    try {
+      new AuthTracer(0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /**
+   * Responses posted back with a state are given to the login which sent that
+   * state, and are ignored if no such login is pending.
+   */
+  @Test
+  public void testFinish_state() {
+    AuthRequest req1 = new AuthRequest("url", "clientId").withScopes("one");
+    AuthRequest req2 = new AuthRequest("url", "clientId").withScopes("two");
+    MockCallback callback1 = new MockCallback();
+    MockCallback callback2 = new MockCallback();
+    auth.login(req1, callback1);
+    auth.login(req2, callback2);
+
+    // An unknown state is ignored.
+    auth.finish("forged", "#access_token=evil&expires_in=10000", "");
+    assertNull(callback1.token);
+    assertNull(callback2.token);
+
+    auth.finish("state1", "#access_token=first&expires_in=10000", "?state=state1");
+    assertEquals("first", callback1.token.accessToken);
+    assertNull(callback2.token);
+    assertEquals("first", auth.getToken(req1).accessToken);
+
+    // The first login is no longer pending, so a repeated response is ignored.
+    callback1.token = null;
+    auth.finish("state1", "#access_token=again&expires_in=10000", "?state=state1");
+    assertNull(callback1.token);
+
+    auth.finish("state2", "#access_token=second&expires_in=10000", "?state=state2");
+    assertEquals("second", callback2.token.accessToken);
+    assertEquals("second", auth.getToken(req2).accessToken);
+  }
+
+  /**
+   * The parameters the OAuth window page decoded are taken as they are,
+   * without parsing the fragment again.
+   */
+  @Test
+  public void testFinish_params() {
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+    MockCallback callback = new MockCallback();
+    auth.login(req, callback);
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("access_token", "a/b+c");
+    params.put("expires_in", "3600");
+    params.put("state", "state1");
+    auth.finish("state1", params, "#unparsed", "");
+    assertEquals("a/b+c", callback.token.accessToken);
+    assertEquals(String.valueOf(MockClock.now + 3600 * 1000), callback.token.expires);
+
+    callback = new MockCallback();
+    auth.login(new AuthRequest("url", "clientId").withScopes("other"), callback);
+    params.clear();
+    params.put("error", "access_denied");
+    params.put("error_description", "The user said no");
+    auth.finish("state2", params, "#unparsed", "");
+    assertEquals("Error from provider: access_denied (The user said no)",
+        callback.failure.getMessage());
+  }
+
+  /** Older OAuth window pages without a state cannot deliver a response twice. */
+  @Test
+  public void testFinish_legacyDuplicate() {
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+    MockCallback callback = new MockCallback();
+    auth.login(req, callback);
+    auth.finish("#access_token=first&expires_in=10000", "");
+    assertEquals("first", callback.token.accessToken);
+
+    callback.token = null;
+    auth.finish("#access_token=again&expires_in=10000", "");
+    assertNull(callback.token);
+    assertEquals("first", auth.getToken(req).accessToken);
+  }
+
+  /**
+   * A login fails with a LoginAbortedException once its deadline passes, and
+   * the late response is then ignored.
+   */
+  @Test
+  public void testLogin_timeout() {
+    auth.setPopupWatchdog(false);
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope").withTimeout(1000);
+    MockCallback callback = new MockCallback();
+    auth.login(req, callback);
+
+    StubScheduler scheduler = (StubScheduler) auth.scheduler;
+    MockClock.now += 999;
+    scheduler.executeRepeatingCommands();
+    assertNull(callback.failure);
+
+    MockClock.now += 1;
+    scheduler.executeRepeatingCommands();
+    assertEquals(LoginAbortedException.Reason.TIMED_OUT,
+        ((LoginAbortedException) callback.failure).getReason());
+    assertTrue(auth.windowClosed);
+    assertTrue(scheduler.getRepeatingCommands().isEmpty());
+
+    auth.finish("#access_token=late&expires_in=10000", "");
+    assertNull(callback.token);
+  }
+
+  /**
+   * The watchdog fails the login once the popup window is closed, checking
+   * less often the longer the window stays open.
+   */
+  @Test
+  public void testLogin_windowClosed() {
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+    MockCallback callback = new MockCallback();
+    auth.login(req, callback);
+
+    StubScheduler scheduler = (StubScheduler) auth.scheduler;
+    for (int i = 0; i < 5; i++) {
+      scheduler.executeRepeatingCommands();
+    }
+    assertNull(callback.failure);
+    assertEquals(1, scheduler.getRepeatingCommands().size());
+
+    auth.windowOpen = false;
+    scheduler.executeRepeatingCommands();
+    assertEquals(LoginAbortedException.Reason.WINDOW_CLOSED,
+        ((LoginAbortedException) callback.failure).getReason());
+    assertTrue(scheduler.getRepeatingCommands().isEmpty());
+  }
+
+  /** Cancelling a login fails its callback and stops waiting for the provider. */
+  @Test
+  public void testLogin_cancel() {
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+    MockCallback callback = new MockCallback();
+    LoginHandle handle = auth.login(req, callback);
+    handle.cancel();
+    assertEquals(LoginAbortedException.Reason.CANCELLED,
+        ((LoginAbortedException) callback.failure).getReason());
+    assertTrue(auth.windowClosed);
+
+    // The watchdog stops, and the response is ignored.
+    StubScheduler scheduler = (StubScheduler) auth.scheduler;
+    scheduler.executeRepeatingCommands();
+    assertTrue(scheduler.getRepeatingCommands().isEmpty());
+    auth.finish("state1", "#access_token=late&expires_in=10000", "");
+    assertNull(callback.token);
+
+    // A stored token is not delivered once cancelled.
+    OAuthResponseParser.TokenInfo info = new OAuthResponseParser.TokenInfo();
+    info.accessToken = "stored";
+    info.expires = String.valueOf(MockClock.now + 60 * 60 * 1000);
+    auth.setToken(req, info);
+    MockCallback cachedCallback = new MockCallback();
+    auth.login(req, cachedCallback).cancel();
+    scheduler.executeScheduledCommands();
+    assertNull(cachedCallback.token);
+    assertTrue(cachedCallback.failure instanceof LoginAbortedException);
+  }
+
+  /**
+   * Cancelling a request in a batch only fails that request; the batch's
+   * login is cancelled once no request is waiting for it.
+   */
+  @Test
+  public void testLogin_cancelBatched() {
+    auth.setBatchWindow(50).setPopupWatchdog(false);
+    MockCallback callback1 = new MockCallback();
+    MockCallback callback2 = new MockCallback();
+    LoginHandle handle1 = auth.login(
+        new AuthRequest("url", "clientId").withScopes("a"), callback1);
+    LoginHandle handle2 = auth.login(
+        new AuthRequest("url", "clientId").withScopes("b"), callback2);
+
+    handle1.cancel();
+    assertTrue(callback1.failure instanceof LoginAbortedException);
+    assertNull(callback2.failure);
+
+    StubScheduler scheduler = (StubScheduler) auth.scheduler;
+    scheduler.executeRepeatingCommands();
+    assertEquals(1, auth.popupCount);
+    assertFalse(auth.windowClosed);
+
+    handle2.cancel();
+    assertTrue(callback2.failure instanceof LoginAbortedException);
+    assertTrue(auth.windowClosed);
+  }
+
+  /**
+   * A batch cancelled before it was sent only releases a popup it reserved
+   * itself, and leaves alone the popup of another login.
+   */
+  @Test
+  public void testLogin_cancelBatchedBeforeSend() {
+    auth.setPopupWatchdog(false);
+    MockCallback inFlight = new MockCallback();
+    auth.login(new AuthRequest("url", "other").withScopes("a"), inFlight);
+    assertEquals(1, auth.popupCount);
+
+    auth.setBatchWindow(50);
+    auth.login(new AuthRequest("url", "clientId").withScopes("a"), new MockCallback()).cancel();
+    ((StubScheduler) auth.scheduler).executeRepeatingCommands();
+    assertFalse(auth.windowClosed);
+    assertFalse(auth.windowReleased);
+    assertNull(inFlight.failure);
+
+    auth.reserveWindow = true;
+    auth.login(new AuthRequest("url", "clientId").withScopes("b"), new MockCallback()).cancel();
+    ((StubScheduler) auth.scheduler).executeRepeatingCommands();
+    assertTrue(auth.windowReleased);
+    assertEquals(1, auth.popupCount);
+  }
+
+  /**
+   * Prewarming reads stored tokens into memory, builds the authorization URLs
+   * and hints the providers' origins, so that the following logins do not.
+   */
+  @Test
+  public void testPrewarm() {
+    AuthRequest stored = new AuthRequest("https://example.com/auth", "clientId")
+        .withScopes("stored");
+    AuthRequest missing = new AuthRequest("https://example.org/auth", "clientId")
+        .withScopes("missing");
+    InMemoryTokenStore ts = (InMemoryTokenStore) auth.tokenStore;
+    ts.store.put("clientId-----stored",
+        "prewarmed-----" + (MockClock.now + 60 * 60 * 1000));
+
+    auth.prewarm(stored, missing);
+    assertEquals(0, ts.reads);
+    StubScheduler scheduler = (StubScheduler) auth.scheduler;
+    while (scheduler.executeRepeatingCommands()) {
+    }
+    assertEquals(2, ts.reads);
+    assertEquals("https://example.com/auth?client_id=clientId&response_type=token&scope=stored",
+        auth.preconnected.get(0));
+    assertEquals("https://example.org/auth?client_id=clientId&response_type=token&scope=missing",
+        auth.preconnected.get(1));
+
+    // The stored token is now served from memory.
+    MockCallback callback = new MockCallback();
+    auth.login(stored, callback);
+    scheduler.executeScheduledCommands();
+    assertEquals("prewarmed", callback.token.accessToken);
+    assertEquals(2, ts.reads);
+
+    // The URL is built once, until the request changes.
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+    MockUrlCodex codex = new MockUrlCodex();
+    String url = req.toUrl(codex);
+    assertSame(url, req.toUrl(codex));
+    assertEquals("url?client_id=clientId&response_type=token&scope=other",
+        req.withScopes("other").toUrl(codex));
+  }
+
+  /** Tokens kept in memory are read again once another window stores some. */
+  @Test
+  public void testStorageChanged() {
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+    AuthRequest alice = new AuthRequest("url", "clientId").withScopes("scope")
+        .withLoginHint("alice@example.com");
+    InMemoryTokenStore ts = (InMemoryTokenStore) auth.tokenStore;
+    ts.store.put("clientId-----scope", "first-----" + (MockClock.now + 60 * 60 * 1000));
+    ts.store.put("clientId-----scope-----alice@example.com",
+        "alice-----" + (MockClock.now + 60 * 60 * 1000));
+    assertEquals("first", auth.getToken(req).accessToken);
+    assertEquals("alice", auth.getToken(alice).accessToken);
+
+    // Another window changes the store, then an item unrelated to tokens.
+    ts.store.put("clientId-----scope", "second-----" + (MockClock.now + 60 * 60 * 1000));
+    auth.storageChanged("gwt-oauth2-skew");
+    assertEquals("first", auth.getToken(req).accessToken);
+    auth.storageChanged("gwt-oauth2");
+    assertEquals("second", auth.getToken(req).accessToken);
+
+    // Another window signs the account out.
+    assertEquals("alice", auth.getToken(alice).accessToken);
+    ts.store.remove("clientId-----scope-----alice@example.com");
+    assertEquals("alice", auth.getToken(alice).accessToken);
+    auth.storageChanged("gwt-oauth2-account:alice@example.com");
+    assertNull(auth.getToken(alice));
+
+    // Another window clears the whole storage.
+    ts.store.put("clientId-----scope", "third-----" + (MockClock.now + 60 * 60 * 1000));
+    auth.storageChanged(null);
+    assertEquals("third", auth.getToken(req).accessToken);
+  }
+
+  /** Tokens can be cleared for one request or one client, leaving the rest. */
+  @Test
+  public void testClearTokens() {
+    AuthRequest a = new AuthRequest("url", "clientA").withScopes("one");
+    AuthRequest a2 = new AuthRequest("url", "clientA").withScopes("two");
+    AuthRequest b = new AuthRequest("url", "clientB").withScopes("one");
+    InMemoryTokenStore ts = (InMemoryTokenStore) auth.tokenStore;
+    Map<String, String> stored = new HashMap<String, String>();
+    String expires = "-----" + (MockClock.now + 60 * 60 * 1000);
+    stored.put("clientA-----one", "a1" + expires);
+    stored.put("clientA-----two", "a2" + expires);
+    stored.put("clientB-----one", "b1" + expires);
+    ts.setAll(stored);
+    assertEquals("a1", auth.getToken(a).accessToken);
+
+    auth.clearToken(a);
+    assertNull(auth.getToken(a));
+    assertEquals("a2", auth.getToken(a2).accessToken);
+    assertEquals(2, ts.getAll().size());
+
+    auth.clearTokens("clientA");
+    assertNull(auth.getToken(a2));
+    assertEquals("b1", auth.getToken(b).accessToken);
+    assertEquals(1, ts.getAll().size());
+    assertEquals(3, ts.writes);
+  }
+
+  /**
+   * The tokens of each account are stored apart, so accounts are listed
+   * without reading tokens, and cleared without touching other tokens.
+   */
+  @Test
+  public void testAccounts() {
+    AuthRequest anonymous = new AuthRequest("url", "clientId").withScopes("scope");
+    AuthRequest alice = new AuthRequest("url", "clientId").withScopes("scope")
+        .withLoginHint("alice@example.com");
+    AuthRequest alice2 = new AuthRequest("url", "clientId").withScopes("other")
+        .withLoginHint("alice@example.com");
+    AuthRequest bob = new AuthRequest("url", "clientId").withScopes("scope")
+        .withLoginHint("bob@example.com");
+    InMemoryTokenStore ts = (InMemoryTokenStore) auth.tokenStore;
+    ts.set("clientId-----scope", "anonymous-----" + (MockClock.now + 60 * 60 * 1000));
+    ts.set("clientId-----scope-----alice@example.com",
+        "alice-----" + (MockClock.now + 60 * 60 * 1000));
+
+    // Keys without an account are unchanged.
+    assertEquals("clientId-----scope", anonymous.asString());
+    assertEquals("anonymous", auth.getToken(anonymous).accessToken);
+    assertEquals("alice", auth.getToken(alice).accessToken);
+    assertNull(auth.getToken(bob));
+    assertTrue(alice.toUrl(auth.urlCodex).endsWith("&login_hint=alice@example.com"));
+
+    int reads = ts.reads;
+    assertEquals(Collections.singleton("alice@example.com"), auth.getAccounts());
+    auth.setToken(bob, token("bob"));
+    auth.setToken(alice2, token("alice-2"));
+    assertEquals(new HashSet<String>(Arrays.asList("alice@example.com", "bob@example.com")),
+        auth.getAccounts());
+    assertEquals(reads, ts.reads);
+
+    int writes = ts.writes;
+    auth.clearAccount("alice@example.com");
+    assertEquals(writes + 1, ts.writes);
+    assertEquals(Collections.singleton("bob@example.com"), auth.getAccounts());
+    assertNull(auth.getToken(alice));
+    assertNull(auth.getToken(alice2));
+    assertEquals("bob", auth.getToken(bob).accessToken);
+    assertEquals("anonymous", auth.getToken(anonymous).accessToken);
+    // Only the cleared tokens were looked up again.
+    assertEquals(reads + 2, ts.reads);
+
+    auth.clearToken(bob);
+    assertTrue(auth.getAccounts().isEmpty());
+
+    // Accounts stored by another window are listed too.
+    ts.set("clientId-----scope-----carol", "carol-----" + (MockClock.now + 60 * 60 * 1000));
+    assertEquals(Collections.singleton("carol"), auth.getAccounts());
+  }
+
+  /** Usable tokens are returned synchronously, others need a login. */
+  @Test
+  public void testGetValidToken() {
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+    assertNull(auth.getValidToken(req));
+
+    OAuthResponseParser.TokenInfo info = new OAuthResponseParser.TokenInfo();
+    info.accessToken = "valid";
+    info.expires = String.valueOf(MockClock.now + 60 * 60 * 1000);
+    auth.setToken(req, info);
+    assertEquals("valid", auth.getValidToken(req).accessToken);
+    assertTrue(((StubScheduler) auth.scheduler).getScheduledCommands().isEmpty());
 
-    private static final TokenStore TOKEN_STORE = new InMemoryTokenStore();
+    MockClock.now += 55 * 60 * 1000;
+    assertNull(auth.getValidToken(req));
+  }
+
+  /** Stored tokens can be delivered on a microtask instead of a deferred command. */
+  @Test
+  public void testMicrotaskDelivery() {
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+    OAuthResponseParser.TokenInfo info = new OAuthResponseParser.TokenInfo();
+    info.accessToken = "valid";
+    info.expires = String.valueOf(MockClock.now + 60 * 60 * 1000);
+    auth.setToken(req, info);
+    StubScheduler scheduler = (StubScheduler) auth.scheduler;
+
+    auth.setMicrotaskDelivery(true);
+    MockCallback callback = new MockCallback();
+    auth.login(req, callback);
+    assertNull(callback.token);
+    assertTrue(scheduler.getScheduledCommands().isEmpty());
+    assertEquals(1, auth.microtasks.size());
+    auth.microtasks.get(0).execute();
+    assertEquals("valid", callback.token.accessToken);
+
+    auth.setMicrotaskDelivery(false);
+    callback = new MockCallback();
+    auth.login(req, callback);
+    assertEquals(1, auth.microtasks.size());
+    scheduler.executeScheduledCommands();
+    assertEquals("valid", callback.token.accessToken);
+  }
+
+  /**
+   * With stale-while-revalidate, an expiring token is used while a single
+   * silent renewal runs in the background, and the new token is used once it
+   * arrives.
+   */
+  @Test
+  public void testStaleWhileRevalidate() {
+    auth.setStaleWhileRevalidate(true);
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+    OAuthResponseParser.TokenInfo info = new OAuthResponseParser.TokenInfo();
+    info.accessToken = "stale";
+    info.expires = String.valueOf(MockClock.now + 5 * 60 * 1000);
+    auth.setToken(req, info);
+    StubScheduler scheduler = (StubScheduler) auth.scheduler;
+
+    MockCallback callback = new MockCallback();
+    auth.login(req, callback);
+    scheduler.executeScheduledCommands();
+    assertEquals("stale", callback.token.accessToken);
+    assertEquals("stale", auth.getValidToken(req).accessToken);
+    assertFalse(auth.loggedInViaPopup);
+    assertEquals(Arrays.asList("url?client_id=clientId&response_type=token&scope=scope"
+        + "&redirect_uri=popup.html&state=state1&prompt=none"), auth.silentUrls);
+
+    // The popup watchdog leaves background renewals alone.
+    auth.windowOpen = false;
+    scheduler.executeRepeatingCommands();
+
+    auth.finish("state1", "#access_token=fresh&expires_in=3600", "?state=state1");
+    assertEquals(Arrays.asList("state1"), auth.silentClosed);
+    assertFalse(auth.windowClosed);
+    callback = new MockCallback();
+    auth.login(req, callback);
+    scheduler.executeScheduledCommands();
+    assertEquals("fresh", callback.token.accessToken);
+    assertEquals(1, auth.silentUrls.size());
+  }
+
+  /**
+   * A failed background renewal is not retried, and the expiring token is used
+   * until it expires. Expired tokens still need a login.
+   */
+  @Test
+  public void testStaleWhileRevalidate_failed() {
+    auth.setStaleWhileRevalidate(true);
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+    OAuthResponseParser.TokenInfo info = new OAuthResponseParser.TokenInfo();
+    info.accessToken = "stale";
+    info.expires = String.valueOf(MockClock.now + 5 * 60 * 1000);
+    auth.setToken(req, info);
+
+    auth.getValidToken(req);
+    auth.finish("state1", "#error=login_required&state=state1", "");
+    assertEquals("stale", auth.getValidToken(req).accessToken);
+    MockCallback callback = new MockCallback();
+    auth.login(req, callback);
+    ((StubScheduler) auth.scheduler).executeScheduledCommands();
+    assertEquals("stale", callback.token.accessToken);
+    assertEquals(1, auth.silentUrls.size());
+    // The error does not hold up the login once the token expired.
+    assertNull(auth.backoff.check(req));
+
+    MockClock.now += 5 * 60 * 1000;
+    assertNull(auth.getValidToken(req));
+    auth.login(req, new MockCallback());
+    assertTrue(auth.loggedInViaPopup);
+    assertEquals(1, auth.silentUrls.size());
+  }
+
+  /**
+   * Revoked tokens are cleared right away, and sent to their client's
+   * revocation endpoint, once per token, batched where the endpoint allows.
+   */
+  @Test
+  public void testRevoke() {
+    auth.setRevocationUrl("a", "https://a/revoke");
+    auth.setRevocationUrl("b", "https://b/revoke", true);
+    AuthRequest a1 = new AuthRequest("url", "a").withScopes("1");
+    AuthRequest a2 = new AuthRequest("url", "a").withScopes("2");
+    AuthRequest b1 = new AuthRequest("url", "b").withScopes("1");
+    AuthRequest b2 = new AuthRequest("url", "b").withScopes("2");
+    AuthRequest b3 = new AuthRequest("url", "b").withScopes("3");
+    AuthRequest c = new AuthRequest("url", "c").withScopes("1");
+    auth.setToken(a1, token("a-1"));
+    auth.setToken(a2, token("a-2"));
+    // Batched renewals share a token between requests.
+    auth.setToken(b1, token("b-12"));
+    auth.setToken(b2, token("b-12"));
+    auth.setToken(b3, token("b-3"));
+    auth.setToken(c, token("c-1"));
+
+    auth.revoke(a1);
+    assertNull(auth.getToken(a1));
+    assertEquals(Arrays.asList("https://a/revoke token=a-1&client_id=a"), auth.revocations);
+
+    auth.revocations.clear();
+    auth.revokeAll();
+    assertTrue(auth.tokenStore.getAll().isEmpty());
+    assertNull(auth.getToken(b1));
+    // Client c has no revocation endpoint, its token is only cleared.
+    assertEquals(2, auth.revocations.size());
+    assertTrue(auth.revocations.contains("https://a/revoke token=a-2&client_id=a"));
+    assertTrue(auth.revocations.contains("https://b/revoke token=b-12&token=b-3&client_id=b")
+        || auth.revocations.contains("https://b/revoke token=b-3&token=b-12&client_id=b"));
+
+    // Nothing is sent for requests without a token.
+    auth.revoke(a1);
+    assertEquals(2, auth.revocations.size());
+  }
+
+  private static OAuthResponseParser.TokenInfo token(String accessToken) {
+    OAuthResponseParser.TokenInfo info = new OAuthResponseParser.TokenInfo();
+    info.accessToken = accessToken;
+    info.expires = String.valueOf(MockClock.now + 60 * 60 * 1000);
+    return info;
+  }
+
+  /**
+   * The skew of the provider's clock is estimated from the iat of its tokens,
+   * and corrects the expiry times it gives. The system clock changing during
+   * a login does not throw the estimate off, and does not move it either,
+   * since it is kept against the monotonic clock.
+   */
+  @Test
+  public void testClockSkew() {
+    double hour = 60 * 60 * 1000;
+    double skew = 4 * 60 * 1000;
+    MockClock.now = 1300000000000.0;
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("openid");
+
+    // The provider's clock is four minutes behind, and its token says when
+    // it expires by that clock.
+    double sent = MockClock.now;
+    auth.login(req, new MockCallback());
+    MockClock.now += 2000;
+    long iat = (long) ((sent + 1000 - skew) / 1000);
+    auth.finish("state1", "#access_token=a&state=state1&id_token="
+        + IdTokenClaimsTest.jwt("{\"iat\":" + iat + ",\"exp\":" + (iat + 3600) + "}"), "");
+    double offset = auth.getClockSkew("url").getOffset();
+    assertTrue(offset >= -skew - 2000 && offset <= -skew + 2000);
+    // Without the correction the token would look four minutes shorter.
+    assertTrue(auth.expiresIn(req) > hour - 5000);
+
+    // The system clock is put forward an hour while the next popup is open.
+    auth.clearToken(req);
+    sent = MockClock.now;
+    auth.login(req, new MockCallback());
+    MockClock.now += hour + 2000;
+    auth.clockJumps += hour;
+    iat = (long) ((sent + 1000 - skew) / 1000);
+    auth.finish("state2", "#access_token=b&expires_in=3600&state=state2&id_token="
+        + IdTokenClaimsTest.jwt("{\"iat\":" + iat + "}"), "");
+    offset = auth.getClockSkew("url").getOffset();
+    assertTrue(offset >= -skew - 2000 && offset <= -skew + 2000);
+    double expiresIn = auth.expiresIn(req);
+    assertTrue(expiresIn > hour - 5000 && expiresIn <= hour);
+  }
+
+  /**
+   * A response with an old {@code iat}, such as a replayed id_token, does not
+   * move the estimate, and expiries from other parsers are corrected too.
+   */
+  @Test
+  public void testClockSkew_staleIssuedAt() {
+    double hour = 60 * 60 * 1000;
+    double skew = 4 * 60 * 1000;
+    MockClock.now = 1300000000000.0;
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("openid");
+
+    double sent = MockClock.now;
+    auth.login(req, new MockCallback());
+    MockClock.now += 2000;
+    long iat = (long) ((sent + 1000 - skew) / 1000);
+    auth.finish("state1", "#access_token=a&state=state1&id_token="
+        + IdTokenClaimsTest.jwt("{\"iat\":" + iat + "}"), "");
+    double offset = auth.getClockSkew("url").getOffset();
+    assertTrue(offset >= -skew - 2000 && offset <= -skew + 2000);
+
+    // The next token was issued an hour before it was requested.
+    auth.clearToken(req);
+    sent = MockClock.now;
+    auth.login(req, new MockCallback());
+    MockClock.now += 2000;
+    iat = (long) ((sent - hour) / 1000);
+    auth.finish("state2", "#access_token=b&expires_in=3600&state=state2&id_token="
+        + IdTokenClaimsTest.jwt("{\"iat\":" + iat + "}"), "");
+    assertEquals(offset, auth.getClockSkew("url").getOffset(), 0);
+    double expiresIn = auth.expiresIn(req);
+    assertTrue(expiresIn > hour - 5000 && expiresIn <= hour);
+
+    // A parser of its own sets the expiry by the local clock.
+    auth.clearToken(req);
+    auth.login(req, new OAuthResponseParser() {
+      @Override
+      public TokenInfo parseResponse(String hash, String queryString) {
+        TokenInfo info = new TokenInfo();
+        info.accessToken = "c";
+        info.expires = String.valueOf(MockClock.now + hour);
+        return info;
+      }
+    }, new MockCallback());
+    auth.finish("state3", "", "");
+    expiresIn = auth.expiresIn(req);
+    assertTrue(expiresIn > hour - 5000 && expiresIn <= hour);
+  }
+
+  /**
+   * Every expiry check uses the provider's clock, so stored tokens neither
+   * expire early nor outlive their expiry when the system clock changes, and
+   * the estimate is saved for the next page.
+   */
+  @Test
+  public void testClockSkew_clockChangesAfterStore() {
+    double hour = 60 * 60 * 1000;
+    double skew = 4 * 60 * 1000;
+    MockClock.now = 1300000000000.0;
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("openid");
+    AuthRequest opaque = new AuthRequest("url", "clientId").withScopes("scope");
+    final List<String> events = new ArrayList<String>();
+    auth.addTokenHandler(new TokenEvent.Handler() {
+      @Override
+      public void onTokenEvent(TokenEvent event) {
+        events.add(event.getKind() + " " + event.getToken().accessToken);
+      }
+    });
+
+    // The provider's clock is four minutes behind, and its token expires in
+    // an hour by that clock.
+    double sent = MockClock.now;
+    auth.login(req, new MockCallback());
+    MockClock.now += 2000;
+    long iat = (long) ((sent + 1000 - skew) / 1000);
+    auth.finish("state1", "#access_token=a&state=state1&id_token="
+        + IdTokenClaimsTest.jwt("{\"iat\":" + iat + ",\"exp\":" + (iat + 3600) + "}"), "");
+    auth.login(opaque, new MockCallback());
+    auth.finish("state2", "#access_token=b&expires_in=3600&state=state2", "");
+    assertEquals(Arrays.asList("ACQUIRED a", "ACQUIRED b"), events);
+    events.clear();
+
+    // Another page reading the stored tokens starts from the saved estimate.
+    MockAuth next = new MockAuth(auth.tokenStore);
+    next.savedSkews = auth.savedSkews;
+    double expiresIn = next.expiresIn(req);
+    assertTrue(expiresIn > hour - 5000 && expiresIn <= hour);
+
+    // The system clock is put forward two hours after the tokens were stored.
+    MockClock.now += 2 * hour;
+    auth.clockJumps += 2 * hour;
+    StubScheduler scheduler = (StubScheduler) auth.scheduler;
+    scheduler.executeRepeatingCommands();
+    assertEquals(Collections.emptyList(), events);
+    assertEquals("a", auth.getValidToken(req).accessToken);
+    assertEquals("b", auth.getValidToken(opaque).accessToken);
+    expiresIn = auth.expiresIn(opaque);
+    assertTrue(expiresIn > hour - 5000 && expiresIn <= hour);
+
+    // It is put back three hours, then an hour passes: the tokens expire on
+    // time.
+    MockClock.now -= 3 * hour;
+    auth.clockJumps -= 3 * hour;
+    MockClock.now += hour + 1000;
+    scheduler.executeRepeatingCommands();
+    Collections.sort(events);
+    assertEquals(Arrays.asList("EXPIRED a", "EXPIRED b", "EXPIRING a", "EXPIRING b"), events);
+    assertNull(auth.getValidToken(req));
+    assertNull(auth.getValidToken(opaque));
+  }
+
+  /** Token events are fired by a single timer, without polling the store. */
+  @Test
+  public void testTokenEvents() {
+    final List<String> events = new ArrayList<String>();
+    HandlerRegistration registration = auth.addTokenHandler(new TokenEvent.Handler() {
+      @Override
+      public void onTokenEvent(TokenEvent event) {
+        events.add(event.getKind() + " " + event.getClientId()
+            + (event.getToken() == null ? "" : " " + event.getToken().accessToken));
+      }
+    });
+    StubScheduler scheduler = (StubScheduler) auth.scheduler;
+    InMemoryTokenStore ts = (InMemoryTokenStore) auth.tokenStore;
+    assertTrue(scheduler.getRepeatingCommands().isEmpty());
+
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+    OAuthResponseParser.TokenInfo info = new OAuthResponseParser.TokenInfo();
+    info.accessToken = "first";
+    info.expires = String.valueOf(MockClock.now + 60 * 60 * 1000);
+    auth.setToken(req, info);
+    // Another token due later does not add a timer.
+    OAuthResponseParser.TokenInfo later = new OAuthResponseParser.TokenInfo();
+    later.accessToken = "later";
+    later.expires = String.valueOf(MockClock.now + 2 * 60 * 60 * 1000);
+    auth.setToken(new AuthRequest("url", "other").withScopes("scope"), later);
+    assertEquals(1, scheduler.getRepeatingCommands().size());
+    int reads = ts.reads;
+
+    MockClock.now += 50 * 60 * 1000;
+    scheduler.executeRepeatingCommands();
+    MockClock.now += 10 * 60 * 1000;
+    scheduler.executeRepeatingCommands();
+    assertEquals(reads, ts.reads);
+
+    info = new OAuthResponseParser.TokenInfo();
+    info.accessToken = "second";
+    info.expires = String.valueOf(MockClock.now + 60 * 60 * 1000);
+    auth.setToken(req, info);
+    auth.clearToken(req);
+    auth.clearTokens("other");
+    auth.clearAllTokens();
+    assertEquals(Arrays.asList("ACQUIRED clientId first", "ACQUIRED other later",
+        "EXPIRING clientId first", "EXPIRED clientId first", "REFRESHED clientId second",
+        "CLEARED clientId", "CLEARED other", "CLEARED null"), events);
+
+    // Without handlers, the timer stops.
+    auth.setToken(req, info);
+    assertEquals(1, scheduler.getRepeatingCommands().size());
+    registration.removeHandler();
+    MockClock.now += 60 * 60 * 1000;
+    scheduler.executeRepeatingCommands();
+    assertTrue(scheduler.getRepeatingCommands().isEmpty());
+    assertEquals(9, events.size());
+  }
+
+  /**
+   * Of two windows sharing the store, only one renews a token, and the other
+   * receives the token it obtained.
+   */
+  @Test
+  public void testLeases_oneWindowRenews() {
+    MockAuth other = new MockAuth(auth.tokenStore);
+    MockCoordinator.share(auth, other);
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+
+    MockCallback first = new MockCallback();
+    auth.login(req, first);
+    MockCallback second = new MockCallback();
+    other.login(req, second);
+    assertEquals(1, auth.popupCount);
+    assertEquals(0, other.popupCount);
+
+    auth.finish("state1", "#access_token=shared&expires_in=10000", "?state=state1");
+    assertEquals("shared", first.token.accessToken);
+    assertEquals("shared", second.token.accessToken);
+
+    // A failed renewal fails the waiting window too, without another popup.
+    OAuthResponseParser.TokenInfo expired = new OAuthResponseParser.TokenInfo();
+    expired.accessToken = "expired";
+    expired.expires = String.valueOf(MockClock.now);
+    auth.setToken(req, expired);
+    other.forgetToken(req.asString());
+    first = new MockCallback();
+    auth.login(req, first);
+    second = new MockCallback();
+    other.login(req, second);
+    auth.finish("state2", "#error=access_denied", "?state=state2");
+    assertNotNull(first.failure);
+    assertEquals("Renewal in another window failed: Error from provider: access_denied",
+        second.failure.getMessage());
+    assertEquals(0, other.popupCount);
+  }
+
+  /**
+   * When the window holding the lease goes away, its lease expires and a
+   * waiting window takes the renewal over.
+   */
+  @Test
+  public void testLeases_expiredLease() {
+    MockAuth other = new MockAuth(auth.tokenStore);
+    MockCoordinator.share(auth, other);
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+
+    auth.login(req, new MockCallback());
+    MockCallback callback = new MockCallback();
+    other.login(req, callback);
+    StubScheduler scheduler = (StubScheduler) other.scheduler;
+
+    // The lease is still valid.
+    MockClock.now += RenewalLeases.LEASE_TTL - 1;
+    scheduler.executeRepeatingCommands();
+    assertEquals(0, other.popupCount);
+
+    // The first window never extended its lease, which now expires.
+    MockClock.now += 1;
+    scheduler.executeRepeatingCommands();
+    assertEquals(1, other.popupCount);
+    other.finish("state1", "#access_token=taken&expires_in=10000", "?state=state1");
+    assertEquals("taken", callback.token.accessToken);
+    assertNull(((MockCoordinator) other.leases.coordinator).leases.get(req.asString()));
+  }
+
+  /**
+   * A coordinator which obtains leases asynchronously, as with Web Locks,
+   * lets the waiting login take the renewal over once the lease is granted.
+   */
+  @Test
+  public void testLeases_grantedLater() {
+    final Set<String> held = new HashSet<String>();
+    final List<String> released = new ArrayList<String>();
+    auth.leases.coordinator = new RenewalLeases.Coordinator() {
+      @Override
+      public boolean acquire(String key, double now, double until) {
+        return held.contains(key);
+      }
+
+      @Override
+      public void release(String key, String error) {
+        held.remove(key);
+        released.add(key);
+      }
+    };
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+    String key = req.asString();
+
+    // Nothing waits for a lease granted to no login, so it is given back.
+    held.add(key);
+    assertFalse(auth.leases.granted(key));
+    held.remove(key);
+
+    MockCallback callback = new MockCallback();
+    auth.login(req, callback);
+    assertEquals(0, auth.popupCount);
+    held.add(key);
+    assertTrue(auth.leases.granted(key));
+    assertEquals(1, auth.popupCount);
+
+    auth.finish("state1", "#access_token=granted&expires_in=10000", "?state=state1");
+    assertEquals("granted", callback.token.accessToken);
+    assertEquals(Collections.singletonList(key), released);
+  }
+
+  /**
+   * After an error from the provider, logins for the same request fail fast
+   * with the same typed error, for a delay which doubles with each error.
+   */
+  @Test
+  public void testErrorBackoff() {
+    AuthRequest req = new AuthRequest("url", "clientId").withScopes("scope");
+    StubScheduler scheduler = (StubScheduler) auth.scheduler;
+    MockCallback callback = new MockCallback();
+    auth.login(req, callback);
+    auth.finish("state1", "#error=temporarily_unavailable&error_description=Busy",
+        "?state=state1");
+    ProviderErrorException error = (ProviderErrorException) callback.failure;
+    assertEquals("temporarily_unavailable", error.getError());
+    assertEquals("Busy", error.getErrorDescription());
+    assertNull(error.getErrorUri());
+    assertEquals("Error from provider: temporarily_unavailable (Busy)", error.getMessage());
+
+    // Within the first second, the error is repeated without a popup.
+    MockClock.now += 999;
+    callback = new MockCallback();
+    auth.login(req, callback);
+    scheduler.executeScheduledCommands();
+    assertSame(error, callback.failure);
+    assertEquals(1, auth.popupCount);
+
+    // Other requests are not affected.
+    auth.login(new AuthRequest("url", "clientId").withScopes("other"), new MockCallback());
+    assertEquals(2, auth.popupCount);
+
+    // After it, the provider is asked again, and a second error backs off for
+    // two seconds.
+    MockClock.now += 1;
+    auth.login(req, new MockCallback());
+    assertEquals(3, auth.popupCount);
+    auth.finish("state3", "#error=temporarily_unavailable", "?state=state3");
+    MockClock.now += 1999;
+    auth.login(req, new MockCallback());
+    assertEquals(3, auth.popupCount);
+
+    // A success forgets the errors.
+    MockClock.now += 1;
+    auth.login(req, new MockCallback());
+    auth.finish("state4", "#access_token=ok&expires_in=10000", "?state=state4");
+    auth.clearToken(req);
+    auth.login(req, new MockCallback());
+    auth.finish("state5", "#error=access_denied", "?state=state5");
+    MockClock.now += 1000;
+    auth.login(req, new MockCallback());
+    assertEquals(6, auth.popupCount);
+  }
+
+  /** Authorization attempts per provider can be limited. */
+  @Test
+  public void testRateLimit() {
+    auth.setRateLimit(2, 1000);
+    StubScheduler scheduler = (StubScheduler) auth.scheduler;
+    auth.login(new AuthRequest("url", "clientId").withScopes("a"), new MockCallback());
+    auth.login(new AuthRequest("url", "clientId").withScopes("b"), new MockCallback());
+    MockCallback callback = new MockCallback();
+    auth.login(new AuthRequest("url", "clientId").withScopes("c"), callback);
+    auth.login(new AuthRequest("other", "clientId").withScopes("c"), new MockCallback());
+    scheduler.executeScheduledCommands();
+    assertEquals(LoginAbortedException.Reason.RATE_LIMITED,
+        ((LoginAbortedException) callback.failure).getReason());
+    assertEquals(3, auth.popupCount);
+
+    MockClock.now += 1000;
+    auth.login(new AuthRequest("url", "clientId").withScopes("c"), new MockCallback());
+    assertEquals(4, auth.popupCount);
+  }
+
+  static class MockAuth extends Auth {
+    boolean loggedInViaPopup;
+    String lastUrl;
+    int popupCount;
+    int stateCount;
+    boolean windowOpen = true;
+    boolean windowClosed;
+    List<String> preconnected = new ArrayList<String>();
+    List<ScheduledCommand> microtasks = new ArrayList<ScheduledCommand>();
+    List<String> silentUrls = new ArrayList<String>();
+    List<String> silentClosed = new ArrayList<String>();
+    List<String> revocations = new ArrayList<String>();
+    double clockJumps;
+    String savedSkews;
+    boolean reserveWindow;
+    boolean windowReleased;
 
     MockAuth() {
-      super(TOKEN_STORE, new MockClock(), new MockUrlCodex(), new StubScheduler(), "popup.html");
+      this(new InMemoryTokenStore());
+    }
+
+    MockAuth(TokenStore tokenStore) {
+      super(tokenStore, new MockClock(), new MockUrlCodex(), new StubScheduler(), "popup.html");
     }
 
     @Override
     void doLogin(String authUrl, Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
       loggedInViaPopup = true;
       lastUrl = authUrl;
+      popupCount++;
+    }
+
+    @Override
+    void doSilentLogin(String state, String authUrl,
+        Callback<OAuthResponseParser.TokenInfo, Throwable> callback) {
+      silentUrls.add(authUrl);
+    }
+
+    @Override
+    void closeSilentLogin(String state) {
+      silentClosed.add(state);
+    }
+
+    @Override
+    void sendRevocation(String url, String body) {
+      revocations.add(url + " " + body);
+    }
+
+    @Override
+    double ticks() {
+      return MockClock.now - clockJumps;
+    }
+
+    @Override
+    String loadClockSkews() {
+      return savedSkews;
+    }
+
+    @Override
+    void saveClockSkews(String skews) {
+      savedSkews = skews;
+    }
+
+    @Override
+    boolean isWindowOpen() {
+      return windowOpen;
+    }
+
+    @Override
+    void closeWindow() {
+      windowClosed = true;
+    }
+
+    @Override
+    boolean beginBatch() {
+      return reserveWindow;
+    }
+
+    @Override
+    void releaseWindow() {
+      windowReleased = true;
+    }
+
+    @Override
+    void preconnect(String url) {
+      preconnected.add(url);
+    }
+
+    @Override
+    String newState() {
+      return "state" + (++stateCount);
+    }
+
+    @Override
+    void scheduleMicrotask(ScheduledCommand command) {
+      microtasks.add(command);
+    }
+  }
+
+  /** Shares leases between the {@link MockAuth}s of one test, as windows would. */
+  static class MockCoordinator implements RenewalLeases.Coordinator {
+    final Map<String, MockCoordinator> owners;
+    final Map<String, Double> leases;
+    final List<MockCoordinator> windows;
+    final RenewalLeases local;
+
+    private MockCoordinator(RenewalLeases local, Map<String, MockCoordinator> owners,
+        Map<String, Double> leases, List<MockCoordinator> windows) {
+      this.local = local;
+      this.owners = owners;
+      this.leases = leases;
+      this.windows = windows;
+    }
+
+    static void share(Auth... auths) {
+      Map<String, MockCoordinator> owners = new HashMap<String, MockCoordinator>();
+      Map<String, Double> leases = new HashMap<String, Double>();
+      List<MockCoordinator> windows = new ArrayList<MockCoordinator>();
+      for (Auth auth : auths) {
+        MockCoordinator coordinator = new MockCoordinator(auth.leases, owners, leases, windows);
+        windows.add(coordinator);
+        auth.leases.coordinator = coordinator;
+      }
+    }
+
+    @Override
+    public boolean acquire(String key, double now, double until) {
+      Double expires = leases.get(key);
+      if (expires != null && owners.get(key) != this && expires > now) {
+        return false;
+      }
+      owners.put(key, this);
+      leases.put(key, until);
+      return true;
+    }
+
+    @Override
+    public void release(String key, String error) {
+      if (owners.get(key) == this) {
+        owners.remove(key);
+        leases.remove(key);
+      }
+      for (MockCoordinator window : windows) {
+        if (window != this) {
+          window.local.released(key, error);
+        }
+      }
     }
   }
 
@@ -320,16 +1511,20 @@ public class AuthTest {
     }
   }
 
-  private static class InMemoryTokenStore implements TokenStore {
+  static class InMemoryTokenStore implements TokenStore {
     Map<String, String> store = new HashMap<String, String>();
+    int reads;
+    int writes;
 
     @Override
     public void set(String key, String value) {
+      writes++;
       store.put(key, value);
     }
 
     @Override
     public String get(String key) {
+      reads++;
       return store.get(key);
     }
 
@@ -337,11 +1532,83 @@ public class AuthTest {
     public void clear() {
       store.clear();
     }
+
+    @Override
+    public Map<String, String> getAll() {
+      reads++;
+      return new HashMap<String, String>(store);
+    }
+
+    @Override
+    public void setAll(Map<String, String> values) {
+      writes++;
+      store.putAll(values);
+    }
+
+    @Override
+    public int removeIf(Filter filter) {
+      int removed = 0;
+      Iterator<Map.Entry<String, String>> entries = store.entrySet().iterator();
+      while (entries.hasNext()) {
+        Map.Entry<String, String> entry = entries.next();
+        if (filter.matches(entry.getKey(), entry.getValue())) {
+          entries.remove();
+          removed++;
+        }
+      }
+      if (removed > 0) {
+        writes++;
+      }
+      return removed;
+    }
+
+    @Override
+    public int removeAll(Collection<String> keys) {
+      int removed = 0;
+      for (String key : keys) {
+        if (store.remove(key) != null) {
+          removed++;
+        }
+      }
+      if (removed > 0) {
+        writes++;
+      }
+      return removed;
+    }
+
+    /** Lists the accounts by their keys, as the real store does by its items. */
+    @Override
+    public Set<String> getAccounts() {
+      Set<String> accounts = new HashSet<String>();
+      for (String key : store.keySet()) {
+        if (AuthRequest.accountOf(key) != null) {
+          accounts.add(AuthRequest.accountOf(key));
+        }
+      }
+      return accounts;
+    }
+
+    @Override
+    public Collection<String> removeAccount(String account) {
+      List<String> removed = new ArrayList<String>();
+      Iterator<String> keys = store.keySet().iterator();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        if (account.equals(AuthRequest.accountOf(key))) {
+          keys.remove();
+          removed.add(key);
+        }
+      }
+      if (!removed.isEmpty()) {
+        writes++;
+      }
+      return removed;
+    }
   }
 
-  private static class MockCallback implements Callback<OAuthResponseParser.TokenInfo, Throwable> {
-    private OAuthResponseParser.TokenInfo token;
-    private Throwable failure;
+  static class MockCallback implements Callback<OAuthResponseParser.TokenInfo, Throwable> {
+    OAuthResponseParser.TokenInfo token;
+    Throwable failure;
 
     @Override
     public void onSuccess(OAuthResponseParser.TokenInfo token) {
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+import com.google.api.gwt.oauth2.client.AuthTest.MockAuth;
+import com.google.api.gwt.oauth2.client.AuthTest.MockClock;
+import com.google.gwt.http.client.Header;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.Response;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link AuthorizedRequests}.
+ */
+public class AuthorizedRequestsTest {
+
+  private MockAuth auth;
+  private AuthRequest req;
+  private MockTransport transport;
+  private AuthorizedRequests requests;
+
+  @Before
+  public void setUp() throws Exception {
+    auth = new MockAuth();
+    req = new AuthRequest("url", "clientId").withScopes("scope");
+    transport = new MockTransport();
+    requests = new AuthorizedRequests(auth, req, transport);
+  }
+
+  /** With a valid token stored, requests are sent right away with it. */
+  @Test
+  public void testSend_validToken() {
+    storeToken("stored", 60 * 60 * 1000);
+    MockRequestCallback callback = new MockRequestCallback();
+    requests.send(new RequestBuilder(RequestBuilder.GET, "/api"), callback);
+
+    assertEquals(1, transport.sent.size());
+    assertEquals("Bearer stored", transport.sent.get(0).getHeader("Authorization"));
+    assertEquals(0, auth.popupCount);
+
+    transport.respond(0, 200);
+    assertEquals(200, callback.response.getStatusCode());
+  }
+
+  /**
+   * Without a valid token, requests are queued behind a single login and all
+   * sent once it succeeds.
+   */
+  @Test
+  public void testSend_queuedDuringRenewal() {
+    MockRequestCallback callback1 = new MockRequestCallback();
+    MockRequestCallback callback2 = new MockRequestCallback();
+    requests.send(new RequestBuilder(RequestBuilder.GET, "/one"), callback1);
+    requests.send(new RequestBuilder(RequestBuilder.GET, "/two"), callback2);
+
+    assertEquals(1, auth.popupCount);
+    assertEquals(2, requests.getQueuedCount());
+    assertTrue(transport.sent.isEmpty());
+
+    auth.finish("#access_token=fresh&expires_in=10000", "");
+    assertEquals(0, requests.getQueuedCount());
+    assertEquals(2, transport.sent.size());
+    assertEquals("Bearer fresh", transport.sent.get(0).getHeader("Authorization"));
+    assertEquals("Bearer fresh", transport.sent.get(1).getHeader("Authorization"));
+  }
+
+  /** A token which was just obtained is used even if it expires soon. */
+  @Test
+  public void testSend_shortLivedToken() {
+    MockRequestCallback callback = new MockRequestCallback();
+    requests.send(new RequestBuilder(RequestBuilder.GET, "/api"), callback);
+    auth.finish("#access_token=short&expires_in=60", "");
+
+    assertEquals(1, auth.popupCount);
+    assertEquals("Bearer short", transport.sent.get(0).getHeader("Authorization"));
+  }
+
+  /** If the login fails, every queued request fails with its error. */
+  @Test
+  public void testSend_renewalFails() {
+    MockRequestCallback callback1 = new MockRequestCallback();
+    MockRequestCallback callback2 = new MockRequestCallback();
+    requests.send(new RequestBuilder(RequestBuilder.GET, "/one"), callback1);
+    requests.send(new RequestBuilder(RequestBuilder.GET, "/two"), callback2);
+
+    auth.finish("#error=access_denied", "");
+    assertEquals("Error from provider: access_denied", callback1.error.getMessage());
+    assertEquals("Error from provider: access_denied", callback2.error.getMessage());
+    assertEquals(0, requests.getQueuedCount());
+    assertTrue(transport.sent.isEmpty());
+  }
+
+  /**
+   * A request answered with 401 is retried once with a new token; a second
+   * 401 is passed to the callback.
+   */
+  @Test
+  public void testSend_retryOnUnauthorized() {
+    storeToken("revoked", 60 * 60 * 1000);
+    MockRequestCallback callback = new MockRequestCallback();
+    requests.send(new RequestBuilder(RequestBuilder.GET, "/api"), callback);
+    transport.respond(0, 401);
+
+    // The rejected token was discarded and a new one requested.
+    assertNull(callback.response);
+    assertEquals(1, auth.popupCount);
+    assertNull(auth.getToken(req));
+
+    auth.finish("#access_token=fresh&expires_in=10000", "");
+    assertEquals(2, transport.sent.size());
+    assertEquals("Bearer fresh", transport.sent.get(1).getHeader("Authorization"));
+
+    transport.respond(1, 401);
+    assertEquals(401, callback.response.getStatusCode());
+    assertEquals(1, auth.popupCount);
+  }
+
+  /** No more than the maximum number of requests are in flight at once. */
+  @Test
+  public void testSend_maxConcurrentRequests() {
+    storeToken("stored", 60 * 60 * 1000);
+    requests.setMaxConcurrentRequests(2);
+    for (int i = 0; i < 5; i++) {
+      requests.send(new RequestBuilder(RequestBuilder.GET, "/api/" + i),
+          new MockRequestCallback());
+    }
+    assertEquals(2, transport.sent.size());
+    assertEquals(3, requests.getQueuedCount());
+
+    transport.respond(0, 200);
+    assertEquals(3, transport.sent.size());
+    assertEquals("/api/2", transport.sent.get(2).getUrl());
+    transport.respond(1, 200);
+    transport.respond(2, 200);
+    assertEquals(5, transport.sent.size());
+    assertEquals(0, requests.getQueuedCount());
+  }
+
+  private void storeToken(String accessToken, double expiresIn) {
+    OAuthResponseParser.TokenInfo info = new OAuthResponseParser.TokenInfo();
+    info.accessToken = accessToken;
+    info.expires = String.valueOf(MockClock.now + expiresIn);
+    auth.setToken(req, info);
+  }
+
+  private static class MockTransport implements AuthorizedRequests.Transport {
+    final List<RequestBuilder> sent = new ArrayList<RequestBuilder>();
+    final List<RequestCallback> callbacks = new ArrayList<RequestCallback>();
+
+    @Override
+    public void send(RequestBuilder builder, RequestCallback callback) {
+      // Record a copy, since the builder is reused when the request is retried.
+      RequestBuilder copy = new RequestBuilder(RequestBuilder.GET, builder.getUrl());
+      copy.setHeader("Authorization", builder.getHeader("Authorization"));
+      sent.add(copy);
+      callbacks.add(callback);
+    }
+
+    void respond(int index, int statusCode) {
+      callbacks.get(index).onResponseReceived(null, new MockResponse(statusCode));
+    }
+  }
+
+  private static class MockResponse extends Response {
+    private final int statusCode;
+
+    MockResponse(int statusCode) {
+      this.statusCode = statusCode;
+    }
+
+    @Override
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    @Override
+    public String getHeader(String header) {
+      return null;
+    }
+
+    @Override
+    public Header[] getHeaders() {
+      return new Header[0];
+    }
+
+    @Override
+    public String getHeadersAsString() {
+      return "";
+    }
+
+    @Override
+    public String getStatusText() {
+      return "";
+    }
+
+    @Override
+    public String getText() {
+      return "";
+    }
+  }
+
+  private static class MockRequestCallback implements RequestCallback {
+    Response response;
+    Throwable error;
+
+    @Override
+    public void onResponseReceived(Request request, Response response) {
+      this.response = response;
+    }
+
+    @Override
+    public void onError(Request request, Throwable exception) {
+      this.error = exception;
+    }
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.google.api.gwt.oauth2.client;
+
+import com.google.api.gwt.oauth2.client.AuthTest.MockAuth;
+import com.google.api.gwt.oauth2.client.AuthTest.MockCallback;
+import com.google.api.gwt.oauth2.client.AuthTest.MockClock;
+import com.google.gwt.core.client.testing.StubScheduler;
+import com.google.gwt.http.client.Header;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link DeviceAuthorization}, against a stub of the provider's
+ * endpoints.
+ */
+public class DeviceAuthorizationTest {
+
+  private static final String CODE = "{\"device_code\":\"dc\",\"user_code\":\"ABCD-EFGH\","
+      + "\"verification_uri\":\"https://p/device\",\"expires_in\":600,\"interval\":5}";
+
+  private MockAuth auth;
+  private StubScheduler scheduler;
+  private AuthRequest req;
+  private StubEndpoint endpoint;
+  private DeviceAuthorization device;
+
+  @Before
+  public void setUp() {
+    MockClock.now = 5000;
+    auth = new MockAuth();
+    scheduler = (StubScheduler) auth.scheduler;
+    req = new AuthRequest("url", "clientId").withScopes("scope");
+    endpoint = new StubEndpoint();
+    device = new DeviceAuthorization(auth, "https://p/device/code", "https://p/token", endpoint);
+  }
+
+  /** Concurrent logins share one code and one poll loop, which honors slow_down. */
+  @Test
+  public void testLogin_sharedPollLoop() {
+    MockHandler handler1 = new MockHandler();
+    MockCallback callback1 = new MockCallback();
+    device.login(req, handler1, callback1);
+    assertEquals(1, endpoint.urls.size());
+    assertEquals("https://p/device/code", endpoint.urls.get(0));
+    assertEquals("client_id=clientId&scope=scope", endpoint.bodies.get(0));
+
+    endpoint.respond(200, CODE);
+    assertEquals("ABCD-EFGH", handler1.code.getUserCode());
+    assertEquals("https://p/device", handler1.code.getVerificationUri());
+    assertNull(handler1.code.getVerificationUriComplete());
+    assertEquals(5000 + 600000, handler1.code.getExpires(), 0);
+    assertEquals(5000, device.getInterval(req));
+
+    // A second login joins the first one, and gets its code right away.
+    MockHandler handler2 = new MockHandler();
+    MockCallback callback2 = new MockCallback();
+    device.login(req, handler2, callback2);
+    assertSame(handler1.code, handler2.code);
+    assertEquals(1, endpoint.urls.size());
+
+    poll();
+    assertEquals("https://p/token", endpoint.urls.get(1));
+    assertEquals("grant_type=" + DeviceAuthorization.GRANT_TYPE
+        + "&device_code=dc&client_id=clientId", endpoint.bodies.get(1));
+    endpoint.respond(400, "{\"error\":\"authorization_pending\"}");
+    assertEquals(5000, device.getInterval(req));
+
+    poll();
+    endpoint.respond(400, "{\"error\":\"slow_down\"}");
+    assertEquals(10000, device.getInterval(req));
+
+    poll();
+    endpoint.respond(200, "{\"access_token\":\"granted\",\"expires_in\":3600}");
+    assertEquals(4, endpoint.urls.size());
+    assertEquals("granted", callback1.token.accessToken);
+    assertSame(callback1.token, callback2.token);
+    assertEquals("granted", auth.getToken(req).accessToken);
+    assertEquals(MockClock.now + 3600000, Double.valueOf(callback1.token.expires), 0);
+    assertEquals(0, device.getInterval(req));
+
+    // The stored token is used without asking the provider again.
+    MockCallback callback3 = new MockCallback();
+    device.login(req, new MockHandler(), callback3);
+    scheduler.executeCommands();
+    assertEquals("granted", callback3.token.accessToken);
+    assertEquals(4, endpoint.urls.size());
+  }
+
+  /** Polling stops once the code would expire before the next answer. */
+  @Test
+  public void testLogin_expired() {
+    MockCallback callback = new MockCallback();
+    device.login(req, new MockHandler(), callback);
+    endpoint.respond(200, CODE.replace("600", "12"));
+
+    MockClock.now += 5000;
+    poll();
+    endpoint.respond(400, "{\"error\":\"authorization_pending\"}");
+    MockClock.now += 5000;
+    poll();
+    endpoint.respond(400, "{\"error\":\"authorization_pending\"}");
+
+    assertEquals(LoginAbortedException.Reason.TIMED_OUT,
+        ((LoginAbortedException) callback.failure).getReason());
+    assertTrue(scheduler.getRepeatingCommands().isEmpty());
+    assertEquals(3, endpoint.urls.size());
+  }
+
+  @Test
+  public void testLogin_denied() {
+    MockCallback callback = new MockCallback();
+    device.login(req, new MockHandler(), callback);
+    endpoint.respond(200, CODE);
+    poll();
+    endpoint.respond(400, "{\"error\":\"access_denied\",\"error_description\":\"No\"}");
+
+    ProviderErrorException failure = (ProviderErrorException) callback.failure;
+    assertEquals("access_denied", failure.getError());
+    assertEquals("No", failure.getErrorDescription());
+    assertTrue(scheduler.getRepeatingCommands().isEmpty());
+    assertNull(auth.getToken(req));
+  }
+
+  /** Failed polls are retried, waiting longer after each one. */
+  @Test
+  public void testLogin_retry() {
+    MockCallback callback = new MockCallback();
+    device.login(req, new MockHandler(), callback);
+    endpoint.respond(200, CODE);
+
+    poll();
+    endpoint.fail();
+    assertEquals(1, scheduler.getRepeatingCommands().size());
+    poll();
+    endpoint.respond(503, "");
+    assertEquals(1, scheduler.getRepeatingCommands().size());
+    poll();
+    endpoint.respond(200, "{\"access_token\":\"granted\"}");
+    assertEquals("granted", callback.token.accessToken);
+    assertNull(callback.failure);
+  }
+
+  /** Polling stops once nobody is waiting for the token any more. */
+  @Test
+  public void testCancel() {
+    MockCallback callback1 = new MockCallback();
+    MockCallback callback2 = new MockCallback();
+    LoginHandle handle1 = device.login(req, new MockHandler(), callback1);
+    LoginHandle handle2 = device.login(req, new MockHandler(), callback2);
+    endpoint.respond(200, CODE);
+
+    handle1.cancel();
+    assertEquals(LoginAbortedException.Reason.CANCELLED,
+        ((LoginAbortedException) callback1.failure).getReason());
+    poll();
+    assertEquals(2, endpoint.urls.size());
+    endpoint.respond(400, "{\"error\":\"authorization_pending\"}");
+
+    handle2.cancel();
+    assertNotNull(callback2.failure);
+    poll();
+    assertEquals(2, endpoint.urls.size());
+    assertTrue(scheduler.getRepeatingCommands().isEmpty());
+  }
+
+  private void poll() {
+    scheduler.executeRepeatingCommands();
+  }
+
+  /** Records requests, which the test then answers in turn. */
+  private static class StubEndpoint implements AuthorizedRequests.Transport {
+    final List<String> urls = new ArrayList<String>();
+    final List<String> bodies = new ArrayList<String>();
+    RequestCallback pending;
+
+    @Override
+    public void send(RequestBuilder builder, RequestCallback callback) {
+      assertEquals("application/x-www-form-urlencoded", builder.getHeader("Content-Type"));
+      urls.add(builder.getUrl());
+      bodies.add(builder.getRequestData());
+      pending = callback;
+    }
+
+    void respond(int statusCode, String text) {
+      RequestCallback callback = pending;
+      pending = null;
+      callback.onResponseReceived(null, new StubResponse(statusCode, text));
+    }
+
+    void fail() {
+      RequestCallback callback = pending;
+      pending = null;
+      callback.onError(null, new RequestException("offline"));
+    }
+  }
+
+  private static class StubResponse extends Response {
+    private final int statusCode;
+    private final String text;
+
+    StubResponse(int statusCode, String text) {
+      this.statusCode = statusCode;
+      this.text = text;
+    }
+
+    @Override
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    @Override
+    public String getHeader(String header) {
+      return null;
+    }
+
+    @Override
+    public Header[] getHeaders() {
+      return new Header[0];
+    }
+
+    @Override
+    public String getHeadersAsString() {
+      return "";
+    }
+
+    @Override
+    public String getStatusText() {
+      return "";
+    }
+
+    @Override
+    public String getText() {
+      return text;
+    }
+  }
+
+  private static class MockHandler implements DeviceAuthorization.Handler {
+    DeviceAuthorization.UserCode code;
+
+    @Override
+    public void onUserCode(DeviceAuthorization.UserCode code) {
+      this.code = code;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link IdTokenClaims} and the handling of id_token in
+ * {@link DefaultResponseParser}.
+ */
+public class IdTokenClaimsTest {
+
+  private static final String CLAIMS = "{\"sub\":\"1234\",\"email\":\"j\\u00f6rg@example.com\","
+      + "\"exp\":1300003600,\"email_verified\":true,\"aud\":[\"a\",\"b\"],\"extra\":null}";
+
+  static String jwt(String claims) {
+    Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    return encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "."
+        + encoder.encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + ".sig";
+  }
+
+  @Test
+  public void testDecode() {
+    IdTokenClaims claims = IdTokenClaims.decode(jwt(CLAIMS));
+    assertEquals("1234", claims.getSubject());
+    assertEquals("jörg@example.com", claims.getEmail());
+    assertEquals(1300003600000d, claims.getExpiration(), 0);
+    assertTrue(Double.isNaN(claims.getIssuedAt()));
+    assertEquals(Boolean.TRUE, claims.getClaim("email_verified"));
+    assertEquals(Arrays.asList("a", "b"), claims.getClaim("aud"));
+    assertNull(claims.getClaim("extra"));
+  }
+
+  @Test
+  public void testDecode_malformed() {
+    for (String bad : new String[] {"nodots", "a.!!!.c", jwt("[1]"), jwt("{\"sub\":"),
+        jwt("{} x")}) {
+      try {
+        IdTokenClaims.decode(bad);
+        fail("Expected IllegalArgumentException for " + bad);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  /** Claims are decoded once and kept with the token, also after storing it. */
+  @Test
+  public void testClaimsMemoized() {
+    OAuthResponseParser.TokenInfo info = new OAuthResponseParser.TokenInfo();
+    assertNull(info.getIdTokenClaims());
+
+    info.accessToken = "token";
+    info.idToken = jwt(CLAIMS);
+    assertSame(info.getIdTokenClaims(), info.getIdTokenClaims());
+
+    OAuthResponseParser.TokenInfo restored =
+        OAuthResponseParser.TokenInfo.fromString(info.asString());
+    assertEquals(info, restored);
+    assertNull(restored.expires);
+    assertEquals("1234", restored.getIdTokenClaims().getSubject());
+  }
+
+  /** Without expires_in, the expiry of the id_token is used. */
+  @Test
+  public void testParse_expiryFromIdToken() {
+    DefaultResponseParser parser = new DefaultResponseParser(new AuthTest.MockClock());
+    OAuthResponseParser.TokenInfo info =
+        parser.parseResponse("#access_token=token&id_token=" + jwt(CLAIMS), "");
+    assertEquals(1300003600000d, Double.valueOf(info.expires), 0);
+
+    info = parser.parseResponse(
+        "#access_token=token&expires_in=60&id_token=" + jwt(CLAIMS), "");
+    assertEquals(AuthTest.MockClock.now + 60000, Double.valueOf(info.expires), 0);
+
+    info = parser.parseResponse("#access_token=token&id_token=garbage", "");
+    assertNull(info.expires);
+  }
+}
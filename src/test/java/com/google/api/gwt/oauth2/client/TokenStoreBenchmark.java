@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.gwt.oauth2.client;
+
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.JsonUtils;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.junit.client.GWTTestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures {@link TokenStoreImpl} and {@link CookieStoreImpl} in a browser,
+ * with 10, 100 and 1000 stored tokens: the latency of get, set and clear,
+ * and the bytes each write stores.
+ *
+ * <p>
+ * Runs headless under HtmlUnit with {@code mvn -Pgwt-bench verify}, and
+ * posts its results as JSON to {@code BenchmarkReportServlet}, which writes
+ * them to {@code target/token-store-benchmark.json}.
+ * </p>
+ */
+public class TokenStoreBenchmark extends GWTTestCase {
+
+  private static final int[] SIZES = {10, 100, 1000};
+
+  /** Each operation is repeated for this long, or this many times, whichever comes first. */
+  private static final double MIN_MILLIS = 200;
+  private static final int MAX_ITERATIONS = 1000;
+
+  @Override
+  public String getModuleName() {
+    return "com.google.api.gwt.oauth2.OAuth2Benchmark";
+  }
+
+  public void testStores() throws RequestException {
+    // Warm up the script engine before measuring.
+    measure("localStorage", new TokenStoreImpl(), SIZES[0]);
+    measure("cookies", new CookieStoreImpl(), SIZES[0]);
+
+    StringBuilder results = new StringBuilder();
+    for (int size : SIZES) {
+      results.append(results.length() == 0 ? "" : ",")
+          .append(measure("localStorage", new TokenStoreImpl(), size))
+          .append(",")
+          .append(measure("cookies", new CookieStoreImpl(), size));
+    }
+    String report = "{\"userAgent\":" + JsonUtils.escapeValue(userAgent())
+        + ",\"results\":[" + results + "]}";
+
+    delayTestFinish(30000);
+    RequestBuilder post = new RequestBuilder(RequestBuilder.POST, GWT.getModuleBaseURL() + "report");
+    post.setHeader("Content-Type", "application/json");
+    post.sendRequest(report, new RequestCallback() {
+      @Override
+      public void onResponseReceived(Request request, Response response) {
+        assertEquals(Response.SC_NO_CONTENT, response.getStatusCode());
+        finishTest();
+      }
+
+      @Override
+      public void onError(Request request, Throwable exception) {
+        fail(exception.getMessage());
+      }
+    });
+  }
+
+  /** Returns the results for one store and size, as a JSON object. */
+  private static String measure(String name, final TokenStoreImpl store, final int size) {
+    final Map<String, String> seed = new HashMap<String, String>();
+    for (int i = 0; i < size; i++) {
+      seed.put(key(i), value(i));
+    }
+    store.clear();
+    store.setAll(seed);
+    int stored = store.getAll().size();
+    int bytesStored = "localStorage".equals(name) ? localStorageBytes() : cookieBytes();
+
+    double get = time(new Op() {
+      @Override
+      void run(int i) {
+        store.get(key(i % size));
+      }
+    });
+    double set = time(new Op() {
+      @Override
+      void run(int i) {
+        store.set(key(i % size), value(i));
+      }
+    });
+    // Each write stores the whole localStorage entry, but only one cookie.
+    int bytesPerWrite = "localStorage".equals(name)
+        ? localStorageBytes() : cookieBytes(key(0), value(0));
+    // Clearing needs tokens to clear, so time it with reseeding and subtract that.
+    double clear = time(new Op() {
+      @Override
+      void run(int i) {
+        store.clear();
+        store.setAll(seed);
+      }
+    }) - time(new Op() {
+      @Override
+      void run(int i) {
+        store.setAll(seed);
+      }
+    });
+    store.clear();
+
+    return "{\"store\":\"" + name + "\",\"tokens\":" + size + ",\"stored\":" + stored
+        + ",\"getMillis\":" + get + ",\"setMillis\":" + set
+        + ",\"clearMillis\":" + Math.max(0, clear) + ",\"bytesStored\":" + bytesStored
+        + ",\"bytesPerWrite\":" + bytesPerWrite + "}";
+  }
+
+  /** An operation to time, given the number of its iteration. */
+  private abstract static class Op {
+    abstract void run(int i);
+  }
+
+  /** Returns the average duration of the operation, in milliseconds. */
+  private static double time(Op op) {
+    double started = Duration.currentTimeMillis();
+    double elapsed = 0;
+    int iterations = 0;
+    while (elapsed < MIN_MILLIS && iterations < MAX_ITERATIONS) {
+      op.run(iterations++);
+      elapsed = Duration.currentTimeMillis() - started;
+    }
+    return elapsed / iterations;
+  }
+
+  private static String key(int i) {
+    return "client-" + (i % 7) + ".apps.example.com-----https://www.example.com/auth/scope" + i;
+  }
+
+  /** Returns a token of the size typical of Google's access tokens. */
+  private static String value(int i) {
+    StringBuilder token = new StringBuilder("ya29.");
+    while (token.length() < 160) {
+      token.append(Integer.toString(i * 7919 + token.length(), 36));
+    }
+    return token + "-----" + (1300000000000.0 + i * 1000);
+  }
+
+  private static native int localStorageBytes() /*-{
+    var item = $wnd.localStorage.getItem('gwt-oauth2');
+    return item ? item.length : 0;
+  }-*/;
+
+  private static native int cookieBytes() /*-{
+    return $doc.cookie.length;
+  }-*/;
+
+  private static native int cookieBytes(String key, String value) /*-{
+    return ('gwt-oauth2-' + encodeURIComponent(key) + '=' + encodeURIComponent(value)).length;
+  }-*/;
+
+  private static native String userAgent() /*-{
+    return $wnd.navigator.userAgent;
+  }-*/;
+}